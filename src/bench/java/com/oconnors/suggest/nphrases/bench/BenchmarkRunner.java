@@ -0,0 +1,46 @@
+package com.oconnors.suggest.nphrases.bench;
+
+import java.io.File;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks at 1, 2, 4, ... threads up to a maximum, to show how each step scales.
+ * Results of each thread count are written to target/jmh/threads-N.csv
+ * 		args[0] (optional): regex of the benchmarks to run, e.g. "tag|parseSegments". Default: all
+ * 		args[1] (optional): most threads. 0 or missing means one per processor
+ * 		args[2] (optional): comma separated corpus buckets. Default: all
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException {
+		String include = args.length > 0 && !args[0].isEmpty() ? args[0] : ".*";
+		int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+		if (maxThreads <= 0){
+			maxThreads = Runtime.getRuntime().availableProcessors();
+		}
+		String[] buckets = args.length > 2 && !args[2].isEmpty() ? args[2].split(",") : null;
+
+		new File("target/jmh").mkdirs();
+		for (int threads = 1; ; threads = Math.min(threads * 2, maxThreads)){
+			OptionsBuilder options = new OptionsBuilder();
+			options.include(NlpBenchmark.class.getName() + "\\.(" + include + ")$")
+					.threads(threads)
+					.resultFormat(ResultFormatType.CSV)
+					.result("target/jmh/threads-" + threads + ".csv");
+			if (buckets != null){
+				options.param("bucket", buckets);
+			}
+			Options built = options.build();
+			new Runner(built).run();
+			if (threads == maxThreads){
+				break;
+			}
+		}
+	}
+
+}
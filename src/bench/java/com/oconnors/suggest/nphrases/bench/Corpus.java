@@ -0,0 +1,51 @@
+package com.oconnors.suggest.nphrases.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sentences the benchmarks run over, checked in under src/bench/resources/corpus, one file per bucket:
+ * 		short: at most 12 words
+ * 		medium: 13 to 30 words
+ * 		long: more than 50 words, with commas (split by SentenceSegmenter at its commas)
+ * 		long-no-comma: more than 50 words, without commas (split at conjunctions, clause markers or the middle)
+ */
+public class Corpus {
+
+	public static final String SHORT = "short";
+	public static final String MEDIUM = "medium";
+	public static final String LONG = "long";
+	public static final String LONG_NO_COMMA = "long-no-comma";
+
+	/**
+	 * @param bucket	name of the bucket
+	 * @return the sentences of the bucket, skipping blank lines and lines starting with #
+	 * @throws IOException if there is no such bucket
+	 */
+	public static List<String> load(String bucket) throws IOException{
+		InputStream in = Corpus.class.getResourceAsStream("/corpus/" + bucket + ".txt");
+		if (in == null){
+			throw new IOException("no corpus bucket: " + bucket);
+		}
+		List<String> sentences = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charset.forName("UTF-8")));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null){
+				line = line.trim();
+				if (!line.isEmpty() && !line.startsWith("#")){
+					sentences.add(line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return sentences;
+	}
+
+}
@@ -0,0 +1,220 @@
+package com.oconnors.suggest.nphrases.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.oconnors.suggest.nphrases.parse.LatencyHistogram;
+import com.oconnors.suggest.nphrases.parse.ParseDriver;
+import com.oconnors.suggest.nphrases.parse.ParseJob;
+
+/**
+ * Runs bulk jobs end to end through ParseDriver against a FakeQueryer, once for each of several sizes of
+ * a thread pool, and reports documents per second, the median and 99th percentile time from starting a
+ * document to its end, the heap high-water mark, and the most platform (OS) threads alive at once, which
+ * does not count virtual threads. Each size runs in a JVM of its own, so that the
+ * settings read when classes load take effect and heap use of one run does not carry into the next.
+ * Output of each run is written to target/load/[pool]-[size].log
+ * Arguments are settings as key=value:
+ * 		pool: setting swept, e.g. pipeline.parse.threads or xcc.pool.size. Default: parser.parallelism, the threads
+ * 			that parse sentences (the parse stage's threads hand them to these)
+ * 		sizes: comma separated values of the setting. Default: 1,2,4,8
+ * 			pool=pipeline.io.threads sizes=platform,virtual compares fetch and insert stages on platform and virtual threads
+ * 		documents: documents in the measured job. Default: 200
+ * 		warmup: documents in a job run first and not measured, which loads the models. Default: 20
+ * 		batches: batches per document. Default: 4
+ * 		sentences: sentences per batch. Default: 50
+ * 		fetch.ms, insert.ms: time each fetch and insert takes, in milliseconds. Defaults: 20, 10
+ * 		mode: parse mode, or empty for the parser.mode setting
+ * 		buckets: comma separated corpus buckets documents are made of (see Corpus). Default: all
+ * 		heap: -Xmx of each run. Default: 2g
+ * 		cache: on to keep the parse cache and coalescer. Documents are made of a corpus of a few dozen sentences,
+ * 			which would otherwise be parsed once and then served from the cache, so that the runs measure
+ * 			cache hits rather than parsing. Default: off (parser.cache.size=0, parser.coalesce=false)
+ * Other settings (see ParseConfig) can be given to every run as -Dnphrases.[setting] jvm arguments
+ */
+public class LoadTest {
+
+	/**url the FakeQueryer answers for*/
+	private static final String XCC_URL = "localhost:8000";
+	/**start of the line a run reports its results on*/
+	private static final String RESULT = "RESULT\t";
+	private static final long POLL_MILLIS = 100;
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> settings = new LinkedHashMap<String, String>();
+		settings.put("pool", "parser.parallelism");
+		settings.put("sizes", "1,2,4,8");
+		settings.put("documents", "200");
+		settings.put("warmup", "20");
+		settings.put("batches", "4");
+		settings.put("sentences", "50");
+		settings.put("fetch.ms", "20");
+		settings.put("insert.ms", "10");
+		settings.put("mode", "");
+		settings.put("buckets", Corpus.SHORT + "," + Corpus.MEDIUM + "," + Corpus.LONG + "," + Corpus.LONG_NO_COMMA);
+		settings.put("heap", "2g");
+		settings.put("cache", "off");
+		boolean child = false;
+		for (String arg : args){
+			int eq = arg.indexOf('=');
+			if (arg.equals("run")){
+				child = true;
+			} else if (eq > 0){
+				settings.put(arg.substring(0, eq), arg.substring(eq + 1));
+			} else {
+				throw new IllegalArgumentException("not a key=value setting: " + arg);
+			}
+		}
+		if (child){
+			run(settings);
+			System.exit(0);
+		}
+		sweep(settings);
+	}
+
+	/**
+	 * Runs each size in a JVM of its own and prints a table of their results
+	 */
+	private static void sweep(Map<String, String> settings) throws IOException, InterruptedException{
+		String pool = settings.get("pool");
+		File dir = new File("target/load");
+		dir.mkdirs();
+		List<String> passed = new ArrayList<String>();
+		for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()){
+			if (arg.startsWith("-Dnphrases.") || arg.startsWith("-Dlog4j")){
+				passed.add(arg);
+			}
+		}
+
+		System.out.println(String.format("%-28s %8s %10s %10s %10s %8s %10s %8s",
+				pool, "docs", "docs/s", "p50 ms", "p99 ms", "failed", "heap MB", "threads"));
+		for (String size : settings.get("sizes").split(",")){
+			size = size.trim();
+			List<String> command = new ArrayList<String>();
+			command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+			command.add("-Xmx" + settings.get("heap"));
+			if (!settings.get("cache").equals("on")){
+				command.add("-Dnphrases.parser.cache.size=0");
+				command.add("-Dnphrases.parser.coalesce=false");
+			}
+			//given after, so that settings passed to the sweep win
+			command.addAll(passed);
+			command.add("-Dnphrases." + pool + "=" + size);
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(LoadTest.class.getName());
+			command.add("run");
+			for (Map.Entry<String, String> setting : settings.entrySet()){
+				command.add(setting.getKey() + "=" + setting.getValue());
+			}
+			File log = new File(dir, pool + "-" + size + ".log");
+			Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+			int exit = process.waitFor();
+			String result = result(log);
+			if (result == null){
+				System.out.println(String.format("%-28s failed with exit code %d, see %s", size, exit, log));
+			} else {
+				String[] values = result.split("\t");
+				System.out.println(String.format("%-28s %8s %10s %10s %10s %8s %10s %8s",
+						size, values[0], values[1], values[2], values[3], values[4], values[5], values[6]));
+			}
+		}
+	}
+
+	/**
+	 * @return the results a run reported in its log, without RESULT, or null if it reported none
+	 */
+	private static String result(File log) throws IOException{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(log), Charset.defaultCharset()));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null){
+				if (line.startsWith(RESULT)){
+					return line.substring(RESULT.length());
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return null;
+	}
+
+	/**
+	 * Runs the warmup job, then the measured job, and prints a line of results:
+	 * documents, documents per second, p50 and p99 milliseconds, failed documents, heap megabytes and peak platform threads
+	 */
+	private static void run(Map<String, String> settings) throws IOException, InterruptedException{
+		List<String> corpus = new ArrayList<String>();
+		for (String bucket : settings.get("buckets").split(",")){
+			corpus.addAll(Corpus.load(bucket.trim()));
+		}
+		ParseDriver.addQueryer(new FakeQueryer(XCC_URL, corpus, Integer.parseInt(settings.get("batches")),
+				Integer.parseInt(settings.get("sentences")), Long.parseLong(settings.get("fetch.ms")),
+				Long.parseLong(settings.get("insert.ms"))));
+		String mode = settings.get("mode").isEmpty() ? null : settings.get("mode");
+
+		int warmup = Integer.parseInt(settings.get("warmup"));
+		if (warmup > 0){
+			runJob("warmup", warmup, mode);
+		}
+		System.gc();
+		List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+		for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()){
+			if (memoryPool.getType() == MemoryType.HEAP){
+				memoryPool.resetPeakUsage();
+				heapPools.add(memoryPool);
+			}
+		}
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		threads.resetPeakThreadCount();
+
+		int documents = Integer.parseInt(settings.get("documents"));
+		long start = System.currentTimeMillis();
+		ParseJob job = runJob("load", documents, mode);
+		double seconds = Math.max(1, job.getFinishedTime() - start) / 1000.0;
+
+		//peaks of the pools need not have been at the same time, so their sum is an upper bound
+		long peak = 0;
+		for (MemoryPoolMXBean memoryPool : heapPools){
+			peak += memoryPool.getPeakUsage().getUsed();
+		}
+		LatencyHistogram latency = job.getDocumentLatency();
+		System.out.println(job.toJSON());
+		System.out.println(RESULT + documents + "\t" + String.format(Locale.ROOT, "%.2f", documents / seconds)
+				+ "\t" + String.format(Locale.ROOT, "%.0f", latency.getPercentile(50) / 1000.0)
+				+ "\t" + String.format(Locale.ROOT, "%.0f", latency.getPercentile(99) / 1000.0)
+				+ "\t" + job.getFailed()
+				+ "\t" + (peak >> 20)
+				+ "\t" + threads.getPeakThreadCount());
+		ParseDriver.shutdown();
+	}
+
+	/**
+	 * Submits a job of generated filenames and waits for it to finish
+	 */
+	private static ParseJob runJob(String name, int documents, String mode) throws IOException, InterruptedException{
+		List<String> filenames = new ArrayList<String>(documents);
+		for (int i=0; i < documents; i++){
+			filenames.add(name + "-" + i + ".xml");
+		}
+		ParseJob job = ParseDriver.submitJob(filenames, "load", name, "fake:fake", XCC_URL, "token", mode, new String[5]);
+		while (!job.isFinished()){
+			Thread.sleep(POLL_MILLIS);
+		}
+		return job;
+	}
+
+}
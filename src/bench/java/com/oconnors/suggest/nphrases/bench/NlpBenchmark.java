@@ -0,0 +1,247 @@
+package com.oconnors.suggest.nphrases.bench;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.oconnors.suggest.nphrases.parse.ChunkStrategy;
+import com.oconnors.suggest.nphrases.parse.DocUtils;
+import com.oconnors.suggest.nphrases.parse.NlpModels;
+import com.oconnors.suggest.nphrases.parse.PCFGStrategy;
+import com.oconnors.suggest.nphrases.parse.ParseStrategy;
+import com.oconnors.suggest.nphrases.parse.PhraseExtractor;
+import com.oconnors.suggest.nphrases.parse.RoutedStrategy;
+import com.oconnors.suggest.nphrases.parse.SentenceSegmenter;
+
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.ling.TaggedWord;
+import edu.stanford.nlp.parser.lexparser.LexicalizedParser;
+import edu.stanford.nlp.process.CoreLabelTokenFactory;
+import edu.stanford.nlp.process.PTBTokenizer;
+import edu.stanford.nlp.process.TokenizerFactory;
+import edu.stanford.nlp.tagger.maxent.MaxentTagger;
+import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.trees.TreePrint;
+
+/**
+ * Benchmarks of each step a sentence goes through in DocumentParse, over one bucket of the corpus at a time
+ * (see Corpus). Each operation handles one sentence; each thread walks the bucket's sentences in turn.
+ * Models, tokenizer options and settings are those of DocumentParse with its default settings.
+ * Inputs of a step (tokens, tags, trees) are prepared once in setup, so each benchmark times only its own step
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class NlpBenchmark {
+
+	/**as in DocumentParse*/
+	private static final int SEGMENT_TOKENS = 50;
+	private static final int FASTPATH_WORDS = 8;
+	private static final int FASTPATH_VERBS = 1;
+
+	@Param({Corpus.SHORT, Corpus.MEDIUM, Corpus.LONG, Corpus.LONG_NO_COMMA})
+	public String bucket;
+
+	private TokenizerFactory<CoreLabel> tokenizerFactory;
+	private MaxentTagger tagger;
+	private LexicalizedParser parser;
+	private ParseStrategy pcfg;
+	private ParseStrategy chunk;
+	private ParseStrategy auto;
+	private SentenceSegmenter segmenter;
+
+	private String[] sentences;
+	private List<CoreLabel>[] tokens;
+	private List<TaggedWord>[] tags;
+	/**tags of each segment of each sentence, as DocumentParse parses them*/
+	private List<List<TaggedWord>>[] segmentTags;
+	private Tree[] trees;
+	/**trees as printed by TreePrint("xmlTree"), the input of DocUtils.fixXML*/
+	private String[] xmlTrees;
+
+	@Setup(Level.Trial)
+	@SuppressWarnings("unchecked")
+	public void load() throws IOException{
+		tokenizerFactory = PTBTokenizer.factory(new CoreLabelTokenFactory(), NlpModels.TOKENIZER_OPTIONS);
+		tagger = new MaxentTagger(NlpModels.TAGGER_MODEL);
+		parser = LexicalizedParser.loadModel(NlpModels.PARSER_MODEL);
+		pcfg = new PCFGStrategy(parser);
+		chunk = new ChunkStrategy();
+		auto = new RoutedStrategy(chunk, pcfg, FASTPATH_WORDS, FASTPATH_VERBS);
+		segmenter = new SentenceSegmenter(SEGMENT_TOKENS);
+
+		List<String> corpus = Corpus.load(bucket);
+		int n = corpus.size();
+		sentences = corpus.toArray(new String[n]);
+		tokens = new List[n];
+		tags = new List[n];
+		segmentTags = new List[n];
+		trees = new Tree[n];
+		xmlTrees = new String[n];
+		TreePrint xmlPrint = new TreePrint("xmlTree");
+		for (int i=0; i < n; i++){
+			tokens[i] = tokenizerFactory.getTokenizer(new StringReader(sentences[i])).tokenize();
+			tags[i] = tagger.apply(tokens[i]);
+			segmentTags[i] = new ArrayList<List<TaggedWord>>();
+			for (List<CoreLabel> segment : segmenter.segment(tokens[i])){
+				segmentTags[i].add(tagger.apply(segment));
+			}
+			trees[i] = parser.apply(tags[i]);
+			StringWriter xml = new StringWriter();
+			xmlPrint.printTree(trees[i], new PrintWriter(xml));
+			xmlTrees[i] = xml.toString();
+		}
+	}
+
+	/**
+	 * The sentence a thread handles next
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+
+		private int next = 0;
+
+		int next(int size){
+			int i = next;
+			next = (next + 1) % size;
+			return i;
+		}
+
+	}
+
+	@Benchmark
+	public List<CoreLabel> tokenize(Cursor cursor){
+		return tokenizerFactory.getTokenizer(new StringReader(sentences[cursor.next(sentences.length)])).tokenize();
+	}
+
+	@Benchmark
+	public List<TaggedWord> tag(Cursor cursor){
+		return tagger.apply(tokens[cursor.next(tokens.length)]);
+	}
+
+	/**
+	 * LexicalizedParser.apply on the whole sentence, without segmenting it
+	 */
+	@Benchmark
+	public Tree parseWhole(Cursor cursor){
+		return parser.apply(tags[cursor.next(tags.length)]);
+	}
+
+	/**
+	 * Parses each segment of the sentence with the PCFG parser, as DocumentParse.parseMaxLength does
+	 */
+	@Benchmark
+	public int parseSegments(Cursor cursor){
+		int nodes = 0;
+		for (List<TaggedWord> segment : segmentTags[cursor.next(segmentTags.length)]){
+			nodes += pcfg.parse(segment).size();
+		}
+		return nodes;
+	}
+
+	/**
+	 * Chunks each segment of the sentence (parse mode chunk)
+	 */
+	@Benchmark
+	public int chunkSegments(Cursor cursor){
+		int nodes = 0;
+		for (List<TaggedWord> segment : segmentTags[cursor.next(segmentTags.length)]){
+			nodes += chunk.parse(segment).size();
+		}
+		return nodes;
+	}
+
+	/**
+	 * Parses or chunks each segment of the sentence as routed by parse mode auto
+	 */
+	@Benchmark
+	public int autoSegments(Cursor cursor){
+		int nodes = 0;
+		for (List<TaggedWord> segment : segmentTags[cursor.next(segmentTags.length)]){
+			nodes += auto.parse(segment).size();
+		}
+		return nodes;
+	}
+
+	/**
+	 * Splits the sentence into segments short enough to parse, as DocumentParse.parseMaxLength does
+	 */
+	@Benchmark
+	public List<List<CoreLabel>> segment(Cursor cursor){
+		return segmenter.segment(tokens[cursor.next(tokens.length)]);
+	}
+
+	/**
+	 * Fixes xml printed by TreePrint, as the original tree output did
+	 */
+	@Benchmark
+	public String fixXML(Cursor cursor){
+		return DocUtils.fixXML(xmlTrees[cursor.next(xmlTrees.length)]);
+	}
+
+	/**
+	 * Fixes xml printed by TreePrint with the chain of replaceAll calls fixXML replaced, as a baseline for it
+	 */
+	@Benchmark
+	public String fixXMLRegexChain(Cursor cursor){
+		return fixXMLRegexChain(xmlTrees[cursor.next(xmlTrees.length)]);
+	}
+
+	/**
+	 * Writes a tree as fixed xml directly, as DocumentParse does
+	 */
+	@Benchmark
+	public StringBuilder appendXML(Cursor cursor){
+		StringBuilder out = new StringBuilder();
+		DocUtils.appendXML(trees[cursor.next(trees.length)], out);
+		return out;
+	}
+
+	/**
+	 * The original DocUtils.fixXML: each rule is a regex applied to the whole tree in turn.
+	 * Its output is checked in as golden files under src/test/resources/fixxml
+	 */
+	static String fixXMLRegexChain(String xmlTree){
+		xmlTree = xmlTree.replaceAll("<(.*)/>", "$1");
+		xmlTree = xmlTree.replaceAll("<(/?)\\.>", "<$1P_PERIOD>");
+		xmlTree = xmlTree.replaceAll("<(/?)\\,>", "<$1P_COMMA>");
+		xmlTree = xmlTree.replaceAll("<(/?)\\;>", "<$1P_SEMI>");
+		xmlTree = xmlTree.replaceAll("<(/?)\\:>", "<$1P_COLON>");
+		xmlTree = xmlTree.replaceAll("<(/?)\\\">", "<$1P_QUOTE>");
+		xmlTree = xmlTree.replaceAll("<(/?)``>", "<$1P_QUOTE>");
+		xmlTree = xmlTree.replaceAll("<(/?)&apos;&apos;>", "<$1P_QUOTE>");
+		xmlTree = xmlTree.replaceAll("<(/?)\\#>", "<$1P_POUND>");
+		xmlTree = xmlTree.replaceAll("<(/?)\\$>", "<$1P_DOLLAR>");
+		xmlTree = xmlTree.replaceAll("<(/?)-(.*)->", "<$1$2>");
+		xmlTree = xmlTree.replaceAll("<(/?)(.*)\\$>", "<$1$2_POS>");
+		return xmlTree;
+	}
+
+	@Benchmark
+	public StringBuilder extractPhrases(Cursor cursor){
+		StringBuilder out = new StringBuilder();
+		PhraseExtractor.extract(trees[cursor.next(trees.length)], out);
+		return out;
+	}
+
+}
@@ -0,0 +1,163 @@
+package com.oconnors.suggest.nphrases.bench;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.oconnors.suggest.nphrases.parse.ChunkStrategy;
+import com.oconnors.suggest.nphrases.parse.NlpModels;
+import com.oconnors.suggest.nphrases.parse.PCFGStrategy;
+import com.oconnors.suggest.nphrases.parse.ParseStrategy;
+import com.oconnors.suggest.nphrases.parse.PhraseExtractor;
+import com.oconnors.suggest.nphrases.parse.RoutedStrategy;
+import com.oconnors.suggest.nphrases.parse.SentenceSegmenter;
+
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.ling.TaggedWord;
+import edu.stanford.nlp.parser.lexparser.LexicalizedParser;
+import edu.stanford.nlp.process.CoreLabelTokenFactory;
+import edu.stanford.nlp.process.PTBTokenizer;
+import edu.stanford.nlp.process.TokenizerFactory;
+import edu.stanford.nlp.tagger.maxent.MaxentTagger;
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * Agreement of the nphrases of the chunk and auto parse modes with those of pcfg, over the corpus (see Corpus).
+ * Each sentence is segmented and tagged as DocumentParse does, each segment is parsed in every mode, and
+ * the phrases PhraseExtractor finds in pcfg trees are taken as the reference: for each bucket, mode and
+ * phrase type, precision is the share of the mode's phrases that pcfg also found in the same sentence,
+ * recall the share of pcfg's phrases that the mode also found. A phrase found twice in a sentence counts twice.
+ * Throughput of each mode is measured by NlpBenchmark (chunkSegments, autoSegments, parseSegments)
+ * 		args[0] (optional): comma separated corpus buckets. Default: all
+ */
+public class PhraseAgreement {
+
+	/**as in DocumentParse*/
+	private static final int SEGMENT_TOKENS = 50;
+	private static final int FASTPATH_WORDS = 8;
+	private static final int FASTPATH_VERBS = 1;
+
+	private static final String[] BUCKETS = new String[]{Corpus.SHORT, Corpus.MEDIUM, Corpus.LONG, Corpus.LONG_NO_COMMA};
+	/**column of the phrases of all types*/
+	private static final String ALL = "all";
+	/**strategy for segments a strategy cannot parse, as in DocumentParse*/
+	private static final ParseStrategy FALLBACK = new ChunkStrategy();
+
+	public static void main(String[] args) throws Exception {
+		String[] buckets = args.length > 0 && !args[0].isEmpty() ? args[0].split(",") : BUCKETS;
+
+		TokenizerFactory<CoreLabel> tokenizerFactory = PTBTokenizer.factory(new CoreLabelTokenFactory(), NlpModels.TOKENIZER_OPTIONS);
+		MaxentTagger tagger = new MaxentTagger(NlpModels.TAGGER_MODEL);
+		ParseStrategy pcfg = new PCFGStrategy(LexicalizedParser.loadModel(NlpModels.PARSER_MODEL));
+		ParseStrategy chunk = new ChunkStrategy();
+		ParseStrategy[] modes = new ParseStrategy[]{chunk, new RoutedStrategy(chunk, pcfg, FASTPATH_WORDS, FASTPATH_VERBS)};
+		SentenceSegmenter segmenter = new SentenceSegmenter(SEGMENT_TOKENS);
+
+		System.out.println(String.format(Locale.ROOT, "%-14s %-6s %-9s %8s %8s %8s %10s %8s %8s",
+				"bucket", "mode", "type", "pcfg", "mode", "matched", "precision", "recall", "f1"));
+		for (String bucket : buckets){
+			Map<String, Agreement[]> agreements = new HashMap<String, Agreement[]>();
+			for (ParseStrategy mode : modes){
+				Agreement[] byType = new Agreement[PhraseExtractor.TYPES.length + 1];
+				for (int i=0; i < byType.length; i++){
+					byType[i] = new Agreement();
+				}
+				agreements.put(mode.getName(), byType);
+			}
+			for (String sentence : Corpus.load(bucket)){
+				List<CoreLabel> tokens = tokenizerFactory.getTokenizer(new StringReader(sentence)).tokenize();
+				List<List<TaggedWord>> segments = new ArrayList<List<TaggedWord>>();
+				for (List<CoreLabel> segment : segmenter.segment(tokens)){
+					segments.add(tagger.apply(segment));
+				}
+				Map<String, Map<String, Integer>> reference = phrases(pcfg, segments);
+				for (ParseStrategy mode : modes){
+					Map<String, Map<String, Integer>> found = phrases(mode, segments);
+					Agreement[] byType = agreements.get(mode.getName());
+					for (int i=0; i < PhraseExtractor.TYPES.length; i++){
+						String type = PhraseExtractor.TYPES[i];
+						byType[i].add(reference.get(type), found.get(type));
+						byType[PhraseExtractor.TYPES.length].add(reference.get(type), found.get(type));
+					}
+				}
+			}
+			for (ParseStrategy mode : modes){
+				Agreement[] byType = agreements.get(mode.getName());
+				for (int i=0; i < byType.length; i++){
+					String type = i < PhraseExtractor.TYPES.length ? PhraseExtractor.TYPES[i] : ALL;
+					System.out.println(String.format(Locale.ROOT, "%-14s %-6s %-9s %s", bucket, mode.getName(), type, byType[i]));
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the phrases of a sentence's segments parsed with a strategy: the number of times each phrase was
+	 * found, by phrase type
+	 */
+	private static Map<String, Map<String, Integer>> phrases(ParseStrategy strategy, List<List<TaggedWord>> segments){
+		Map<String, Map<String, Integer>> phrases = new HashMap<String, Map<String, Integer>>();
+		for (String type : PhraseExtractor.TYPES){
+			phrases.put(type, new HashMap<String, Integer>());
+		}
+		StringBuilder records = new StringBuilder();
+		for (List<TaggedWord> segment : segments){
+			Tree tree;
+			try {
+				tree = strategy.parse(segment);
+			} catch (RuntimeException e){
+				tree = FALLBACK.parse(segment);
+			}
+			PhraseExtractor.extract(tree, records);
+		}
+		for (String record : records.toString().split("\n")){
+			int tab = record.indexOf('\t');
+			if (tab > 0 && phrases.containsKey(record.substring(0, tab))){
+				Map<String, Integer> counts = phrases.get(record.substring(0, tab));
+				String phrase = record.substring(tab + 1);
+				Integer count = counts.get(phrase);
+				counts.put(phrase, count == null ? 1 : count + 1);
+			}
+		}
+		return phrases;
+	}
+
+	/**
+	 * Counts of phrases found by pcfg and by a mode, over the sentences of a bucket
+	 */
+	private static class Agreement {
+
+		private long reference = 0;
+		private long found = 0;
+		private long matched = 0;
+
+		/**
+		 * Adds the phrases of one type found in a sentence
+		 */
+		void add(Map<String, Integer> reference, Map<String, Integer> found){
+			for (Integer count : reference.values()){
+				this.reference += count;
+			}
+			for (Map.Entry<String, Integer> entry : found.entrySet()){
+				this.found += entry.getValue();
+				Integer count = reference.get(entry.getKey());
+				if (count != null){
+					matched += Math.min(count, entry.getValue());
+				}
+			}
+		}
+
+		@Override
+		public String toString(){
+			double precision = found == 0 ? 1 : (double) matched / found;
+			double recall = reference == 0 ? 1 : (double) matched / reference;
+			double f1 = precision + recall == 0 ? 0 : 2 * precision * recall / (precision + recall);
+			return String.format(Locale.ROOT, "%8d %8d %8d %10.3f %8.3f %8.3f", reference, found, matched, precision, recall, f1);
+		}
+
+	}
+
+}
@@ -0,0 +1,80 @@
+package com.oconnors.suggest.nphrases.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.Date;
+
+import com.marklogic.xcc.ResultSequence;
+import com.oconnors.suggest.nphrases.comm.Queryer;
+import com.oconnors.suggest.nphrases.parse.DocUtils;
+import com.oconnors.suggest.nphrases.parse.PhraseExtractor;
+
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * Records the phrases MarkLogic builds (nphrases-build.xqy, with np:build-noun-phrases and np:build-verb-phrases)
+ * from the parse trees of src/test/resources/phrases/trees.txt, as src/test/resources/phrases/xquery.txt.
+ * PhraseExtractorParityTest compares the phrases PhraseExtractor extracts from the same trees with them.
+ * Each tree is sent on its own, as the parse tree xml of a batch, and each phrase written as a line:
+ * the number of the tree (from 0), a tab, then a phrase record (see PhraseExtractor).
+ * Record again whenever the np library changes
+ * 		args[0]: credentials of a MarkLogic user: username:password
+ * 		args[1]: url of a MarkLogic server with the np library: addr:port
+ * 		args[2] (optional): directory of the fixtures. Default: src/test/resources/phrases
+ */
+public class PhraseParity {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String QUERIES = "src/main/resources/queries/";
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2){
+			System.err.println("usage: PhraseParity username:password addr:port [fixture directory]");
+			System.exit(2);
+		}
+		File dir = new File(args.length > 2 ? args[2] : "src/test/resources/phrases");
+		String[] paths = new String[]{QUERIES + "document-get-sens.xqy", QUERIES + "nphrases.xqy", QUERIES + "nphrases-insert.xqy",
+				QUERIES + "nphrases-build.xqy", QUERIES + "nphrases-insert-batches.xqy"};
+		Queryer queryer = new Queryer(args[0], args[1], paths);
+
+		BufferedReader trees = new BufferedReader(new InputStreamReader(new FileInputStream(new File(dir, "trees.txt")), UTF8));
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(new File(dir, "xquery.txt")), UTF8));
+		try {
+			out.println("# phrases built by nphrases-build.xqy on " + args[1] + ", " + new Date() + ", from trees.txt (see PhraseParity)");
+			int index = 0;
+			String line;
+			while ((line = trees.readLine()) != null){
+				if (line.trim().isEmpty() || line.startsWith("#")){
+					continue;
+				}
+				StringBuilder xml = new StringBuilder("<SENS>");
+				DocUtils.appendXML(Tree.valueOf(line), xml);
+				ResultSequence rs = queryer.buildPhrases(xml.append("</SENS>").toString());
+				if (rs.size() > 0 && rs.itemAt(0).asString().equals("ERROR")){
+					throw new IllegalStateException("MarkLogic could not build the phrases of tree " + index + ": "
+							+ (rs.size() > 1 ? rs.itemAt(1).asString() : ""));
+				}
+				for (int i=0; i < PhraseExtractor.TYPES.length; i++){
+					for (String phrase : rs.itemAt(i).asString().split("\n")){
+						if (!phrase.isEmpty()){
+							out.println(index + "\t" + PhraseExtractor.TYPES[i] + "\t" + phrase);
+						}
+					}
+				}
+				index++;
+			}
+			System.out.println("recorded the phrases of " + index + " trees in " + new File(dir, "xquery.txt"));
+		} finally {
+			out.close();
+			trees.close();
+			queryer.close();
+		}
+	}
+
+}
@@ -0,0 +1,215 @@
+package com.oconnors.suggest.nphrases.comm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads the filenames of a bulk job from a request body, as it streams in. Two formats are accepted:
+ * 		JSON lines: one document per line, either a string or an object with a "filename" member
+ * 			"a.xml"
+ * 			{"filename": "b.xml"}
+ * 			(a line that is neither is taken as a plain filename)
+ * 		XML: any element named document or filename, with the filename as its text or filename attribute
+ * 			<documents><document>a.xml</document><document filename="b.xml"/></documents>
+ */
+public class DocumentListReader {
+
+	/**
+	 * @param in			the request body
+	 * @param contentType	content type of the body; if it is null or not XML, the first character decides
+	 * @return the filenames, in order
+	 * @throws IOException if the body cannot be read or parsed
+	 */
+	public static List<String> read(Reader in, String contentType) throws IOException{
+		BufferedReader reader = new BufferedReader(in);
+		boolean xml = contentType != null && contentType.contains("xml");
+		if (!xml){
+			reader.mark(1 << 16);
+			int c;
+			while ((c = reader.read()) != -1 && Character.isWhitespace(c)){
+				//skip leading whitespace
+			}
+			xml = c == '<';
+			reader.reset();
+		}
+		return xml ? readXML(reader) : readLines(reader);
+	}
+
+	private static List<String> readLines(BufferedReader reader) throws IOException{
+		List<String> filenames = new ArrayList<String>();
+		String line;
+		int lineNumber = 0;
+		while ((line = reader.readLine()) != null){
+			lineNumber++;
+			line = line.trim();
+			if (line.isEmpty()){
+				continue;
+			}
+			String filename;
+			if (line.startsWith("\"")){
+				filename = parseString(line, 0, lineNumber);
+			} else if (line.startsWith("{")){
+				filename = parseFilenameMember(line, lineNumber);
+			} else {
+				filename = line;
+			}
+			if (!filename.isEmpty()){
+				filenames.add(filename);
+			}
+		}
+		return filenames;
+	}
+
+	private static List<String> readXML(Reader reader) throws IOException{
+		List<String> filenames = new ArrayList<String>();
+		try {
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+			factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+			XMLStreamReader xml = factory.createXMLStreamReader(reader);
+			while (xml.hasNext()){
+				if (xml.next() != XMLStreamConstants.START_ELEMENT){
+					continue;
+				}
+				String name = xml.getLocalName();
+				if (!name.equals("document") && !name.equals("filename")){
+					continue;
+				}
+				String filename = xml.getAttributeValue(null, "filename");
+				if (filename == null){
+					//the element's text, unless it has child elements (e.g. a filename element)
+					StringBuilder text = new StringBuilder();
+					int event;
+					while ((event = xml.next()) != XMLStreamConstants.END_ELEMENT && event != XMLStreamConstants.START_ELEMENT){
+						if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA){
+							text.append(xml.getText());
+						}
+					}
+					if (event == XMLStreamConstants.START_ELEMENT && xml.getLocalName().equals("filename")){
+						filename = xml.getElementText();
+					} else if (event == XMLStreamConstants.END_ELEMENT){
+						filename = text.toString();
+					}
+				}
+				if (filename != null && !filename.trim().isEmpty()){
+					filenames.add(filename.trim());
+				}
+			}
+			xml.close();
+		} catch (XMLStreamException e){
+			throw new IOException("invalid document list: " + e.getMessage(), e);
+		}
+		return filenames;
+	}
+
+	/**
+	 * @return the value of the "filename" member of a JSON object on one line
+	 */
+	private static String parseFilenameMember(String line, int lineNumber) throws IOException{
+		int i = 1;
+		while (i < line.length()){
+			i = skipSpace(line, i);
+			if (i >= line.length() || line.charAt(i) == '}'){
+				break;
+			}
+			if (line.charAt(i) != '"'){
+				throw new IOException("line " + lineNumber + ": expected a member name");
+			}
+			String name = parseString(line, i, lineNumber);
+			i = skipSpace(line, endOfString(line, i) + 1);
+			if (i >= line.length() || line.charAt(i) != ':'){
+				throw new IOException("line " + lineNumber + ": expected ':'");
+			}
+			i = skipSpace(line, i + 1);
+			if (i < line.length() && line.charAt(i) == '"'){
+				String value = parseString(line, i, lineNumber);
+				if (name.equals("filename")){
+					return value;
+				}
+				i = endOfString(line, i) + 1;
+			} else {
+				//skip a number, boolean or null
+				while (i < line.length() && line.charAt(i) != ',' && line.charAt(i) != '}'){
+					i++;
+				}
+			}
+			i = skipSpace(line, i);
+			if (i < line.length() && line.charAt(i) == ','){
+				i++;
+			}
+		}
+		throw new IOException("line " + lineNumber + ": no filename");
+	}
+
+	/**
+	 * @return the JSON string that starts at index start of line, unescaped
+	 */
+	private static String parseString(String line, int start, int lineNumber) throws IOException{
+		StringBuilder value = new StringBuilder();
+		for (int i = start + 1; i < line.length(); i++){
+			char c = line.charAt(i);
+			if (c == '"'){
+				return value.toString();
+			}
+			if (c != '\\'){
+				value.append(c);
+				continue;
+			}
+			if (++i >= line.length()){
+				break;
+			}
+			c = line.charAt(i);
+			switch (c){
+			case 'b': value.append('\b'); break;
+			case 'f': value.append('\f'); break;
+			case 'n': value.append('\n'); break;
+			case 'r': value.append('\r'); break;
+			case 't': value.append('\t'); break;
+			case 'u':
+				if (i + 4 >= line.length()){
+					throw new IOException("line " + lineNumber + ": bad escape");
+				}
+				try {
+					value.append((char) Integer.parseInt(line.substring(i + 1, i + 5), 16));
+				} catch (NumberFormatException e){
+					throw new IOException("line " + lineNumber + ": bad escape");
+				}
+				i += 4;
+				break;
+			default: value.append(c);
+			}
+		}
+		throw new IOException("line " + lineNumber + ": unterminated string");
+	}
+
+	/**
+	 * @return the index of the quote that ends the JSON string starting at index start
+	 */
+	private static int endOfString(String line, int start){
+		for (int i = start + 1; i < line.length(); i++){
+			char c = line.charAt(i);
+			if (c == '\\'){
+				i++;
+			} else if (c == '"'){
+				return i;
+			}
+		}
+		return line.length();
+	}
+
+	private static int skipSpace(String line, int i){
+		while (i < line.length() && Character.isWhitespace(line.charAt(i))){
+			i++;
+		}
+		return i;
+	}
+
+}
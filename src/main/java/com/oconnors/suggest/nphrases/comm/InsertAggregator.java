@@ -0,0 +1,331 @@
+package com.oconnors.suggest.nphrases.comm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.exceptions.RequestException;
+
+/**
+ * Puts the phrase records or parse trees of several batches, from any documents, into one insert request.
+ * A thread inserting a batch adds it to the pending group and waits. The group is sent by the thread
+ * that fills it (maxBatches batches or maxChars characters), or by the first waiting thread to see it
+ * pending for longer than maxDelay. Every batch still gets its own result: MarkLogic inserts each batch
+ * separately, reports a failed batch with np:report-failed, and checks each batch's document for completion.
+ * Because completion is counted from the database, a group never holds two batches of the same document.
+ * Threads wait on a ReentrantLock rather than a monitor, so that virtual threads waiting here do not pin
+ * their carrier threads (see PipelineStage)
+ */
+public class InsertAggregator {
+
+	final static Logger logger = LogManager.getLogger(InsertAggregator.class.getName());
+
+	/**prefixes of the result of each batch: followed by the phrase counts, or the error code*/
+	private static final String BATCH_OK = "BATCH-OK";
+	private static final String BATCH_ERROR = "BATCH-ERROR";
+
+	/**queryer that sends the groups*/
+	private final Queryer queryer;
+	/**most batches in a group*/
+	private final int maxBatches;
+	/**most characters of phrase records in a group*/
+	private final long maxChars;
+	/**longest time a group waits for more batches, in nanoseconds*/
+	private final long maxDelay;
+
+	/**guards the pending group and the state of its batches*/
+	private final ReentrantLock lock = new ReentrantLock();
+	/**signalled when a group has been sent*/
+	private final Condition sent = lock.newCondition();
+	/**batches waiting to be sent*/
+	private List<Batch> pending = new ArrayList<Batch>();
+	/**documents with a batch in the pending group*/
+	private Set<String> documents = new HashSet<String>();
+	/**characters of phrase records in the pending group*/
+	private long pendingChars = 0;
+	/**time the first batch was added to the pending group*/
+	private long pendingSince = 0;
+
+	private final AtomicLong requests = new AtomicLong(0);
+	private final AtomicLong batches = new AtomicLong(0);
+
+	/**
+	 * @param queryer		queryer that sends the groups
+	 * @param maxBatches	most batches in a group
+	 * @param maxChars		most characters of phrase records in a group
+	 * @param maxDelay		longest time a group waits for more batches, in milliseconds
+	 */
+	public InsertAggregator(Queryer queryer, int maxBatches, long maxChars, long maxDelay){
+		this.queryer = queryer;
+		this.maxBatches = Math.max(1, maxBatches);
+		this.maxChars = maxChars;
+		this.maxDelay = TimeUnit.MILLISECONDS.toNanos(maxDelay);
+	}
+
+	/**
+	 * Inserts the phrase records of a batch, together with other batches, and waits for the result
+	 * @return the counts of the inserted nphrase1, nphrase2 and vphrase1 phrases
+	 * @throws RequestException if the batch failed, or the request it was sent in failed
+	 * @throws IOException
+	 */
+	public int[] insert(String phrases, String product, String edition, String filename, String batchId, String token)
+			throws IOException, RequestException{
+
+		return submit(new Batch(phrases, false, product, edition, filename, batchId, token));
+	}
+
+	/**
+	 * Builds the phrases of a batch from its parse trees in MarkLogic and inserts them, together with other batches,
+	 * and waits for the result
+	 * @param trees		parse trees of the batch, as xml
+	 * @return the counts of the inserted nphrase1, nphrase2 and vphrase1 phrases
+	 * @throws RequestException if the batch failed, or the request it was sent in failed
+	 * @throws IOException
+	 */
+	public int[] generate(String trees, String product, String edition, String filename, String batchId, String token)
+			throws IOException, RequestException{
+
+		return submit(new Batch(trees, true, product, edition, filename, batchId, token));
+	}
+
+	/**
+	 * Adds a batch to the pending group and waits for the result
+	 */
+	private int[] submit(Batch batch) throws IOException, RequestException{
+
+		List<Batch> ready = null;
+		lock.lock();
+		try {
+			if (documents.contains(batch.document)){
+				ready = take();
+			}
+			add(batch);
+			if (ready == null && (pending.size() >= maxBatches || pendingChars >= maxChars)){
+				ready = take();
+			}
+		} finally {
+			lock.unlock();
+		}
+		while (true){
+			if (ready != null){
+				send(ready);
+				ready = null;
+			}
+			lock.lock();
+			try {
+				while (!batch.done && ready == null){
+					if (batch.pending){
+						long wait = pendingSince + maxDelay - System.nanoTime();
+						if (wait <= 0){
+							ready = take();
+						} else {
+							try {
+								sent.awaitNanos(wait);
+							} catch (InterruptedException e){
+								Thread.currentThread().interrupt();
+								ready = take();
+							}
+						}
+					} else {
+						//another thread is sending the batch
+						sent.awaitUninterruptibly();
+					}
+				}
+				if (batch.done){
+					break;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		if (batch.requestException != null){
+			throw batch.requestException;
+		}
+		if (batch.ioException != null){
+			throw batch.ioException;
+		}
+		return batch.counts;
+	}
+
+	/**
+	 * @return the number of requests sent
+	 */
+	public long getRequests(){
+		return requests.get();
+	}
+
+	/**
+	 * @return the number of batches sent
+	 */
+	public long getBatches(){
+		return batches.get();
+	}
+
+	private void add(Batch batch){
+		if (pending.isEmpty()){
+			pendingSince = System.nanoTime();
+		}
+		pending.add(batch);
+		documents.add(batch.document);
+		pendingChars += batch.phrases.length();
+		batch.pending = true;
+	}
+
+	/**
+	 * Takes the pending group to send it
+	 */
+	private List<Batch> take(){
+		List<Batch> group = pending;
+		for (Batch batch : group){
+			batch.pending = false;
+		}
+		pending = new ArrayList<Batch>();
+		documents = new HashSet<String>();
+		pendingChars = 0;
+		return group;
+	}
+
+	/**
+	 * Sends a group of batches and records the result of each
+	 */
+	private void send(List<Batch> group){
+		if (group.isEmpty()){
+			return;
+		}
+		requests.incrementAndGet();
+		batches.addAndGet(group.size());
+		StringBuilder xml = new StringBuilder();
+		xml.append("<batches>");
+		for (Batch batch : group){
+			xml.append("<batch product=\"");
+			escape(batch.product, xml);
+			xml.append("\" edition=\"");
+			escape(batch.edition, xml);
+			xml.append("\" filename=\"");
+			escape(batch.filename, xml);
+			xml.append("\" batch-id=\"");
+			escape(batch.batchId, xml);
+			xml.append("\" token=\"");
+			escape(batch.token, xml);
+			xml.append(batch.trees ? "\" payload=\"trees\">" : "\" payload=\"records\">");
+			escape(batch.phrases, xml);
+			xml.append("</batch>");
+		}
+		xml.append("</batches>");
+		try {
+			ResultSequence rs = queryer.insertPhraseBatches(xml.toString());
+			int next = 0;
+			while (rs.hasNext() && next < group.size()){
+				String item = rs.next().asString();
+				if (item.startsWith(BATCH_OK + "\t")){
+					String[] fields = item.split("\t");
+					int[] counts = new int[fields.length - 1];
+					for (int i=0; i < counts.length; i++){
+						counts[i] = Integer.parseInt(fields[i + 1]);
+					}
+					group.get(next++).counts = counts;
+				} else if (item.startsWith(BATCH_ERROR + "\t")){
+					group.get(next++).requestException = new RequestException(item.substring(BATCH_ERROR.length() + 1), null);
+				}
+			}
+			for (int i=next; i < group.size(); i++){
+				group.get(i).ioException = new IOException("no result for batch " + group.get(i).batchId + " of "
+						+ group.get(i).filename);
+			}
+		} catch (RequestException e){
+			for (Batch batch : group){
+				batch.requestException = e;
+			}
+		} catch (IOException e){
+			for (Batch batch : group){
+				batch.ioException = e;
+			}
+		} catch (RuntimeException e){
+			for (Batch batch : group){
+				batch.ioException = new IOException("insert failed: " + e, e);
+			}
+		} finally {
+			lock.lock();
+			try {
+				for (Batch batch : group){
+					batch.done = true;
+				}
+				sent.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+		logger.trace("inserted " + group.size() + " batches in one request");
+	}
+
+	/**
+	 * Appends text to xml, escaped for use in element content or a quoted attribute value
+	 */
+	private static void escape(String text, StringBuilder xml){
+		for (int i=0; i < text.length(); i++){
+			char c = text.charAt(i);
+			switch (c){
+			case '&': xml.append("&amp;"); break;
+			case '<': xml.append("&lt;"); break;
+			case '>': xml.append("&gt;"); break;
+			case '"': xml.append("&quot;"); break;
+			default: xml.append(c);
+			}
+		}
+	}
+
+	@Override
+	public String toString(){
+		long sent = requests.get();
+		return batches.get() + " batches inserted in " + sent + " requests"
+				+ (sent == 0 ? "" : " (" + String.format("%.1f", batches.get() / (double) sent) + " per request)");
+	}
+
+	/**
+	 * A batch's phrase records or parse trees, and once it has been sent, its result
+	 */
+	private static class Batch {
+
+		/**phrase records, or parse trees if trees is set*/
+		final String phrases;
+		/**true if phrases holds parse trees, which the phrases are built from in MarkLogic*/
+		final boolean trees;
+		final String product;
+		final String edition;
+		final String filename;
+		final String batchId;
+		final String token;
+		/**identifies the batch's document*/
+		final String document;
+		/**true while the batch is in the pending group*/
+		boolean pending = false;
+		/**true once the batch has been sent and its result recorded*/
+		boolean done = false;
+		int[] counts;
+		RequestException requestException;
+		IOException ioException;
+
+		Batch(String phrases, boolean trees, String product, String edition, String filename, String batchId, String token){
+			this.phrases = phrases;
+			this.trees = trees;
+			this.product = product;
+			this.edition = edition;
+			this.filename = filename;
+			this.batchId = batchId;
+			this.token = token;
+			this.document = product + "\n" + edition + "\n" + filename;
+		}
+
+	}
+
+}
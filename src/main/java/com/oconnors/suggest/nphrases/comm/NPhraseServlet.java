@@ -1,6 +1,11 @@
 package com.oconnors.suggest.nphrases.comm;
 
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URLDecoder;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.servlet.ServletConfig;
@@ -14,7 +19,11 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.oconnors.suggest.nphrases.parse.NlpModels;
+import com.oconnors.suggest.nphrases.parse.ParseConfig;
 import com.oconnors.suggest.nphrases.parse.ParseDriver;
+import com.oconnors.suggest.nphrases.parse.ParseJob;
+import com.oconnors.suggest.nphrases.parse.SaturatedException;
 import com.oconnors.suggest.nphrases.comm.Queryer;
 
 /**
@@ -26,6 +35,8 @@ public class NPhraseServlet extends HttpServlet {
 	final static Logger logger = LogManager.getLogger(NPhraseServlet.class.getName());
 
 	private static final long serialVersionUID = 5507600060595567531L;
+	/**seconds after which to ask again whether the models are ready*/
+	private static final int READY_RETRY_AFTER = 5;
 	private ServletContext context;
 	private boolean shutdown;
 
@@ -41,6 +52,16 @@ public class NPhraseServlet extends HttpServlet {
 		super.init(config);
 		context = config.getServletContext();
 		shutdown = false;
+		//tuning settings: read before any parse class is loaded
+		Enumeration<String> names = config.getInitParameterNames();
+		while (names.hasMoreElements()){
+			String name = names.nextElement();
+			ParseConfig.set(name, config.getInitParameter(name));
+		}
+		//load the models in the background rather than on the first request
+		if (Boolean.parseBoolean(ParseConfig.get("models.preload", "true"))){
+			NlpModels.start();
+		}
 	}
 
 	@Override
@@ -55,7 +76,15 @@ public class NPhraseServlet extends HttpServlet {
 	 * product: product containing document
 	 * xcc-url: address:port for MarkLogic 
 	 * token: authorization token
-	 * returns after queueing task to handle request, with no response
+	 * parse-mode (optional): pcfg, chunk, or auto; see DocumentParse.getParseStrategy
+	 * returns after queueing task to handle request, with no response,
+	 * 	or 503 with Retry-After if too many documents are in progress
+	 * 
+	 * job: id of a bulk job (see doPost); returns the job's progress as JSON, after cancelling it if cancel is given
+	 * jobs: returns the progress of all running and recently finished jobs as a JSON array
+	 * metrics: returns the pipeline's metrics in the Prometheus text format; see ParseDriver.metrics
+	 * ready: returns the state of the models as JSON (see NlpModels): 200 once they are loaded and warmed up,
+	 * 	503 with Retry-After while they are loading, 500 if they could not be loaded
 	 */
 	@Override
 	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
@@ -68,6 +97,49 @@ public class NPhraseServlet extends HttpServlet {
       return;
     }
 
+    if (parameters.containsKey("ready")) {
+      String state = NlpModels.getState();
+      if (state.equals(NlpModels.FAILED)) {
+        response.setStatus(500);
+      } else if (!state.equals(NlpModels.READY)) {
+        response.setStatus(503);
+        response.setHeader("Retry-After", Integer.toString(READY_RETRY_AFTER));
+      }
+      response.setContentType("application/json");
+      response.getWriter().print(NlpModels.toJSON());
+      return;
+    }
+
+    if (parameters.containsKey("metrics")) {
+      response.setContentType("text/plain; version=0.0.4");
+      response.getWriter().print(ParseDriver.metrics());
+      return;
+    }
+
+    if (parameters.containsKey("job")) {
+      String id = parameters.get("job")[0];
+      ParseJob job = parameters.containsKey("cancel") ? ParseDriver.cancelJob(id) : ParseDriver.getJob(id);
+      if (job == null) {
+        response.sendError(404, "no such job");
+        return;
+      }
+      response.setContentType("application/json");
+      response.getWriter().print(job.toJSON());
+      return;
+    }
+    if (parameters.containsKey("jobs")) {
+      response.setContentType("application/json");
+      PrintWriter out = response.getWriter();
+      out.print("[");
+      String separator = "";
+      for (ParseJob job : ParseDriver.getJobs()) {
+        out.print(separator + job.toJSON());
+        separator = ",";
+      }
+      out.print("]");
+      return;
+    }
+
 		if (shutdown){
 			response.sendError(403, "Servlet is shutting down. This may be because the application is being redeployed.");
 			return;
@@ -117,17 +189,141 @@ public class NPhraseServlet extends HttpServlet {
         response.sendError(400, "no token given");
         return;
       }
+      String parseMode = null;
+      if (parameters.containsKey("parse-mode")){
+        parseMode = parameters.get("parse-mode")[0];
+      }
       try {
         String[] queryPaths = Queryer.getBasePaths();
         String[] warPaths = new String[queryPaths.length];
         for (int i=0; i<queryPaths.length; i++){
           warPaths[i] = context.getRealPath(queryPaths[i]);
         }
-        ParseDriver.process(filename, product, edition, xccCredentials, xccUrl, token, warPaths);
+        ParseDriver.process(filename, product, edition, xccCredentials, xccUrl, token, parseMode, warPaths);
+      } catch (SaturatedException e) {
+        refuse(e, response);
+      } catch (IllegalArgumentException e) {
+        response.sendError(400, e.getMessage());
       } catch (IOException e) {
         logger.error(e.getMessage());
         response.sendError(500, e.getMessage());
       } 
     }
   }
+
+	/**
+	 * Handle POST request starting a bulk job, with parameters product, edition, xcc-url, xcc-credentials, and token
+	 * as for GET, and a body listing the documents' filenames: see DocumentListReader
+	 * parse-mode (optional): pcfg, chunk, or auto; see DocumentParse.getParseStrategy
+	 * Parameters are read from the query string only: a form-encoded body would be consumed by the container
+	 * as parameters, so it is refused with 415
+	 * returns 202 with the job's progress as JSON as soon as the list is read; poll with GET ?job=id.
+	 * 	returns 429 with Retry-After if too many jobs are running
+	 */
+	@Override
+	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+
+		if (shutdown){
+			response.sendError(403, "Servlet is shutting down. This may be because the application is being redeployed.");
+			return;
+		}
+		String contentType = request.getContentType();
+		if (contentType != null && (contentType.startsWith("application/x-www-form-urlencoded") 
+				|| contentType.startsWith("multipart/form-data"))){
+			response.sendError(415, "the document list must not be sent as a form (" + contentType + "): send it as "
+					+ "text/plain, application/x-ndjson or application/xml, e.g. curl -H \"Content-Type: text/plain\" --data-binary @documents.txt");
+			return;
+		}
+		//never request.getParameter: for some content types the container reads the body to find parameters
+		Map<String, String> parameters;
+		try {
+			parameters = queryParameters(request.getQueryString());
+		} catch (IllegalArgumentException e){
+			response.sendError(400, "malformed query string: " + e.getMessage());
+			return;
+		}
+		for (String name : new String[]{"product", "edition", "xcc-url", "xcc-credentials", "token"}){
+			if (parameters.get(name) == null){
+				response.sendError(400, "no " + name + " specified in the query string");
+				return;
+			}
+		}
+		String product = parameters.get("product");
+		String edition = parameters.get("edition");
+		String xccUrl = parameters.get("xcc-url");
+		String xccCredentials = parameters.get("xcc-credentials");
+		String token = parameters.get("token");
+		if (!xccUrl.contains(":")){ //just the port; use addr of request
+			xccUrl = request.getRemoteAddr() + ":" + xccUrl;
+		}
+		String parseMode = parameters.get("parse-mode");
+
+		List<String> filenames;
+		try {
+			filenames = DocumentListReader.read(request.getReader(), contentType);
+		} catch (IOException e){
+			response.sendError(400, e.getMessage());
+			return;
+		}
+		if (filenames.isEmpty()){
+			response.sendError(400, "no documents listed");
+			return;
+		}
+		try {
+			String[] queryPaths = Queryer.getBasePaths();
+			String[] warPaths = new String[queryPaths.length];
+			for (int i=0; i<queryPaths.length; i++){
+				warPaths[i] = context.getRealPath(queryPaths[i]);
+			}
+			ParseJob job = ParseDriver.submitJob(filenames, product, edition, xccCredentials, xccUrl, token, parseMode, warPaths);
+			logger.info("job " + job.getId() + " submitted: " + filenames.size() + " documents");
+			response.setStatus(202);
+			response.setHeader("Location", request.getRequestURI() + "?job=" + job.getId());
+			response.setContentType("application/json");
+			response.getWriter().print(job.toJSON());
+		} catch (SaturatedException e) {
+			refuse(e, response);
+		} catch (IllegalArgumentException e) {
+			response.sendError(400, e.getMessage());
+		} catch (IOException e) {
+			logger.error(e.getMessage());
+			response.sendError(500, e.getMessage());
+		}
+	}
+
+	/**
+	 * Parses a query string
+	 * @param query		the query string of a request, or null
+	 * @return the first value of each parameter, by name
+	 * @throws IllegalArgumentException if the query string is not URL-encoded
+	 */
+	private static Map<String, String> queryParameters(String query) throws IOException {
+		Map<String, String> parameters = new HashMap<String, String>();
+		if (query == null){
+			return parameters;
+		}
+		for (String pair : query.split("&")){
+			if (pair.isEmpty()){
+				continue;
+			}
+			int eq = pair.indexOf('=');
+			String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+			String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+			if (!parameters.containsKey(name)){
+				parameters.put(name, value);
+			}
+		}
+		return parameters;
+	}
+
+	/**
+	 * Refuses a request the service has no room for: 429 if too many bulk jobs are running,
+	 * 503 if too much work is queued, with the seconds after which it is worth retrying
+	 */
+	private static void refuse(SaturatedException e, HttpServletResponse response) throws IOException {
+		logger.warn("refused: " + e.getMessage());
+		response.setHeader("Retry-After", Integer.toString(e.getRetryAfter()));
+		response.sendError(e.isJobLimit() ? 429 : 503, e.getMessage());
+	}
+
 }
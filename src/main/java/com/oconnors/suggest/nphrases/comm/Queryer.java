@@ -1,11 +1,15 @@
 package com.oconnors.suggest.nphrases.comm;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.HashMap;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -13,11 +17,15 @@ import org.apache.logging.log4j.Logger;
 import com.marklogic.xcc.ContentSource;
 import com.marklogic.xcc.ContentSourceFactory;
 import com.marklogic.xcc.Request;
+import com.marklogic.xcc.RequestOptions;
 import com.marklogic.xcc.ResultSequence;
 import com.marklogic.xcc.Session;
 import com.marklogic.xcc.exceptions.RequestException;
+import com.marklogic.xcc.exceptions.ServerConnectionException;
 import com.marklogic.xcc.exceptions.XccConfigException;
 import com.marklogic.xcc.types.ValueType;
+import com.oconnors.suggest.nphrases.parse.ParseConfig;
+import com.oconnors.suggest.nphrases.parse.ParsePipeline;
 
 public class Queryer {
 	
@@ -34,13 +42,80 @@ public class Queryer {
 	 * inserts them into the database*/
 	private static final String NPHRASES_QUERY = "queries/nphrases.xqy";
 	private String realNPhraseQueryPath;
+	/**location of source code for a query that inserts phrases extracted by the service*/
+	private static final String INSERT_PHRASES_QUERY = "queries/nphrases-insert.xqy";
+	private String realInsertPhrasesQueryPath;
+	/**location of source code for a query that generates nphrases from parse trees without inserting them*/
+	private static final String BUILD_PHRASES_QUERY = "queries/nphrases-build.xqy";
+	private String realBuildPhrasesQueryPath;
+	/**location of source code for a query that inserts the phrases of several batches*/
+	private static final String INSERT_BATCHES_QUERY = "queries/nphrases-insert-batches.xqy";
+	private String realInsertBatchesQueryPath;
 
 	/**caches loaded query code*/
-	private HashMap<String, String> queryMap;
+	private ConcurrentHashMap<String, String> queryMap;
+
+	/**query modes: queries are installed as modules and invoked, or sent as ad-hoc queries*/
+	public static final String QUERY_MODE_MODULE = "module";
+	public static final String QUERY_MODE_ADHOC = "adhoc";
+	/**installs a query as a module in the modules database of the app server (see INSTALL_MODULE).
+	 * Returns OK, or FILESYSTEM if the app server reads modules from the filesystem*/
+	private static final String INSTALL_MODULE_QUERY = 
+			"xquery version \"1.0-ml\";\n"
+			+ "declare variable $install as xs:string external;\n"
+			+ "declare variable $uri as xs:string external;\n"
+			+ "declare variable $source as xs:string external;\n"
+			+ "declare variable $prefix as xs:string external;\n"
+			+ "declare variable $roles as xs:string external;\n"
+			+ "if (xdmp:modules-database() eq 0) then 'FILESYSTEM' else (\n"
+			+ "  xdmp:eval($install,\n"
+			+ "    (xs:QName('uri'), $uri, xs:QName('source'), $source, xs:QName('prefix'), $prefix, xs:QName('roles'), $roles),\n"
+			+ "    <options xmlns=\"xdmp:eval\"><database>{xdmp:modules-database()}</database></options>),\n"
+			+ "  'OK')\n";
+	/**run in the modules database: inserts a query as a module, unless it is already there, readable and executable
+	 * by the given roles (comma separated) or, if there are none, by the roles of the user installing it. Modules of
+	 * older versions of the query (the same prefix followed by another checksum) are deleted*/
+	private static final String INSTALL_MODULE = 
+			"xquery version \"1.0-ml\";\n"
+			+ "declare namespace sec = \"http://marklogic.com/xdmp/security\";\n"
+			+ "declare variable $uri as xs:string external;\n"
+			+ "declare variable $source as xs:string external;\n"
+			+ "declare variable $prefix as xs:string external;\n"
+			+ "declare variable $roles as xs:string external;\n"
+			+ "if (fn:doc-available($uri)) then () else (\n"
+			+ "  xdmp:document-insert($uri, text {$source},\n"
+			+ "    if ($roles eq \"\") then\n"
+			+ "      for $role in xdmp:get-current-roles(), $capability in (\"read\", \"execute\")\n"
+			+ "      return <sec:permission><sec:capability>{$capability}</sec:capability><sec:role-id>{$role}</sec:role-id></sec:permission>\n"
+			+ "    else\n"
+			+ "      for $role in fn:tokenize($roles, \"\\s*,\\s*\")[. ne \"\"], $capability in (\"read\", \"execute\")\n"
+			+ "      return xdmp:permission($role, $capability)),\n"
+			+ "  for $old in xdmp:directory(fn:replace($prefix, \"[^/]*$\", \"\"), \"1\")/xdmp:node-uri(.)\n"
+			+ "  where $old ne $uri and fn:starts-with($old, $prefix)\n"
+			+ "    and fn:matches(fn:substring-after($old, $prefix), \"^[0-9a-f]+\\.xqy$\")\n"
+			+ "  return xdmp:document-delete($old))\n";
+	/**most batches inserted in one request by default, if there are as many insert threads*/
+	private static final int MAX_INSERT_BATCHES = 16;
+	/**true if queries are installed as modules and invoked*/
+	private boolean useModules;
+	/**directory in the modules database that queries are installed in*/
+	private String modulesRoot;
+	/**roles that can read and execute installed queries, comma separated; empty for the roles of the user*/
+	private String modulesRoles;
+	/**module URIs of installed queries, by query file; queries that cannot be installed map to ""*/
+	private ConcurrentHashMap<String, String> moduleMap;
 
 	/** describes the current MarkLogic server instance and serves as a factory that 
 	 * creates session objects*/
 	private ContentSource contentSource;
+	/**sessions used to run queries, reused across queries*/
+	private SessionPool sessions;
+	/**puts the phrase records of several batches into one insert request, or null to insert each batch on its own*/
+	private InsertAggregator inserts;
+	/**queries that failed because the connection to MarkLogic failed*/
+	private final AtomicLong connectionErrors = new AtomicLong(0);
+	/**queries that failed in MarkLogic, including queries that returned ERROR*/
+	private final AtomicLong requestErrors = new AtomicLong(0);
 	
 	/**URL for MarkLogic server on which to execute queries*/
 	private String xccUrl;
@@ -63,11 +138,42 @@ public class Queryer {
 		}
 		realDocQueryPath = paths[0];
 		realNPhraseQueryPath = paths[1];
-		queryMap = new HashMap<String, String>(5);
+		realInsertPhrasesQueryPath = paths[2];
+		realBuildPhrasesQueryPath = paths[3];
+		realInsertBatchesQueryPath = paths[4];
+		queryMap = new ConcurrentHashMap<String, String>(5);
+		moduleMap = new ConcurrentHashMap<String, String>(5);
+		useModules = ParseConfig.get("xcc.query.mode", QUERY_MODE_ADHOC).equals(QUERY_MODE_MODULE);
+		modulesRoot = ParseConfig.get("xcc.modules.root", "/nphrases-service/");
+		modulesRoles = ParseConfig.get("xcc.modules.roles", "");
+		//each insert thread waits until its batch is sent, so a group can never hold more batches than there are
+		//insert threads: a larger group would only be sent after xcc.insert.delay.ms, every time
+		int insertThreads = ParsePipeline.getIOThreads("pipeline.insert.threads");
+		int insertBatches = ParseConfig.getInt("xcc.insert.batches", 0);
+		if (insertBatches <= 0){
+			insertBatches = Math.min(MAX_INSERT_BATCHES, insertThreads);
+		} else if (insertBatches > insertThreads){
+			logger.warn("xcc.insert.batches " + insertBatches + " is more than the " + insertThreads 
+					+ " insert threads: inserting at most " + insertThreads + " batches at once");
+			insertBatches = insertThreads;
+		}
+		if (insertBatches > 1){
+			inserts = new InsertAggregator(this, insertBatches, ParseConfig.getLong("xcc.insert.chars", 4 << 20),
+					ParseConfig.getLong("xcc.insert.delay.ms", 20));
+		}
 		URI serverURI;
 		try {
 			serverURI = new URI(serverUri);
 			contentSource = ContentSourceFactory.newContentSource(serverURI);
+			//fetch threads keep their session while they stream a batch, so there must be enough for every
+			//fetch and insert thread or inserts could wait on fetches that are waiting on them
+			int poolSize = ParseConfig.getInt("xcc.pool.size", 0);
+			if (poolSize <= 0){
+				poolSize = ParsePipeline.getIOThreads("pipeline.fetch.threads") + ParsePipeline.getIOThreads("pipeline.insert.threads");
+			}
+			sessions = new SessionPool(contentSource, poolSize, 
+					ParseConfig.getLong("xcc.pool.wait.ms", 30000), ParseConfig.getLong("xcc.pool.idle.ms", 60000),
+					ParseConfig.getLong("xcc.pool.validate.ms", 30000));
 		} catch (URISyntaxException e) {
 			e.printStackTrace();
 		} catch (XccConfigException e) {
@@ -86,7 +192,26 @@ public class Queryer {
 	
 
 	/**
-	 * Loads the text of an xqy script and executes it using XCC
+	 * Gets the pool of sessions this queryer runs queries with
+	 * @return this queryer's session pool
+	 */
+	public SessionPool getSessionPool() {
+		return sessions;
+	}
+
+	/**
+	 * Closes this queryer's idle sessions
+	 */
+	public void close() {
+		if (sessions != null){
+			sessions.close();
+		}
+	}
+
+	/**
+	 * Loads the text of an xqy script and executes it using a pooled XCC session.
+	 * In module mode, the script is installed as a module the first time it runs and invoked 
+	 * from then on; scripts that cannot be installed are sent as ad-hoc queries
 	 * @param querypath		filename of script to execute
 	 * @param vars			names of external variables of xqy script
 	 * @param varTypes		types of external variables,
@@ -102,20 +227,75 @@ public class Queryer {
 	public ResultSequence runQuery(String querypath, String[] vars, ValueType varTypes[], Object[] values)
 			throws IOException, RequestException{
 
+		return runQuery(querypath, vars, varTypes, values, null);
+
+	}
+
+	/**
+	 * Runs a query like runQuery(querypath, vars, varTypes, values), optionally streaming the results:
+	 * if a handler is given, the results are not buffered but passed to the handler as they arrive,
+	 * and the session is kept until the handler has seen all of them
+	 * @param handler		receives the results, or null to return them buffered
+	 * @return The results of the query, as a ResultSequence, or null if they were streamed to the handler
+	 * @throws IOException	if the handler throws IOException
+	 * @throws RequestException
+	 */
+	public ResultSequence runQuery(String querypath, String[] vars, ValueType varTypes[], Object[] values,
+			ResultHandler handler) throws IOException, RequestException{
+
 		if (vars.length != varTypes.length || vars.length != values.length) {
 			throw new IllegalArgumentException("Arrays vars, varTypes, and values must all have the same length");
 		}
-		ResultSequence rs;
-		Session session = contentSource.newSession();
+		ResultSequence rs = null;
 		String query = loadQuery(querypath);
-		Request req = session.newAdhocQuery(query);
-		for (int i=0; i < vars.length; i++){
-			req.setNewVariable(vars[i], varTypes[i], values[i]);
+		String module = useModules ? getModule(querypath, query) : null;
+		Session session = sessions.borrow();
+		Request req = null;
+		boolean healthy = false;
+		boolean retry = false;
+		try {
+			if (module != null){
+				req = session.newModuleInvoke(module);
+			} else {
+				req = session.newAdhocQuery(query);
+			}
+			if (handler != null){
+				RequestOptions options = new RequestOptions();
+				options.setCacheResult(false);
+				req.setOptions(options);
+			}
+			for (int i=0; i < vars.length; i++){
+				req.setNewVariable(vars[i], varTypes[i], values[i]);
+			}
+			rs = session.submitRequest(req);
+			if (handler != null){
+				stream(rs, req, handler);
+			}
+			healthy = true;
+		} catch (RequestException e){
+			//a session that lost its connection is not reused
+			healthy = !(e instanceof ServerConnectionException);
+			if (module != null && e.getMessage() != null && e.getMessage().contains("XDMP-MODNOTFOUND")){
+				//the module was installed where the app server does not look for it: stop using it
+				logger.warn("module " + module + " not found, sending " + querypath + " as an ad-hoc query");
+				moduleMap.put(querypath, "");
+				retry = true;
+			} else {
+				(healthy ? requestErrors : connectionErrors).incrementAndGet();
+				throw e;
+			}
+		} finally {
+			sessions.release(session, healthy);
+		}
+		if (retry){
+			return runQuery(querypath, vars, varTypes, values, handler);
+		}
+		if (handler != null){
+			return null;
 		}
-		rs = session.submitRequest(req);
-		session.close();
 		
 		if (rs.size()==2 && rs.itemAt(0).asString().equals("ERROR")){
+			requestErrors.incrementAndGet();
 			throw new RequestException(rs.itemAt(1).asString(), req);
 		}
 		
@@ -123,6 +303,38 @@ public class Queryer {
 
 	}
 	
+	/**
+	 * Passes the items of a result to a handler as they arrive, then closes the result.
+	 * A result of exactly two items, the first of which is ERROR, is a failed query: 
+	 * it throws RequestException instead
+	 * @throws IOException
+	 * @throws RequestException
+	 */
+	private void stream(ResultSequence rs, Request req, ResultHandler handler) throws IOException, RequestException{
+
+		try {
+			if (!rs.hasNext()){
+				return;
+			}
+			String first = rs.next().asString();
+			if (first.equals("ERROR") && rs.hasNext()){
+				String second = rs.next().asString();
+				if (!rs.hasNext()){
+					throw new RequestException(second, req);
+				}
+				handler.item(first);
+				handler.item(second);
+			} else {
+				handler.item(first);
+			}
+			while (rs.hasNext()){
+				handler.item(rs.next().asString());
+			}
+		} finally {
+			rs.close();
+		}
+	}
+
 	/**
 	 * Convenience method for running a query that has only 1 external variable
 	 * @param querypath
@@ -146,17 +358,31 @@ public class Queryer {
 	 * @param fileuri	the URI of the document in the database
 	 * @param token		authorization token
 	 * @param batchId	batch number being requested
-	 * @return			A ResultSequence whose first entry is the batch id of the next batch of sentences
-	 * 					 or -1 if this was the last batch, 
-	 * 					and whose other entries are sentences from the document as <p> elements
+	 * @return			A ResultSequence whose entries are sentences from the document, after, for batch 0,
+	 * 					 the number of batches in the document and the version of the document
 	 * @throws RequestException
 	 * @throws IOException
 	 */
 	public ResultSequence documentGet(String product, String edition, String filename, String token, int batchId) throws RequestException, IOException{
 
+		return documentGet(product, edition, filename, token, batchId, null);
+
+	}
+
+	/**
+	 * Gets a batch of the specified document's sentences, streaming them to a handler as they arrive
+	 * (see documentGet(product, edition, filename, token, batchId) for the items)
+	 * @param handler	receives the items, or null to return them buffered
+	 * @return			the items, or null if they were streamed to the handler
+	 * @throws RequestException
+	 * @throws IOException
+	 */
+	public ResultSequence documentGet(String product, String edition, String filename, String token, int batchId, 
+			ResultHandler handler) throws RequestException, IOException{
+
 		return runQuery(realDocQueryPath, new String[]{"product", "edition", "filename", "token", "batch-id"}, 
 				 new ValueType[]{ValueType.XS_STRING, ValueType.XS_STRING, ValueType.XS_STRING, ValueType.XS_STRING, ValueType.XS_INTEGER},
-				 new Object[]{product, edition, filename, new String(token), batchId});
+				 new Object[]{product, edition, filename, new String(token), batchId}, handler);
 
 	}
 	
@@ -183,6 +409,175 @@ public class Queryer {
 	
 	}
 
+	/**
+	 * Generates nphrases from parse trees and inserts them (see doNPhrases). Unless xcc.insert.batches is 1,
+	 * the trees are sent together with the trees or phrase records of other batches (see InsertAggregator)
+	 * @return			the respective counts of the nphrase1, nphrase2, and vphrase1 objects
+	 * @throws IOException
+	 * @throws RequestException
+	 */
+	public int[] generateNPhrases(String xmltree, String product, String edition, String filename, String batchId, String token) 
+			throws IOException, RequestException{
+		
+		if (inserts != null){
+			return inserts.generate(xmltree, product, edition, filename, batchId, token);
+		}
+		ResultSequence rs = doNPhrases(xmltree, product, edition, filename, batchId, token);
+		int[] counts = new int[3];
+		for (int i=0; i < counts.length; i++){
+			counts[i] = Integer.parseInt(rs.itemAt(i).asString());
+		}
+		return counts;
+	
+	}
+
+	/**
+	 * Inserts phrases that have already been extracted from parse trees. Unless xcc.insert.batches is 1,
+	 * the phrases are sent together with those of other batches (see InsertAggregator)
+	 * @param phrases	phrase records, one per line: type, a tab, then the phrase text (see PhraseExtractor)
+	 * @param product	product containing the document these nphrases are associated with
+	 * @param batchId	batch number being processed
+	 * @param token		authorization token
+	 * @return			the respective counts of the nphrase1, nphrase2, and vphrase1 objects
+	 * @throws IOException
+	 * @throws RequestException
+	 */
+	public int[] insertPhrases(String phrases, String product, String edition, String filename, String batchId, String token) 
+			throws IOException, RequestException{
+		
+		if (inserts != null){
+			return inserts.insert(phrases, product, edition, filename, batchId, token);
+		}
+		ResultSequence rs = runQuery(realInsertPhrasesQueryPath, new String[]{"phrases", "product", "edition", "filename", "batch-id", "token"}, 
+				 new ValueType[]{ValueType.XS_STRING, ValueType.XS_STRING, ValueType.XS_STRING, ValueType.XS_STRING,
+					ValueType.XS_STRING, ValueType.XS_STRING},
+				 new Object[]{phrases, product, edition, filename, batchId, token});
+		int[] counts = new int[3];
+		for (int i=0; i < counts.length; i++){
+			counts[i] = Integer.parseInt(rs.itemAt(i).asString());
+		}
+		return counts;
+	
+	}
+
+	/**
+	 * Inserts the phrases of several batches in one request, from their phrase records or parse trees
+	 * @param batches	the batches, as xml: see nphrases-insert-batches.xqy
+	 * @return			A ResultSequence with one result per batch, in order: BATCH-OK and the counts of
+	 * 					 the batch's nphrase1, nphrase2, and vphrase1 objects, or BATCH-ERROR and an error code,
+	 * 					 separated by tabs. Other items may come between them
+	 * @throws IOException
+	 * @throws RequestException if the whole request failed
+	 */
+	public ResultSequence insertPhraseBatches(String batches) throws IOException, RequestException{
+		
+		return runQuery(realInsertBatchesQueryPath, "batches", ValueType.XS_STRING, batches);
+	
+	}
+
+	/**
+	 * @return the number of queries that failed because the connection to MarkLogic failed
+	 */
+	public long getConnectionErrors() {
+		return connectionErrors.get();
+	}
+
+	/**
+	 * @return the number of queries that failed in MarkLogic, including queries that returned ERROR
+	 */
+	public long getRequestErrors() {
+		return requestErrors.get();
+	}
+
+	/**
+	 * Gets the aggregator that puts the phrases of several batches into one insert request
+	 * @return this queryer's insert aggregator, or null if batches are inserted on their own
+	 */
+	public InsertAggregator getInsertAggregator() {
+		return inserts;
+	}
+
+	/**
+	 * Generates nphrases from parse trees without inserting them
+	 * @param xmltree	Properly formatted xml containing this batches' parse trees
+	 * @return			A ResultSequence of three strings: the nphrase1, nphrase2, and vphrase1 phrases,
+	 * 					 one per line
+	 * @throws IOException
+	 * @throws RequestException
+	 */
+	public ResultSequence buildPhrases(String xmltree) throws IOException, RequestException{
+		
+		return runQuery(realBuildPhrasesQueryPath, "docstr", ValueType.XS_STRING, xmltree);
+	
+	}
+
+	/**
+	 * Gets the URI of the module a query is installed as, installing it the first time
+	 * @param querypath		filename of the query
+	 * @param query			source code of the query
+	 * @return the module URI, or null if the query cannot be installed
+	 * @throws IOException
+	 */
+	private String getModule(String querypath, String query) throws IOException{
+
+		String module = moduleMap.get(querypath);
+		if (module == null){
+			module = installModule(querypath, query);
+			if (module == null){
+				return null;
+			}
+			String installed = moduleMap.putIfAbsent(querypath, module);
+			if (installed != null){
+				module = installed;
+			}
+		}
+		return module.isEmpty() ? null : module;
+	}
+
+	/**
+	 * Installs a query as a module. The module URI includes a checksum of the source, 
+	 * so a changed query is installed as a new module, and the modules of its older versions are deleted
+	 * @param querypath		filename of the query
+	 * @param query			source code of the query
+	 * @return the module URI, "" if the query cannot be installed, or null if installing it should be retried later
+	 * @throws IOException
+	 */
+	private String installModule(String querypath, String query) throws IOException{
+
+		CRC32 crc = new CRC32();
+		crc.update(query.getBytes(Charset.forName("UTF-8")));
+		String name = new File(querypath).getName().replaceFirst("\\.xqy$", "");
+		String prefix = modulesRoot + name + "-";
+		String uri = prefix + Long.toHexString(crc.getValue()) + ".xqy";
+		Session session = sessions.borrow();
+		boolean healthy = false;
+		try {
+			Request req = session.newAdhocQuery(INSTALL_MODULE_QUERY);
+			req.setNewStringVariable("install", INSTALL_MODULE);
+			req.setNewStringVariable("uri", uri);
+			req.setNewStringVariable("source", query);
+			req.setNewStringVariable("prefix", prefix);
+			req.setNewStringVariable("roles", modulesRoles);
+			String result = session.submitRequest(req).asString();
+			healthy = true;
+			if (!result.equals("OK")){
+				logger.warn("cannot install modules (" + result + "), sending " + querypath + " as an ad-hoc query");
+				return "";
+			}
+			logger.info("installed " + querypath + " as " + uri);
+			return uri;
+		} catch (ServerConnectionException e){
+			logger.warn("could not install " + querypath + ": " + e.getMessage());
+			return null;
+		} catch (RequestException e){
+			healthy = true;
+			logger.warn("could not install " + querypath + ", sending it as an ad-hoc query: " + e.getMessage());
+			return "";
+		} finally {
+			sessions.release(session, healthy);
+		}
+	}
+
 	/**
 	 * Load the source code of a query from file
 	 * @param queryFile		filename of query file
@@ -212,7 +607,8 @@ public class Queryer {
 	}
 
 	public static String[] getBasePaths() {
-		return new String[]{WAR_PREFIX + DOC_QUERY, WAR_PREFIX + NPHRASES_QUERY};
+		return new String[]{WAR_PREFIX + DOC_QUERY, WAR_PREFIX + NPHRASES_QUERY, 
+				WAR_PREFIX + INSERT_PHRASES_QUERY, WAR_PREFIX + BUILD_PHRASES_QUERY, WAR_PREFIX + INSERT_BATCHES_QUERY};
 	}
 
 }
@@ -0,0 +1,17 @@
+package com.oconnors.suggest.nphrases.comm;
+
+import java.io.IOException;
+
+/**
+ * Receives the items of a streamed query result one at a time, as they arrive from MarkLogic
+ */
+public interface ResultHandler {
+
+	/**
+	 * Handles the next item of the result
+	 * @param item		the item, as a string
+	 * @throws IOException
+	 */
+	void item(String item) throws IOException;
+
+}
@@ -0,0 +1,249 @@
+package com.oconnors.suggest.nphrases.comm;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.marklogic.xcc.ContentSource;
+import com.marklogic.xcc.Session;
+import com.oconnors.suggest.nphrases.parse.LatencyHistogram;
+
+/**
+ * Bounded pool of XCC sessions, so that queries reuse sessions instead of opening a new one each time.
+ * At most maxSessions sessions are borrowed at once: borrowers wait up to maxWait for one to be returned.
+ * Idle sessions are reused most recently returned first; sessions idle for longer than maxIdle are closed,
+ * and sessions idle for longer than validateAfter are checked with a trivial query before they are reused
+ */
+public class SessionPool {
+
+	final static Logger logger = LogManager.getLogger(SessionPool.class.getName());
+
+	/**query run to check that an idle session still works*/
+	private static final String VALIDATION_QUERY = "1";
+
+	/**source of new sessions*/
+	private final ContentSource contentSource;
+	/**most sessions borrowed at once*/
+	private final int maxSessions;
+	/**longest time to wait for a session, in milliseconds*/
+	private final long maxWait;
+	/**longest time a session is kept idle, in milliseconds*/
+	private final long maxIdle;
+	/**idle time after which a session is checked before it is reused, in milliseconds*/
+	private final long validateAfter;
+
+	/**permits to borrow a session: one per session that can be borrowed*/
+	private final Semaphore permits;
+	/**idle sessions, most recently returned first*/
+	private final LinkedBlockingDeque<IdleSession> idle = new LinkedBlockingDeque<IdleSession>();
+
+	/**time borrowers waited for a session*/
+	private final LatencyHistogram waits = new LatencyHistogram();
+	/**number of borrows that had to wait because all sessions were borrowed*/
+	private final AtomicLong exhausted = new AtomicLong(0);
+	/**number of borrows that gave up waiting*/
+	private final AtomicLong timeouts = new AtomicLong(0);
+	private final AtomicLong created = new AtomicLong(0);
+	private final AtomicLong closed = new AtomicLong(0);
+	/**number of idle sessions that failed validation*/
+	private final AtomicLong invalid = new AtomicLong(0);
+
+	/**
+	 * Constructs a new pool
+	 * @param contentSource		source of new sessions
+	 * @param maxSessions		most sessions borrowed at once
+	 * @param maxWait			longest time to wait for a session, in milliseconds
+	 * @param maxIdle			longest time a session is kept idle, in milliseconds
+	 * @param validateAfter		idle time after which a session is checked before it is reused, in milliseconds
+	 */
+	public SessionPool(ContentSource contentSource, int maxSessions, long maxWait, long maxIdle, long validateAfter){
+		this.contentSource = contentSource;
+		this.maxSessions = Math.max(1, maxSessions);
+		this.maxWait = maxWait;
+		this.maxIdle = maxIdle;
+		this.validateAfter = validateAfter;
+		this.permits = new Semaphore(this.maxSessions, true);
+	}
+
+	/**
+	 * Borrows a session, waiting for one to be returned if all sessions are borrowed.
+	 * Every borrowed session must be returned with release()
+	 * @return the session
+	 * @throws IOException if no session was returned in time, or the wait was interrupted
+	 */
+	public Session borrow() throws IOException {
+		long start = System.nanoTime();
+		try {
+			if (!permits.tryAcquire()){
+				exhausted.incrementAndGet();
+				if (!permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS)){
+					timeouts.incrementAndGet();
+					throw new IOException("timed out after " + maxWait + "ms waiting for one of " + maxSessions
+							+ " XCC sessions");
+				}
+			}
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for an XCC session");
+		} finally {
+			waits.recordNanos(System.nanoTime() - start);
+		}
+		try {
+			evictIdle();
+			IdleSession session;
+			while ((session = idle.pollFirst()) != null){
+				if (isUsable(session)){
+					return session.session;
+				}
+				close(session.session);
+			}
+			created.incrementAndGet();
+			return contentSource.newSession();
+		} catch (RuntimeException e){
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns a borrowed session to the pool
+	 * @param session		the session
+	 * @param healthy		false if the session failed in a way that may have broken it, e.g. lost its connection:
+	 * 						 it is closed instead of reused
+	 */
+	public void release(Session session, boolean healthy){
+		try {
+			if (healthy && !session.isClosed()){
+				idle.offerFirst(new IdleSession(session));
+			} else {
+				close(session);
+			}
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Closes all idle sessions; borrowed sessions are closed when they are returned
+	 */
+	public void close(){
+		IdleSession session;
+		while ((session = idle.pollLast()) != null){
+			close(session.session);
+		}
+	}
+
+	/**
+	 * @return the number of sessions currently borrowed
+	 */
+	public int getActiveCount(){
+		return maxSessions - permits.availablePermits();
+	}
+
+	/**
+	 * @return the number of idle sessions
+	 */
+	public int getIdleCount(){
+		return idle.size();
+	}
+
+	/**
+	 * @return the most sessions borrowed at once
+	 */
+	public int getMaxSessions(){
+		return maxSessions;
+	}
+
+	/**
+	 * @return the time borrowers waited for a session
+	 */
+	public LatencyHistogram getWaits(){
+		return waits;
+	}
+
+	/**
+	 * @return the number of borrows that had to wait because all sessions were borrowed
+	 */
+	public long getExhaustedCount(){
+		return exhausted.get();
+	}
+
+	/**
+	 * @return the number of borrows that gave up waiting for a session
+	 */
+	public long getTimeoutCount(){
+		return timeouts.get();
+	}
+
+	/**
+	 * Closes sessions that have been idle too long. The oldest idle sessions are at the end of the deque
+	 */
+	private void evictIdle(){
+		long now = System.currentTimeMillis();
+		IdleSession oldest;
+		while ((oldest = idle.peekLast()) != null && now - oldest.since > maxIdle){
+			if (idle.removeLastOccurrence(oldest)){
+				close(oldest.session);
+			}
+		}
+	}
+
+	/**
+	 * @return true if an idle session can be reused: it is open, and if it has been idle for a while,
+	 * 		it can still run a query
+	 */
+	private boolean isUsable(IdleSession session){
+		if (session.session.isClosed()){
+			return false;
+		}
+		if (System.currentTimeMillis() - session.since <= validateAfter){
+			return true;
+		}
+		try {
+			session.session.submitRequest(session.session.newAdhocQuery(VALIDATION_QUERY));
+			return true;
+		} catch (Exception e){
+			invalid.incrementAndGet();
+			logger.warn("idle XCC session failed validation: " + e.getMessage());
+			return false;
+		}
+	}
+
+	private void close(Session session){
+		closed.incrementAndGet();
+		try {
+			session.close();
+		} catch (RuntimeException e){
+			logger.trace("could not close XCC session: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public String toString(){
+		return getActiveCount() + "/" + maxSessions + " sessions active, " + idle.size() + " idle, " + created.get()
+				+ " created, " + closed.get() + " closed, " + invalid.get() + " failed validation, " + exhausted.get()
+				+ " waits for a session (" + timeouts.get() + " timed out); wait times: " + waits;
+	}
+
+	/**
+	 * A session in the pool, with the time it was returned
+	 */
+	private static class IdleSession {
+
+		final Session session;
+		final long since;
+
+		IdleSession(Session session){
+			this.session = session;
+			this.since = System.currentTimeMillis();
+		}
+
+	}
+
+}
@@ -0,0 +1,659 @@
+package com.oconnors.suggest.nphrases.parse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Records the progress of documents in an append-only file, so that a document requested again after a
+ * restart, a shutdown or a failure resumes where it stopped instead of starting over from batch 0.
+ * For each document it records the number of batches and the version of the document they were counted in,
+ * each batch inserted and, if payloads are kept, the parse output of each batch parsed but not yet inserted,
+ * which is then inserted without fetching or parsing the batch again. A document's records are dropped once
+ * all of its batches have been inserted, so a later request for it processes it again, as does a request
+ * after its records have reached the maximum age, or for a different version of the document. The file is
+ * compacted to the records still needed when it is opened and whenever it reaches its maximum size; a partly
+ * written record at its end is dropped.
+ * Records are written while holding a ReentrantLock rather than a monitor, so that virtual threads of the
+ * fetch and insert stages waiting on the disk do not pin their carrier threads (see PipelineStage)
+ */
+public class CheckpointJournal {
+
+	final static Logger logger = LogManager.getLogger(CheckpointJournal.class.getName());
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/**first bytes of a journal file: NPJ2, since count records carry the document's version*/
+	private static final int FILE_MAGIC = 0x4E504A32;
+	/**bytes in a record header: length (4), crc (4)*/
+	private static final int RECORD_HEADER = 8;
+
+	/**number of batches and version of a document*/
+	private static final byte COUNT = 1;
+	/**parse output of a batch*/
+	private static final byte PARSED = 2;
+	/**batch inserted*/
+	private static final byte DONE = 3;
+	/**all batches of a document inserted: its records are no longer needed*/
+	private static final byte ENDED = 4;
+
+	/**guards the file and the progress of documents*/
+	private final ReentrantLock lock = new ReentrantLock();
+	/**journal file, or null if checkpointing is disabled*/
+	private FileChannel file;
+	private final String filePath;
+	/**size of the file at which it is compacted*/
+	private final long maxFileBytes;
+	/**age in milliseconds after which a document's records are dropped*/
+	private final long maxAge;
+	/**true if parse output is recorded*/
+	private final boolean payloads;
+	/**true if each record is forced to the disk before going on*/
+	private final boolean sync;
+	/**progress of each document with records in the file, by document key*/
+	private final Map<String, Progress> documents = new HashMap<String, Progress>();
+	/**offset at which the next record is appended*/
+	private long fileEnd;
+
+	/**
+	 * @param filePath		path of the journal file, or null to disable checkpointing
+	 * @param maxFileBytes	size of the file at which it is compacted
+	 * @param maxAge		age in milliseconds after which a document's records are dropped
+	 * @param payloads		true to record the parse output of batches
+	 * @param sync			true to force each record to the disk, so that it survives a crash of the host
+	 * 						 and not only of the process
+	 */
+	public CheckpointJournal(String filePath, long maxFileBytes, long maxAge, boolean payloads, boolean sync){
+		this.filePath = filePath;
+		this.maxFileBytes = maxFileBytes;
+		this.maxAge = maxAge;
+		this.payloads = payloads;
+		this.sync = sync;
+		if (filePath != null){
+			try {
+				openFile();
+			} catch (IOException e){
+				logger.error("could not open checkpoint file " + filePath + ": " + e.getMessage());
+				closeFile();
+			}
+		}
+	}
+
+	/**
+	 * Constructs a CheckpointJournal from the checkpoint.* settings in ParseConfig
+	 */
+	public static CheckpointJournal fromConfig(){
+		return new CheckpointJournal(ParseConfig.get("checkpoint.file", null),
+				ParseConfig.getLong("checkpoint.file.size", 256L * 1024 * 1024),
+				TimeUnit.HOURS.toMillis(ParseConfig.getLong("checkpoint.max.age.hours", 24)),
+				Boolean.parseBoolean(ParseConfig.get("checkpoint.payloads", "true")),
+				Boolean.parseBoolean(ParseConfig.get("checkpoint.sync", "false")));
+	}
+
+	/**
+	 * @return the key a document's records are kept under
+	 */
+	public static String key(String filename, String product, String edition, String xccUrl){
+		return product + '\t' + edition + '\t' + filename + '\t' + xccUrl;
+	}
+
+	/**
+	 * @return true if progress is recorded
+	 */
+	public boolean isEnabled(){
+		lock.lock();
+		try {
+			return file != null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of batches recorded for a document, or -1 if none is
+	 */
+	public int getBatches(String document){
+		lock.lock();
+		try {
+			Progress progress = documents.get(document);
+			return progress == null ? -1 : progress.batches;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if a batch of a document has been inserted
+	 */
+	public boolean isDone(String document, int batchId){
+		lock.lock();
+		try {
+			Progress progress = documents.get(document);
+			return progress != null && progress.done.get(batchId);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the parse trees and phrase records recorded for a batch that has been parsed but not inserted,
+	 * 		either of which may be null, or null if there are none
+	 */
+	public String[] getParsed(String document, int batchId){
+		lock.lock();
+		try {
+			Progress progress = documents.get(document);
+			Long offset = progress == null ? null : progress.parsed.get(batchId);
+			if (offset == null){
+				return null;
+			}
+			ByteBuffer body = readRecord(offset);
+			if (body == null){
+				progress.parsed.remove(batchId);
+				return null;
+			}
+			readHeader(body);
+			return new String[]{readString(body), readString(body)};
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Starts recording the progress of a document, read from batch 0. Progress recorded for the same number of
+	 * batches and version is kept, so that the document resumes from it; progress recorded for another version
+	 * of the document is dropped. A document without a version is never resumed, and its progress not recorded
+	 * @param count		number of batches of the document
+	 * @param version	version of the document, as returned with batch 0, or null or empty if it has none
+	 * @return true if the document resumes from its recorded progress
+	 */
+	public boolean start(String document, int count, String version){
+		lock.lock();
+		try {
+			if (file == null){
+				return false;
+			}
+			Progress progress = documents.get(document);
+			boolean versioned = version != null && !version.isEmpty();
+			if (versioned && progress != null && progress.batches == count && version.equals(progress.version)){
+				return true;
+			}
+			if (progress != null){
+				logger.info("dropping progress of " + document.replace('\t', ' ') + ": recorded for version " + progress.version
+						+ " (" + progress.batches + " batches), now " + version + " (" + count + " batches)");
+				append(body(ENDED, document, -1, 0));
+				documents.remove(document);
+			}
+			if (versioned && append(countBody(document, count, version)) >= 0){
+				progress = progress(document);
+				progress.batches = count;
+				progress.version = version;
+			}
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Records the parse output of a batch, if payloads are kept
+	 * @param version	version of the document the batch was fetched from: nothing is recorded for another
+	 * 					 version than the recorded one
+	 * @param trees		parse trees, or null
+	 * @param phrases	phrase records, or null
+	 */
+	public void parsed(String document, String version, int batchId, String trees, String phrases){
+		lock.lock();
+		try {
+			if (!payloads || current(document, version) == null){
+				return;
+			}
+			byte[] treeBytes = trees == null ? null : trees.getBytes(UTF8);
+			byte[] phraseBytes = phrases == null ? null : phrases.getBytes(UTF8);
+			ByteBuffer body = body(PARSED, document, batchId, 8 + (treeBytes == null ? 0 : treeBytes.length)
+					+ (phraseBytes == null ? 0 : phraseBytes.length));
+			putBytes(treeBytes, body);
+			putBytes(phraseBytes, body);
+			long offset = append(body);
+			if (offset >= 0){
+				progress(document).parsed.put(batchId, offset);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Records that a batch has been inserted
+	 * @param version	version of the document the batch was fetched from: nothing is recorded for another
+	 * 					 version than the recorded one
+	 */
+	public void done(String document, String version, int batchId){
+		lock.lock();
+		try {
+			if (current(document, version) == null){
+				return;
+			}
+			if (append(body(DONE, document, batchId, 0)) >= 0){
+				Progress progress = progress(document);
+				progress.done.set(batchId);
+				progress.parsed.remove(batchId);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Records that all batches of a document have been inserted, dropping its records
+	 */
+	public void ended(String document){
+		lock.lock();
+		try {
+			drop(document);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drops the records of a document, e.g. because it was requested again while in progress:
+	 * it is then processed from the start
+	 */
+	public void drop(String document){
+		lock.lock();
+		try {
+			if (file == null || !documents.containsKey(document)){
+				return;
+			}
+			append(body(ENDED, document, -1, 0));
+			documents.remove(document);
+			if (fileEnd > maxFileBytes){
+				try {
+					compact();
+				} catch (IOException e){
+					logger.error("checkpoint file " + filePath + ": " + e.getMessage() + "; no longer writing to it");
+					closeFile();
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of documents with recorded progress
+	 */
+	public int getDocuments(){
+		lock.lock();
+		try {
+			return documents.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes the journal file; progress is no longer recorded
+	 */
+	public void close(){
+		lock.lock();
+		try {
+			closeFile();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString(){
+		lock.lock();
+		try {
+			return file == null ? "checkpoints: disabled"
+					: "checkpoints: " + documents.size() + " documents in progress, " + fileEnd + " bytes in " + filePath;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the progress of a document, if it is recorded for the given version, or null
+	 */
+	private Progress current(String document, String version){
+		Progress progress = file == null ? null : documents.get(document);
+		return progress != null && version != null && version.equals(progress.version) ? progress : null;
+	}
+
+	private Progress progress(String document){
+		Progress progress = documents.get(document);
+		if (progress == null){
+			progress = new Progress();
+			documents.put(document, progress);
+		}
+		progress.updated = System.currentTimeMillis();
+		return progress;
+	}
+
+	/**
+	 * @return a record body with its type, time, document and batch, with room for extra bytes after them
+	 */
+	private static ByteBuffer body(byte type, String document, int batchId, int extra){
+		byte[] key = document.getBytes(UTF8);
+		ByteBuffer body = ByteBuffer.allocate(1 + 8 + 4 + key.length + 4 + extra);
+		body.put(type).putLong(System.currentTimeMillis()).putInt(key.length).put(key).putInt(batchId);
+		return body;
+	}
+
+	/**
+	 * @return the body of a record of the number of batches and version of a document
+	 */
+	private static ByteBuffer countBody(String document, int count, String version){
+		byte[] versionBytes = version == null ? null : version.getBytes(UTF8);
+		ByteBuffer body = body(COUNT, document, -1, 4 + 4 + (versionBytes == null ? 0 : versionBytes.length));
+		body.putInt(count);
+		putBytes(versionBytes, body);
+		return body;
+	}
+
+	private static void putBytes(byte[] bytes, ByteBuffer body){
+		if (bytes == null){
+			body.putInt(-1);
+		} else {
+			body.putInt(bytes.length).put(bytes);
+		}
+	}
+
+	private static String readString(ByteBuffer body){
+		int length = body.getInt();
+		if (length < 0){
+			return null;
+		}
+		String text = new String(body.array(), body.position(), length, UTF8);
+		body.position(body.position() + length);
+		return text;
+	}
+
+	/**
+	 * Reads the type, time, document and batch of a record body
+	 * @return the body's fields, in that order
+	 */
+	private static Object[] readHeader(ByteBuffer body){
+		byte type = body.get();
+		long time = body.getLong();
+		int keyLength = body.getInt();
+		String document = new String(body.array(), body.position(), keyLength, UTF8);
+		body.position(body.position() + keyLength);
+		return new Object[]{type, time, document, body.getInt()};
+	}
+
+	/**
+	 * Appends a record, closing the file if it cannot be written
+	 * @return the record's offset, or -1 if it could not be written
+	 */
+	private long append(ByteBuffer body){
+		if (file == null){
+			return -1;
+		}
+		try {
+			return write(body);
+		} catch (IOException e){
+			logger.error("checkpoint file " + filePath + ": " + e.getMessage() + "; no longer writing to it");
+			closeFile();
+			return -1;
+		}
+	}
+
+	/**
+	 * Appends a record
+	 * @return the record's offset
+	 */
+	private long write(ByteBuffer body) throws IOException {
+		body.flip();
+		CRC32 crc = new CRC32();
+		crc.update(body.array(), 0, body.limit());
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + body.limit());
+		record.putInt(body.limit()).putInt((int) crc.getValue()).put(body);
+		record.flip();
+		long offset = fileEnd;
+		writeFully(record, offset);
+		if (sync){
+			file.force(false);
+		}
+		fileEnd += record.capacity();
+		return offset;
+	}
+
+	/**
+	 * @return the body of the record at offset, or null if it is unreadable
+	 */
+	private ByteBuffer readRecord(long offset){
+		if (file == null){
+			return null;
+		}
+		try {
+			return readRecord(file, offset, file.size());
+		} catch (IOException e){
+			logger.warn("checkpoint file " + filePath + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * @return the body of the record at offset, or null if it is partly written or damaged
+	 */
+	private static ByteBuffer readRecord(FileChannel channel, long offset, long size) throws IOException {
+		if (offset + RECORD_HEADER > size){
+			return null;
+		}
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+		readFully(channel, header, offset);
+		header.flip();
+		int length = header.getInt();
+		int crc = header.getInt();
+		if (length < 0 || offset + RECORD_HEADER + length > size){
+			return null;
+		}
+		ByteBuffer body = ByteBuffer.allocate(length);
+		readFully(channel, body, offset + RECORD_HEADER);
+		CRC32 check = new CRC32();
+		check.update(body.array());
+		if ((int) check.getValue() != crc){
+			return null;
+		}
+		body.flip();
+		return body;
+	}
+
+	/**
+	 * Opens the journal file and reads the progress it records, then compacts it
+	 */
+	private void openFile() throws IOException {
+		File f = new File(filePath);
+		if (f.getParentFile() != null){
+			f.getParentFile().mkdirs();
+		}
+		file = new RandomAccessFile(f, "rw").getChannel();
+		ByteBuffer magic = ByteBuffer.allocate(4);
+		if (file.size() >= 4){
+			readFully(file, magic, 0);
+			magic.flip();
+			if (magic.getInt() == FILE_MAGIC){
+				indexFile();
+			} else {
+				logger.warn("checkpoint file " + filePath + " is not a checkpoint journal: clearing it");
+			}
+		}
+		compact();
+		logger.info(toString());
+	}
+
+	private void indexFile() throws IOException {
+		long size = file.size();
+		long offset = 4;
+		long oldest = System.currentTimeMillis() - maxAge;
+		ByteBuffer body;
+		while ((body = readRecord(file, offset, size)) != null){
+			Object[] header = readHeader(body);
+			byte type = (Byte) header[0];
+			long time = (Long) header[1];
+			String document = (String) header[2];
+			int batchId = (Integer) header[3];
+			Progress progress = documents.get(document);
+			if (type == ENDED){
+				documents.remove(document);
+			} else if (time >= oldest || progress != null){
+				if (progress == null){
+					progress = new Progress();
+					documents.put(document, progress);
+				}
+				progress.updated = Math.max(progress.updated, time);
+				if (type == COUNT){
+					progress.batches = body.getInt();
+					progress.version = readString(body);
+				} else if (type == PARSED){
+					progress.parsed.put(batchId, offset);
+				} else if (type == DONE){
+					progress.done.set(batchId);
+					progress.parsed.remove(batchId);
+				}
+			}
+			offset += RECORD_HEADER + body.limit();
+		}
+		if (offset != size){
+			logger.warn("checkpoint file " + filePath + ": dropping partial record at " + offset);
+		}
+		fileEnd = offset;
+	}
+
+	/**
+	 * Rewrites the journal with only the records of documents still in progress that have not reached the
+	 * maximum age, and replaces the file with it. If the rewrite fails, the progress and the file are left
+	 * as they were
+	 */
+	private void compact() throws IOException {
+		File f = new File(filePath);
+		File temp = new File(filePath + ".tmp");
+		FileChannel old = file;
+		long oldEnd = fileEnd;
+		FileChannel compacted = new RandomAccessFile(temp, "rw").getChannel();
+		long oldest = System.currentTimeMillis() - maxAge;
+		//changes to the progress, made once the rewrite has succeeded
+		List<String> expired = new ArrayList<String>();
+		Map<Progress, Map<Integer, Long>> moved = new HashMap<Progress, Map<Integer, Long>>();
+		boolean written = false;
+		try {
+			compacted.truncate(0);
+			file = compacted;
+			fileEnd = 0;
+			ByteBuffer magic = ByteBuffer.allocate(4);
+			magic.putInt(FILE_MAGIC).flip();
+			writeFully(magic, 0);
+			fileEnd = 4;
+			for (Map.Entry<String, Progress> entry : documents.entrySet()){
+				Progress progress = entry.getValue();
+				if (progress.updated < oldest){
+					expired.add(entry.getKey());
+					continue;
+				}
+				String document = entry.getKey();
+				if (progress.batches >= 0){
+					write(countBody(document, progress.batches, progress.version));
+				}
+				for (int batchId = progress.done.nextSetBit(0); batchId >= 0; batchId = progress.done.nextSetBit(batchId + 1)){
+					write(body(DONE, document, batchId, 0));
+				}
+				Map<Integer, Long> parsed = new HashMap<Integer, Long>();
+				for (Map.Entry<Integer, Long> batch : progress.parsed.entrySet()){
+					ByteBuffer body = readRecord(old, batch.getValue(), old.size());
+					if (body != null){
+						body.position(body.limit());
+						parsed.put(batch.getKey(), write(body));
+					}
+				}
+				moved.put(progress, parsed);
+			}
+			compacted.force(false);
+			written = true;
+		} finally {
+			if (!written){
+				compacted.close();
+				file = old;
+				fileEnd = oldEnd;
+			}
+		}
+		for (String document : expired){
+			documents.remove(document);
+		}
+		for (Map.Entry<Progress, Map<Integer, Long>> entry : moved.entrySet()){
+			entry.getKey().parsed.clear();
+			entry.getKey().parsed.putAll(entry.getValue());
+		}
+		old.close();
+		compacted.close();
+		if (!temp.renameTo(f)){
+			f.delete();
+			if (!temp.renameTo(f)){
+				throw new IOException("could not replace " + f + " with " + temp);
+			}
+		}
+		file = new RandomAccessFile(f, "rw").getChannel();
+	}
+
+	private void writeFully(ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()){
+			position += file.write(buf, position);
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()){
+			if (channel.read(buf, position + buf.position()) < 0){
+				throw new IOException("unexpected end of file");
+			}
+		}
+	}
+
+	private void closeFile(){
+		if (file != null){
+			try {
+				file.close();
+			} catch (IOException e){
+				logger.warn("checkpoint file " + filePath + ": " + e.getMessage());
+			}
+			file = null;
+			documents.clear();
+		}
+	}
+
+	/**
+	 * Recorded progress of a document
+	 */
+	private static class Progress {
+
+		/**number of batches, or -1 if not known*/
+		int batches = -1;
+		/**version of the document the batches were counted in, or null if not known*/
+		String version;
+		/**batches inserted*/
+		final BitSet done = new BitSet();
+		/**offset of the record of each batch parsed and not yet inserted*/
+		final Map<Integer, Long> parsed = new HashMap<Integer, Long>();
+		/**time of the document's last record*/
+		long updated;
+
+	}
+
+}
@@ -0,0 +1,184 @@
+package com.oconnors.suggest.nphrases.parse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import edu.stanford.nlp.ling.TaggedWord;
+import edu.stanford.nlp.trees.LabeledScoredTreeFactory;
+import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.trees.TreeFactory;
+
+/**
+ * Builds a shallow parse tree by chunking the tagged words with regexes instead of parsing them.
+ * Much cheaper than the PCFG parser, and good enough for headings and short, simple fragments
+ *
+ * Each tag is encoded as one character, and chunks are matched over the encoded sentence:
+ * 		NP: determiners and possessives, then adjectives and numbers, then nouns; or a pronoun
+ * 			e.g. (NP (DT the) (JJ new) (NN rule))
+ * 		VP: a verb group, with the NP that follows it
+ * 			e.g. (VP (MD may) (VB file) (NP (DT a) (NN motion)))
+ * 		PP: a preposition with the NP that follows it
+ * 			e.g. (PP (IN of) (NP (DT the) (NN court)))
+ * Words outside any chunk are left as children of the sentence node, which is S if the sentence
+ * has a VP and FRAG otherwise
+ */
+public class ChunkStrategy implements ParseStrategy {
+
+	public static final String NAME = "chunk";
+
+	/**noun phrase, including possessives: the court 's decision*/
+	private static final Pattern NP = Pattern.compile("(?:[DP]*[CJ]*N+S)?[DP]*[CJ]*N+|R|D?C+");
+	/**verb group*/
+	private static final Pattern VERBS = Pattern.compile("[MT]?A*V+A*");
+	/**preposition*/
+	private static final Pattern PREPOSITION = Pattern.compile("I");
+
+	private static final TreeFactory TREE_FACTORY = new LabeledScoredTreeFactory();
+
+	public String getName(){
+		return NAME;
+	}
+
+	public Tree parse(List<TaggedWord> words){
+
+		String codes = encode(words);
+		Matcher np = NP.matcher(codes);
+		Matcher verbs = VERBS.matcher(codes);
+		Matcher preposition = PREPOSITION.matcher(codes);
+		List<Tree> chunks = new ArrayList<Tree>();
+		boolean hasVerb = false;
+		int i = 0;
+		while (i < codes.length()){
+			if (matchAt(preposition, i) && matchAt(np, preposition.end())){
+				chunks.add(phrase("PP", words, i, preposition.end(), np.end()));
+				i = np.end();
+			} else if (matchAt(verbs, i)){
+				hasVerb = true;
+				if (matchAt(np, verbs.end())){
+					chunks.add(phrase("VP", words, i, verbs.end(), np.end()));
+					i = np.end();
+				} else {
+					chunks.add(phrase("VP", words, i, verbs.end(), verbs.end()));
+					i = verbs.end();
+				}
+			} else if (matchAt(np, i)){
+				chunks.add(phrase("NP", words, i, np.end(), np.end()));
+				i = np.end();
+			} else {
+				chunks.add(preterminal(words.get(i)));
+				i++;
+			}
+		}
+		Tree sentence = TREE_FACTORY.newTreeNode(hasVerb ? "S" : "FRAG", chunks);
+		List<Tree> root = new ArrayList<Tree>(1);
+		root.add(sentence);
+		return TREE_FACTORY.newTreeNode("ROOT", root);
+
+	}
+
+	/**
+	 * @return true if matcher matches starting at index start
+	 */
+	private static boolean matchAt(Matcher matcher, int start){
+		matcher.reset();
+		if (start >= matcher.regionEnd()){
+			return false;
+		}
+		matcher.region(start, matcher.regionEnd());
+		return matcher.lookingAt();
+	}
+
+	/**
+	 * Builds a phrase from the words [start, head) followed by an NP of the words [head, end)
+	 * @param label		label of the phrase
+	 * @param words		tagged words of the sentence
+	 * @param start		index of the first word of the phrase
+	 * @param head		index after the last word that is not part of the trailing NP
+	 * @param end		index after the last word of the phrase
+	 */
+	private static Tree phrase(String label, List<TaggedWord> words, int start, int head, int end){
+		List<Tree> children = new ArrayList<Tree>(end - start);
+		for (int i=start; i < head; i++){
+			children.add(preterminal(words.get(i)));
+		}
+		if (head < end){
+			if (label.equals("NP")){
+				for (int i=head; i < end; i++){
+					children.add(preterminal(words.get(i)));
+				}
+			} else {
+				children.add(phrase("NP", words, head, end, end));
+			}
+		}
+		return TREE_FACTORY.newTreeNode(label, children);
+	}
+
+	private static Tree preterminal(TaggedWord word){
+		List<Tree> leaf = new ArrayList<Tree>(1);
+		leaf.add(TREE_FACTORY.newLeaf(word.word()));
+		return TREE_FACTORY.newTreeNode(word.tag(), leaf);
+	}
+
+	/**
+	 * @return the sentence's tags, one character per word
+	 */
+	static String encode(List<TaggedWord> words){
+		StringBuilder codes = new StringBuilder(words.size());
+		for (TaggedWord word : words){
+			codes.append(encode(word.tag()));
+		}
+		return codes.toString();
+	}
+
+	/**
+	 * @return the character a penn treebank tag is encoded as
+	 */
+	static char encode(String tag){
+		if (tag == null){
+			return 'O';
+		}
+		if (tag.startsWith("NN")){
+			return 'N';
+		}
+		if (tag.startsWith("VB")){
+			return 'V';
+		}
+		if (tag.startsWith("JJ")){
+			return 'J';
+		}
+		if (tag.startsWith("RB")){
+			return 'A';
+		}
+		if (tag.equals("DT") || tag.equals("PDT")){
+			return 'D';
+		}
+		if (tag.equals("PRP$") || tag.equals("WP$")){
+			return 'P';
+		}
+		if (tag.equals("PRP") || tag.equals("EX")){
+			return 'R';
+		}
+		if (tag.equals("POS")){
+			return 'S';
+		}
+		if (tag.equals("CD")){
+			return 'C';
+		}
+		if (tag.equals("MD")){
+			return 'M';
+		}
+		if (tag.equals("TO")){
+			return 'T';
+		}
+		if (tag.equals("IN")){
+			return 'I';
+		}
+		if (tag.startsWith("W")){
+			return 'W';
+		}
+		return 'O';
+	}
+
+}
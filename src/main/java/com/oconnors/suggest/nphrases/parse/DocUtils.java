@@ -1,7 +1,39 @@
 package com.oconnors.suggest.nphrases.parse;
 
+import java.util.regex.Pattern;
+
+import edu.stanford.nlp.ling.Label;
+import edu.stanford.nlp.ling.Sentence;
+import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.util.XMLUtils;
+
 public class DocUtils {
 
+	/**indent added per tree level, as printed by Tree.indentedXMLPrint*/
+	private static final String INDENT = "  ";
+	/**line separator used by TreePrint's PrintWriter*/
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+	/**regex form of the tagging rules, in the order they are applied. Only used for lines
+	 * that are not in the one-tag-per-line shape printed by TreePrint("xmlTree")*/
+	private static final Pattern[] RULE_PATTERNS = new Pattern[]{
+		Pattern.compile("<(.*)/>"),
+		Pattern.compile("<(/?)\\.>"),
+		Pattern.compile("<(/?)\\,>"),
+		Pattern.compile("<(/?)\\;>"),
+		Pattern.compile("<(/?)\\:>"),
+		Pattern.compile("<(/?)\\\">"),
+		Pattern.compile("<(/?)``>"),
+		Pattern.compile("<(/?)&apos;&apos;>"),
+		Pattern.compile("<(/?)\\#>"),
+		Pattern.compile("<(/?)\\$>"),
+		Pattern.compile("<(/?)-(.*)->"),
+		Pattern.compile("<(/?)(.*)\\$>")};
+	/**replacement for each entry in RULE_PATTERNS*/
+	private static final String[] RULE_REPLACEMENTS = new String[]{
+		"$1", "<$1P_PERIOD>", "<$1P_COMMA>", "<$1P_SEMI>", "<$1P_COLON>", "<$1P_QUOTE>", "<$1P_QUOTE>",
+		"<$1P_QUOTE>", "<$1P_POUND>", "<$1P_DOLLAR>", "<$1$2>", "<$1$2_POS>"};
+
 	/**takes the xml tree output by the stanford parser and fixes the xml
 	 *
 	 * TAGGING RULES:
@@ -16,33 +48,215 @@ public class DocUtils {
 	 *
 	 * 		all terminal tags are replaced by text
 	 * 			e.g. <UH><hello/></UH> -> <UH>hello</UH>
-	 * 
+	 *
 	 * 		penn tags containing punctuation are also adjusted: <PRP$> -> <PRP_POS>, <WP$> -> <WP_POS>
-	 * 
+	 *
 	 * 		new tags are: P_PERIOD, P_COMMA, P_SEMI, P_COLON, P_QUOTE, P_POUND,
-	 * 			 P_DOLLAR, RRB, LRB, WP_POS, PRP_POS 
+	 * 			 P_DOLLAR, RRB, LRB, WP_POS, PRP_POS
 	 * 			note: pretty sure P_SEMI is unused as the parser puts semicolons in colon tags.
 	 * 				however ; is still a penn treebank tag so check for it just in case
 	 * 			also: currently only P_DOLLAR is used by name by the nphrase builder; other tag names can be changed freely
+	 *
+	 * The rules are applied in a single pass over the tree. The regexes in RULE_PATTERNS never match
+	 * across a line terminator, so each line is rewritten on its own: lines holding a single tag
+	 * (everything TreePrint prints) are rewritten directly, and any other line falls back to the regexes
 	 */
 	public static String fixXML (String xmlTree){
 
-		xmlTree = xmlTree.replaceAll("<(.*)/>", "$1");
-		xmlTree = xmlTree.replaceAll("<(/?)\\.>", "<$1P_PERIOD>");
-		xmlTree = xmlTree.replaceAll("<(/?)\\,>", "<$1P_COMMA>");
-		xmlTree = xmlTree.replaceAll("<(/?)\\;>", "<$1P_SEMI>");
-		xmlTree = xmlTree.replaceAll("<(/?)\\:>", "<$1P_COLON>");
-		xmlTree = xmlTree.replaceAll("<(/?)\\\">", "<$1P_QUOTE>");
-		xmlTree = xmlTree.replaceAll("<(/?)``>", "<$1P_QUOTE>");
-		xmlTree = xmlTree.replaceAll("<(/?)&apos;&apos;>", "<$1P_QUOTE>");
-		xmlTree = xmlTree.replaceAll("<(/?)\\#>", "<$1P_POUND>");
-		xmlTree = xmlTree.replaceAll("<(/?)\\$>", "<$1P_DOLLAR>");
-		xmlTree = xmlTree.replaceAll("<(/?)-(.*)->", "<$1$2>");
-		xmlTree = xmlTree.replaceAll("<(/?)(.*)\\$>", "<$1$2_POS>");
+		StringBuilder fixed = new StringBuilder(xmlTree.length());
+		fixXML(xmlTree, fixed);
+		return fixed.toString();
+
+	}
+
+	/**
+	 * Applies the tagging rules of {@link #fixXML(String)} to xmlTree, appending the result to out
+	 * @param xmlTree	xml tree output by the stanford parser
+	 * @param out		builder the fixed xml is appended to
+	 */
+	public static void fixXML (CharSequence xmlTree, StringBuilder out){
+
+		int length = xmlTree.length();
+		int lineStart = 0;
+		for (int i=0; i < length; i++){
+			if (isLineTerminator(xmlTree.charAt(i))){
+				fixLine(xmlTree, lineStart, i, out);
+				out.append(xmlTree.charAt(i));
+				lineStart = i + 1;
+			}
+		}
+		fixLine(xmlTree, lineStart, length, out);
+
+	}
+
+	/**
+	 * Writes a parse tree as fixed xml: produces the same text as printing the tree with
+	 * TreePrint("xmlTree") and passing the result through {@link #fixXML(String)}, without
+	 * building the intermediate xml
+	 * @param tree		parse tree to write
+	 * @param out		builder the fixed xml is appended to
+	 */
+	public static void appendXML (Tree tree, StringBuilder out){
+
+		appendXML(tree, "", out, new StringBuilder(64));
+
+	}
+
+	/**
+	 * Writes a node of a parse tree and its children as fixed xml
+	 * @param tree		node to write
+	 * @param indent	indent of the node's lines
+	 * @param out		builder the fixed xml is appended to
+	 * @param line		scratch builder for the node's unfixed tag lines
+	 */
+	private static void appendXML (Tree tree, String indent, StringBuilder out, StringBuilder line){
+
+		Tree[] children = tree.children();
+		Label label = tree.label();
+		String name = null;
+		line.setLength(0);
+		line.append(indent);
+		if (label != null){
+			name = XMLUtils.escapeXML(Sentence.wordToString(label, true));
+			line.append('<').append(name).append(children.length > 0 ? ">" : "/>");
+		}
+		fixXML(line, out);
+		out.append(LINE_SEPARATOR);
+
+		if (children.length > 0){
+			String childIndent = indent + INDENT;
+			for (Tree child : children){
+				appendXML(child, childIndent, out, line);
+			}
+			if (name != null){
+				line.setLength(0);
+				line.append(indent).append("</").append(name).append('>');
+				fixXML(line, out);
+				out.append(LINE_SEPARATOR);
+			}
+		}
 
+	}
+
+	/**
+	 * Rewrites a single tag label according to the tagging rules
+	 * @param label		label of a non-terminal tag, without brackets or closing slash
+	 * @param out		builder the rewritten label is appended to
+	 */
+	static void fixLabel (CharSequence label, StringBuilder out){
+
+		String name = punctuationName(label);
+		if (name != null){
+			out.append(name);
+			return;
+		}
+		int start = 0;
+		int end = label.length();
+		if (end >= 2 && label.charAt(0) == '-' && label.charAt(end - 1) == '-'){
+			start++;
+			end--;
+		}
+		if (end > start && label.charAt(end - 1) == '$'){
+			out.append(label, start, end - 1).append("_POS");
+		} else {
+			out.append(label, start, end);
+		}
+
+	}
+
+	/**
+	 * Applies the tagging rules to the line xmlTree[start, end)
+	 * @param xmlTree	xml tree containing the line
+	 * @param start		index of the first character of the line
+	 * @param end		index after the last character of the line, excluding the terminator
+	 * @param out		builder the fixed line is appended to
+	 */
+	private static void fixLine (CharSequence xmlTree, int start, int end, StringBuilder out){
+
+		int open = -1;
+		for (int i=start; i < end; i++){
+			char c = xmlTree.charAt(i);
+			if (c == '<'){
+				if (open >= 0){ //more than one tag on the line
+					out.append(applyRules(xmlTree.subSequence(start, end).toString()));
+					return;
+				}
+				open = i;
+			} else if (c == '>' && i != end - 1){
+				out.append(applyRules(xmlTree.subSequence(start, end).toString()));
+				return;
+			}
+		}
+		if (open < 0 || xmlTree.charAt(end - 1) != '>'){ //no tag: nothing to replace
+			out.append(xmlTree, start, end);
+			return;
+		}
+
+		out.append(xmlTree, start, open);
+		int bodyStart = open + 1;
+		int bodyEnd = end - 1;
+		if (bodyEnd > bodyStart && xmlTree.charAt(bodyEnd - 1) == '/'){ //terminal: <word/> -> word
+			out.append(xmlTree, bodyStart, bodyEnd - 1);
+			return;
+		}
+		out.append('<');
+		if (bodyEnd > bodyStart && xmlTree.charAt(bodyStart) == '/'){
+			out.append('/');
+			bodyStart++;
+		}
+		fixLabel(xmlTree.subSequence(bodyStart, bodyEnd), out);
+		out.append('>');
+
+	}
+
+	/**
+	 * @param label		tag label
+	 * @return the P_ tag name that replaces a punctuation label, or null if label is not punctuation
+	 */
+	private static String punctuationName (CharSequence label){
+
+		switch (label.length()){
+		case 1:
+			switch (label.charAt(0)){
+			case '.': return "P_PERIOD";
+			case ',': return "P_COMMA";
+			case ';': return "P_SEMI";
+			case ':': return "P_COLON";
+			case '"': return "P_QUOTE";
+			case '#': return "P_POUND";
+			case '$': return "P_DOLLAR";
+			default: return null;
+			}
+		case 2:
+			return (label.charAt(0) == '`' && label.charAt(1) == '`') ? "P_QUOTE" : null;
+		case 12:
+			return "&apos;&apos;".contentEquals(label) ? "P_QUOTE" : null;
+		default:
+			return null;
+		}
+
+	}
+
+	/**
+	 * Applies the tagging rules as regexes, one after another
+	 * @param xmlTree	xml to fix
+	 * @return the fixed xml
+	 */
+	static String applyRules (String xmlTree){
+
+		for (int i=0; i < RULE_PATTERNS.length; i++){
+			xmlTree = RULE_PATTERNS[i].matcher(xmlTree).replaceAll(RULE_REPLACEMENTS[i]);
+		}
 		return xmlTree;
 
 	}
 
+	/**
+	 * @return true if c ends a line for the purposes of the regex '.' (which does not match it)
+	 */
+	private static boolean isLineTerminator (char c){
+		return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+	}
+
 
 }
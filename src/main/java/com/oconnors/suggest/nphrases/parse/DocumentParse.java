@@ -1,14 +1,17 @@
 package com.oconnors.suggest.nphrases.parse;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -17,16 +20,14 @@ import com.marklogic.xcc.ResultSequence;
 import com.marklogic.xcc.exceptions.RequestException;
 import com.marklogic.xcc.exceptions.ServerConnectionException;
 import com.oconnors.suggest.nphrases.comm.Queryer;
+import com.oconnors.suggest.nphrases.comm.ResultHandler;
 
 import edu.stanford.nlp.ling.CoreLabel;
 import edu.stanford.nlp.ling.TaggedWord;
-import edu.stanford.nlp.parser.lexparser.LexicalizedParser;
 import edu.stanford.nlp.process.CoreLabelTokenFactory;
 import edu.stanford.nlp.process.PTBTokenizer;
 import edu.stanford.nlp.process.TokenizerFactory;
-import edu.stanford.nlp.tagger.maxent.MaxentTagger;
 import edu.stanford.nlp.trees.Tree;
-import edu.stanford.nlp.trees.TreePrint;
 
 /**
  * Convenience class for parsing documents
@@ -39,18 +40,65 @@ public class DocumentParse {
 
 	/**names of phrase types: nphrase1, nphrase2, and vphrase1*/
 	private static final String[] PHRASE_NAMES = new String[]{"nphrase1", "nphrase2", "vphrase1"};
-	/**max number of words in a sentence before it is split into clauses for parsing*/
-	private final int MAX_SENTENCE_LENGTH = 50; 
 
-	/** prints trees as xml strings*/
-	private static final TreePrint TREE_PRINT = new TreePrint("xmlTree");
-	/** parser object, using English PCFG grammar*/
-	private static final LexicalizedParser LEX_PARSE = LexicalizedParser.loadModel("englishPCFG.ser.gz");
+	/**initial capacity of a thread's parse tree buffer*/
+	private static final int TREE_BUFFER_CAPACITY = 1 << 16;
+	/**largest parse tree buffer kept for reuse after a batch; larger buffers are dropped*/
+	private static final int MAX_TREE_BUFFER_CAPACITY = 1 << 23;
+	/**per-thread buffer that a batch's fixed parse tree xml is written to*/
+	private static final ThreadLocal<StringBuilder> TREE_BUFFER = new ThreadLocal<StringBuilder>(){
+		@Override
+		protected StringBuilder initialValue(){
+			return new StringBuilder(TREE_BUFFER_CAPACITY);
+		}
+	};
+	/**work-stealing pool that the sentences of a batch are parsed on, kept apart from the
+	 * ParseDriver threadpool so that threads waiting on MarkLogic do not limit parsing*/
+	private static final ForkJoinPool PARSER_POOL = new ForkJoinPool(ParseConfig.getThreads("parser.parallelism"));
 	/**factory for generating tokenizers*/
 	private static final TokenizerFactory<CoreLabel> TOKENIZER_FACT = PTBTokenizer.factory(new CoreLabelTokenFactory(),
-			"normalizeAmpersandEntity=false,normalizeOtherBrackets=false,asciiQuotes=true,latexQuotes=false,untokenizable=noneDelete");
-	/** Maximum entropy tagger used to tag the sentence before parsing it*/
-	private static final MaxentTagger TAGGER = new MaxentTagger("models/tagger/english-left3words-distsim.tagger");
+			NlpModels.TOKENIZER_OPTIONS);
+	/**parses sentences with the PCFG parser, loaded when it is first needed (see NlpModels)*/
+	private static final ParseStrategy PCFG = new PCFGStrategy();
+	/**chunks sentences instead of parsing them*/
+	private static final ParseStrategy CHUNK = new ChunkStrategy();
+	/**parse strategies by name*/
+	private static final Map<String, ParseStrategy> STRATEGIES = new HashMap<String, ParseStrategy>();
+	static {
+		STRATEGIES.put(PCFG.getName(), PCFG);
+		STRATEGIES.put(CHUNK.getName(), CHUNK);
+		STRATEGIES.put(RoutedStrategy.NAME, new RoutedStrategy(CHUNK, PCFG,
+				ParseConfig.getInt("parser.fastpath.words", 8), ParseConfig.getInt("parser.fastpath.verbs", 1)));
+	}
+	/**where phrases are built from parse trees: see PhraseExtractor*/
+	private static final String PHRASE_MODE = getPhraseMode(ParseConfig.get("phrases.mode", PhraseExtractor.MODE_XQUERY));
+	/**added to the strategy name in the cache keys of phrase records, so they are cached apart from parse trees*/
+	private static final String PHRASE_CACHE_SUFFIX = "|phrases";
+	/**number of sentences of a batch queued on the parse stage at a time, as they arrive from MarkLogic*/
+	private static final int PART_SENTENCES = Math.max(1, ParseConfig.getInt("pipeline.parse.part", 64));
+	/**number of batches of a document queued or in progress at a time: the next batch is spawned as one ends*/
+	private static final int BATCH_WINDOW = Math.max(1, ParseConfig.getInt("pipeline.fetch.window", 4));
+	/**splits sentences that are too long to parse whole into segments*/
+	private static final SentenceSegmenter SEGMENTER = new SentenceSegmenter(ParseConfig.getInt("parser.segment.tokens", 50));
+	/**time allowed for parsing a sentence before the rest of it is chunked*/
+	private static final ParseBudget PARSE_BUDGET = new ParseBudget(ParseConfig.getLong("parser.budget.ms", 3000));
+	/**time taken to parse each sentence, including cached sentences*/
+	private static final LatencyHistogram SENTENCE_LATENCY = new LatencyHistogram();
+	/**number of sentences that were split into segments*/
+	private static final AtomicLong SEGMENTED_SENTENCES = new AtomicLong(0);
+	/**models and settings that parse output depends on: cached output is only valid for
+	 * the models, tokenizer options, segment size and line separator it was written with*/
+	private static final String OUTPUT_SIGNATURE = NlpModels.PARSER_MODEL + "|" + NlpModels.TAGGER_MODEL + "|" 
+			+ NlpModels.TOKENIZER_OPTIONS + "|" + SEGMENTER.getMaxTokens() + "|"
+			+ System.getProperty("line.separator").replace("\r", "CR").replace("\n", "LF");
+	/**caches parse trees of sentences that have already been parsed*/
+	private static final ParseCache PARSE_CACHE = ParseCache.fromConfig(OUTPUT_SIGNATURE);
+	/**shares the parse of a sentence between documents parsing it at the same time*/
+	private static final ParseCoalescer COALESCER = ParseCoalescer.fromConfig();
+	/**parse output of the sentences of each document, so that a document processed again only parses what changed*/
+	private static final FingerprintIndex FINGERPRINTS = FingerprintIndex.fromConfig(OUTPUT_SIGNATURE);
+	/**progress of documents, so that a document requested again resumes where it stopped*/
+	private static final CheckpointJournal CHECKPOINTS = CheckpointJournal.fromConfig();
 	
 	/**filename of document being processed*/
 	private String filename = "";
@@ -60,21 +108,41 @@ public class DocumentParse {
 
 	/**Queryer object used to execute xquery code on the MarkLogic server*/
 	private Queryer queryer;
+	/**strategy used to build the parse trees of this document's sentences*/
+	private final ParseStrategy strategy;
   
-  private String id = "";
+  private final String id;
+	/**key of this document's progress in CHECKPOINTS*/
+	private final String checkpointKey;
+	/**version of the document, returned with batch 0, or null until batch 0 has been fetched*/
+	private volatile String version;
+	/**output of the sentences this document had when it was last processed, or null if FINGERPRINTS is disabled*/
+	private final FingerprintIndex.Document fingerprints;
 
 	/**number of batches that have finished generating and inserting nphrases*/
 	private AtomicInteger batchesFinished;
-	/**total number of batches spawned for this document*/
-	private int batchesCount;
+	/**number of batches that failed*/
+	private AtomicInteger batchesFailed;
+	/**total number of batches in this document, read from batch 0*/
+	private volatile int batchesCount;
+	/**authorization token the document's batches are fetched with, set when batch 0 has been fetched*/
+	private volatile String token;
+	/**next batch to spawn: batches are spawned BATCH_WINDOW at a time, and then one as each ends*/
+	private AtomicInteger nextBatch;
 
-	/**threadpool handling this task*/
-	private final ThreadPoolExecutor threadpool;
+	/**pipeline whose stages run this document's batches*/
+	private final ParsePipeline pipeline;
   
   private final ConcurrentHashMap<String, DocumentParse> docparses;
 	
 	/**shutdown flag: when set to true, attempts to shut down gracefully*/
 	private AtomicBoolean shutdown;
+	/**bulk job this document belongs to, or null*/
+	private final ParseJob job;
+	/**set once this document has ended, so that its job is told only once*/
+	private final AtomicBoolean ended;
+	/**time this DocumentParse was created, in System.nanoTime()*/
+	private final long created = System.nanoTime();
 	
 
 	/**
@@ -83,32 +151,51 @@ public class DocumentParse {
 	 * @param uri			uri of the document to process
 	 * @param product		product containing the document to process
 	 * @param queryer		Queryer used to execute xquery code on the MarkLogic server
-	 * @param threadpool	threadpool handling this task
+	 * @param parseMode		name of the strategy used to build parse trees: see getParseStrategy
+	 * @param pipeline		pipeline whose stages run this task
 	 * @throws FileNotFoundException 
 	 */
-	public DocumentParse(String uri, String product, String edition, Queryer queryer,
-    ThreadPoolExecutor threadpool, ConcurrentHashMap<String, DocumentParse> docparses){
+	public DocumentParse(String uri, String product, String edition, Queryer queryer, String parseMode,
+    ParsePipeline pipeline, ConcurrentHashMap<String, DocumentParse> docparses){
+		this(uri, product, edition, queryer, parseMode, pipeline, docparses, null);
+	}
+
+	/**
+	 * Constructs a new DocumentParse for a document of a bulk job
+	 * @param job		job told when the document has ended, or null
+	 */
+	public DocumentParse(String uri, String product, String edition, Queryer queryer, String parseMode,
+    ParsePipeline pipeline, ConcurrentHashMap<String, DocumentParse> docparses, ParseJob job){
 		
 		this.filename = uri;
 		this.product = product;
 		this.edition = edition;
+		this.strategy = getParseStrategy(parseMode);
 
 		this.queryer = queryer;
     this.docparses = docparses;
     
     this.id = filename + product + edition + queryer.getXccUrl();
+		this.checkpointKey = CheckpointJournal.key(filename, product, edition, queryer.getXccUrl());
+		this.fingerprints = FINGERPRINTS.open(checkpointKey);
 
 		batchesFinished = new AtomicInteger(0);
+		batchesFailed = new AtomicInteger(0);
+		nextBatch = new AtomicInteger(1);
 
-		this.threadpool = threadpool;
+		this.pipeline = pipeline;
 		
 		shutdown = new AtomicBoolean(false);
+		this.job = job;
+		ended = new AtomicBoolean(false);
 		
 	}
 	
 
 	/**
-	 * Get a batch of the document's paragraphs, parse it, and generate and insert nphrases
+	 * Get a batch of the document's paragraphs and queue them on the parse stage as they arrive, in parts. 
+	 * Once all parts are parsed the batch is queued on the insert stage to generate and insert nphrases. 
+	 * Runs on the fetch stage
 	 * @param token		authorization token
 	 * @param batchId	batch number to process
 	 * @throws ServerConnectionException  only when connection refused: indicates possible problem with Queryer's xccUrl
@@ -116,153 +203,334 @@ public class DocumentParse {
 	public void process(final String token, final int batchId) throws ServerConnectionException {
 
 		try {
-			if (!shutdown.get())
-				parse(getSens(token, batchId), token, batchId);
-      synchronized (batchesFinished) {
-        log("finished " + (batchesFinished.get() + 1) + "/" + batchesCount + " batches", 5);
-        if (batchesFinished.incrementAndGet() == batchesCount){
-          log("finished: " + batchesFinished.get() + " (left in threadpool: " + threadpool.getQueue().size() + ")", 5);
-          if (threadpool.getQueue().size()==0 && threadpool.getActiveCount()==1){
-            log("finished all queued tasks.", 5);
-            System.gc();
-          }
-        }
-      }
+			if (shutdown.get()){
+				endBatch(true);
+				return;
+			}
+			if (batchId > 0 && resume(token, batchId)){
+				return;
+			}
+			getSens(token, batchId);
 		} catch (ServerConnectionException e){
 			if (e.getMessage().contains("Connection refused")){ 
+				endBatch(false);
 				throw e;
 			} else {
 				log("Request Exception: " + e.getMessage(), 10);
 				e.printStackTrace();
+				endBatch(false);
 			}
 		} catch (RequestException e) {
 			log("Request Exception: " + e.getMessage(), 10);
 			e.printStackTrace();
 			shutdown.set(true);
+			endBatch(false);
 		} catch (IOException e) {
 			e.printStackTrace();
-		} finally {
-      if (batchesFinished.get() >= batchesCount || shutdown.get()){
-        synchronized (docparses) {
-          synchronized (id) {
-            log("Docparse finished: " + id, 3);
-            if (docparses.containsKey(id))
-              docparses.remove(id);
-            else 
-              log("***docparses doesn't contain key: " + id, 10);
-          }
-        }
-      }
-    }
-	}
-
-	/**
-	 * Gets the sentences for this batch of paragraphs
+			endBatch(false);
+		} catch (RuntimeException e) {
+			//e.g. a malformed batch count, or a stage that was shut down: the batch ends, failed, rather than
+			//holding its document and job forever
+			log("batch " + batchId + " failed: " + e, 10);
+			e.printStackTrace();
+			endBatch(false);
+		}
+	}
+
+	/**
+	 * Resumes a batch from the progress recorded for this document: a batch already inserted is skipped,
+	 * and a batch already parsed is queued on the insert stage without parsing it again.
+	 * Batch 0 is always fetched, since it returns the version of the document the progress must match
+	 * (see CheckpointJournal.start); the other batches are resumed without fetching them
+	 * @param token		authorization token
+	 * @param batchId	batch number
+	 * @return true if the batch was resumed, false if it has to be fetched
+	 */
+	private boolean resume(final String token, final int batchId){
+		if (CHECKPOINTS.getBatches(checkpointKey) < 0){
+			return false;
+		}
+		if (CHECKPOINTS.isDone(checkpointKey, batchId)){
+			log("batch " + batchId + " was already inserted: skipping it", 5);
+			endBatch(true);
+			return true;
+		}
+		String[] parsed = CHECKPOINTS.getParsed(checkpointKey, batchId);
+		if (parsed == null){
+			return false;
+		}
+		final String trees = PHRASE_MODE.equals(PhraseExtractor.MODE_JAVA) ? null : parsed[0];
+		final String phrases = PHRASE_MODE.equals(PhraseExtractor.MODE_XQUERY) ? null : parsed[1];
+		if ((trees == null && phrases == null) || (PHRASE_MODE.equals(PhraseExtractor.MODE_COMPARE) && (trees == null || phrases == null))){
+			//parsed in another phrase mode
+			return false;
+		}
+		log("batch " + batchId + " was already parsed: inserting it", 5);
+		pipeline.getInsertStage().submit(new Runnable(){
+			public void run(){
+				insert(trees, phrases, token, batchId);
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Records the end of a batch, whether or not it succeeded, and removes this DocumentParse
+	 * from docparses once all of its batches have ended or it has been shut down
+	 * @param finished	true if the batch finished (or was skipped because of shutdown), 
+	 * 					 false if it failed
+	 */
+	private void endBatch(boolean finished){
+
+		if (finished){
+			//no monitor around the logging and gc: they would pin the carrier of a virtual fetch or insert thread
+			int count = batchesFinished.incrementAndGet();
+			log("finished " + count + "/" + batchesCount + " batches", 5);
+			if (count == batchesCount){
+				log("finished: " + count + " (left in pipeline: " + pipeline.getQueueDepth() + ")", 5);
+				if (pipeline.getQueueDepth()==0 && pipeline.getActiveCount()==1){
+					log("finished all queued tasks.", 5);
+					System.gc();
+				}
+			}
+		} else {
+			batchesFailed.incrementAndGet();
+		}
+		PipelineMetrics.batch(finished);
+		if (!shutdown.get()){
+			spawnNextBatch();
+		}
+		if (batchesFinished.get() + batchesFailed.get() >= batchesCount || shutdown.get()){
+			if (batchesFailed.get() == 0 && !shutdown.get()){
+				CHECKPOINTS.ended(checkpointKey);
+				if (fingerprints != null){
+					fingerprints.save();
+				}
+			} else if (fingerprints != null){
+				fingerprints.discard();
+			}
+			if (job != null && ended.compareAndSet(false, true)){
+				job.documentEnded(batchesFinished.get(), batchesFailed.get() > 0 || shutdown.get(), System.nanoTime() - created);
+			}
+			log("Docparse finished: " + id, 3);
+			//removes only this DocumentParse: the document may have been requested again, replacing it
+			if (!docparses.remove(id, this)){
+				log("already replaced or removed: " + id, 1);
+			}
+		}
+	}
+
+	/**
+	 * Gets the sentences for this batch of paragraphs, streaming them from MarkLogic, and queues them 
+	 * on the parse stage in parts as they arrive
 	 * @param token		authorization token
 	 * @param batchId	batch number
-	 * @return a ResultSequence of sentences 
 	 * @throws RequestException
 	 * @throws IOException
 	 */
-	private ResultSequence getSens(final String token, final int batchId) 
+	private void getSens(final String token, final int batchId) 
 			throws RequestException, IOException{
-		ResultSequence rs_sens;
 
+		BatchParse batch = new BatchParse(token, batchId);
+		SentenceStream sentences = new SentenceStream(batch);
 		//get the sentences in the batch
-		rs_sens = queryer.documentGet(product, edition, filename, token, batchId);
-		if (batchId == 0){ //spawn new tasks for the other batches
-			batchesCount = Integer.parseInt(rs_sens.next().asString());
-			log("batches count: " + batchesCount, 4);
-			for (int batch=1; batch<batchesCount; batch++){
-				final int nextBatch = batch;
-				log("spawning new task for batch " + batch, 5);
-				threadpool.execute(new Runnable(){
-					public void run(){
-						//get the document, parse it into sentences, batch the sentences
-						try {
-							process(token, nextBatch);
-						} catch (ServerConnectionException e) {
-							//if this exception occurs here, at least one connection attempt
-							//has already succeeded, so the problem is with the connection
-							//or the server, not the Queryer's xccUrl
-							log("Request Exception: " + e.getMessage(), 10);
-							e.printStackTrace();
-						}
-					}
-					
-				});
+		long fetch_start = System.nanoTime();
+		try {
+			queryer.documentGet(product, edition, filename, token, batchId, sentences);
+		} catch (RequestException e){
+			if (!sentences.resumed){
+				throw e;
 			}
+			log("batch 0 was resumed: ignoring the failure of the rest of its fetch: " + e.getMessage(), 5);
+		} catch (IOException e){
+			if (!sentences.resumed){
+				throw e;
+			}
+			log("batch 0 was resumed: ignoring the failure of the rest of its fetch: " + e.getMessage(), 5);
+		} catch (RuntimeException e){
+			if (!sentences.resumed){
+				throw e;
+			}
+			log("batch 0 was resumed: ignoring the failure of the rest of its fetch: " + e, 5);
 		}
+		if (sentences.resumed){
+			return;
+		}
+		sentences.flush();
+		PipelineMetrics.record(PipelineMetrics.FETCH, System.nanoTime() - fetch_start);
+		log("batch size : " + batch.sentences + " sens | " + batch.bytes + " bytes", 2);
+		batch.fetched();
+	}
 
-		log("batch size : " + (rs_sens.size()-1) + " sens | " + rs_sens.asString().getBytes().length + " bytes", 2);
-		return rs_sens;
+	/**
+	 * Schedules a task of this document on the fetch stage: ahead of bulk jobs if it is a single document
+	 * request, and fairly with other documents of its priority
+	 * @param task		task to run
+	 * @return the task, as scheduled
+	 */
+	public Runnable fetchTask(Runnable task){
+		return new FairTaskQueue.Task(job == null ? FairTaskQueue.INTERACTIVE : FairTaskQueue.BULK, 
+				filename + product + edition + queryer.getXccUrl(), product, task);
 	}
 
 	/**
-	 * Parse the given sentences, generate nphrases from their parse trees, and
-	 * insert the nphrases into the database
-	 * @param batch		ResultSequence of sentences
+	 * Spawns new tasks on the fetch stage for the first batches after batch 0, so that at most BATCH_WINDOW
+	 * of the document's batches are queued or in progress. The others are spawned one at a time as batches end
+	 * (see spawnNextBatch), so a long document neither fills the fetch queue nor holds all of its batches in memory
+	 * @param token		authorization token
+	 * @param count		number of batches in the document
+	 */
+	private void spawnBatches(String token, int count){
+		this.token = token;
+		batchesCount = count;
+		log("batches count: " + batchesCount, 4);
+		for (int batch=1; batch<BATCH_WINDOW; batch++){
+			spawnNextBatch();
+		}
+	}
+
+	/**
+	 * Spawns a new task on the fetch stage for the next batch that has not been spawned, if there is one
+	 */
+	private void spawnNextBatch(){
+		int batch = nextBatch.getAndIncrement();
+		if (batch >= batchesCount){
+			return;
+		}
+		try {
+			spawnBatch(token, batch);
+		} catch (RuntimeException e){
+			//the fetch stage was shut down: this batch and the batches no one has spawned end, failed, so that
+			//the document still ends
+			int unspawned = Math.max(nextBatch.getAndSet(batchesCount), batch + 1);
+			log("could not queue batch " + batch + " (or batches from " + unspawned + "): " + e, 10);
+			endBatch(false);
+			for (int failed=unspawned; failed<batchesCount; failed++){
+				endBatch(false);
+			}
+		}
+	}
+
+	/**
+	 * Spawns a new task on the fetch stage for a batch
 	 * @param token		authorization token
 	 * @param batchId	batch number
-	 * @throws IOException
-	 * @throws RequestException
 	 */
-	public void parse(ResultSequence batch, String token, int batchId) throws IOException, RequestException {
-		
-		log("parsing for batch " + batchId + " (" + batch.size() + " sentences)", 2);
-		long parse_time_start, parse_time_end;
-		parse_time_start = System.nanoTime();
+	private void spawnBatch(final String token, final int batchId){
+		log("spawning new task for batch " + batchId, 5);
+		pipeline.getFetchStage().submit(fetchTask(new Runnable(){
+			public void run(){
+				//get the document, parse it into sentences, batch the sentences
+				try {
+					process(token, batchId);
+				} catch (ServerConnectionException e) {
+					//if this exception occurs here, at least one connection attempt
+					//has already succeeded, so the problem is with the connection
+					//or the server, not the Queryer's xccUrl
+					log("Request Exception: " + e.getMessage(), 10);
+					e.printStackTrace();
+				}
+			}
+			
+		}));
+	}
 
-		ByteArrayOutputStream tree_out = new ByteArrayOutputStream();
-		PrintWriter tree_writer = new PrintWriter(tree_out);
+	/**
+	 * Parse the given sentences on the parser pool. Only the output the phrase mode needs is written
+	 * @param sentences	sentences to parse
+	 * @return the sentences' parse trees, or null if they are not needed, 
+	 * 			and the sentences' phrase records, or null if they are not needed
+	 */
+	private StringBuilder[] parse(List<String> sentences) {
+		
+		StringBuilder[] parsedTrees = PHRASE_MODE.equals(PhraseExtractor.MODE_JAVA) ? null : new StringBuilder[sentences.size()];
+		StringBuilder[] parsedPhrases = PHRASE_MODE.equals(PhraseExtractor.MODE_XQUERY) ? null : new StringBuilder[sentences.size()];
+		if (!sentences.isEmpty() && !shutdown.get()){
+			PARSER_POOL.invoke(new SentenceParse(sentences, parsedTrees, parsedPhrases, 0, sentences.size()));
+		}
+		return new StringBuilder[]{join(parsedTrees), join(parsedPhrases)};
+	}
 
-		//parse each sentence and write its parse tree to tree_writer
-		System.out.println("batch " + batchId + ": parsing");
-		while (batch.hasNext()){
-			if (shutdown.get()){
-				log("batch " + batchId + " is shutting down", 5);
-				return; 
+	/**
+	 * @return the given buffers appended together in order, or null if there are none
+	 */
+	private static StringBuilder join(StringBuilder[] parts){
+		if (parts == null){
+			return null;
+		}
+		int length = 0;
+		for (StringBuilder part : parts){
+			length += part == null ? 0 : part.length();
+		}
+		StringBuilder joined = new StringBuilder(length);
+		for (StringBuilder part : parts){
+			if (part != null){
+				joined.append(part);
 			}
-			parseMaxLength(batch.next().asString(), tree_writer);
 		}
-		System.out.println("batch " + batchId + ": parsed");
-		parse_time_end = System.nanoTime();
-		log("parsed in :" + (parse_time_end - parse_time_start) / 1000000000.0 + "s.", 5);
+		return joined;
+	}
 
-		//get the parse trees
-		tree_writer.close();
-		String xmlTree = tree_out.toString();
-		tree_out.flush();
-		String trees = "<SENS>" + DocUtils.fixXML(xmlTree) + "</SENS>";
+	/**
+	 * Generates and inserts nphrases for a batch and records the end of the batch.
+	 * Runs on the insert stage
+	 * @param trees		parse trees, in properly formatted XML, or null in java phrase mode
+	 * @param phrases	phrase records, or null in xquery phrase mode
+	 * @param token		authorization token
+	 * @param batchId	batch number
+	 */
+	private void insert(String trees, String phrases, String token, int batchId){
 
-		//generate and insert the nphrases
-		generateNPhrases(token, batchId, trees);
+		try {
+			generateNPhrases(token, batchId, trees, phrases);
+			endBatch(true);
+		} catch (RequestException e) {
+			log("Request Exception: " + e.getMessage(), 10);
+			e.printStackTrace();
+			if (!(e instanceof ServerConnectionException)){
+				shutdown.set(true);
+			}
+			endBatch(false);
+		} catch (IOException e) {
+			e.printStackTrace();
+			endBatch(false);
+		} catch (RuntimeException e) {
+			log("batch " + batchId + " failed to insert: " + e, 10);
+			e.printStackTrace();
+			endBatch(false);
+		}
 	}
 
 	/**
-	 * Generates and inserts nphrases for a batch of parse trees
+	 * Inserts nphrases for a batch: inserts the phrase records if there are any, 
+	 * otherwise generates nphrases from the parse trees in MarkLogic and inserts them.
+	 * If there are both, the phrases MarkLogic would generate are compared to the phrase records
 	 * @param token		authorization token
 	 * @param batchID	batch number being processed
-	 * @param trees		parse trees, in properly formatted XML
+	 * @param trees		parse trees, in properly formatted XML, or null
+	 * @param phrases	phrase records (see PhraseExtractor), or null
 	 * @throws RequestException
 	 * @throws IOException
 	 */
-	private void generateNPhrases(String token, int batchId, String trees) throws IOException, RequestException{
+	private void generateNPhrases(String token, int batchId, String trees, String phrases) throws IOException, RequestException{
 
 		if (shutdown.get()) { 
 			log("batch " + batchId + " is shutting down", 5);
 			return; 
 		}
 		long time_start = System.nanoTime();
-		ResultSequence rs = queryer.doNPhrases(trees, product, edition, filename, ""+batchId, token);
+		int[] phraseCounts;
+		if (phrases == null){
+			phraseCounts = queryer.generateNPhrases(trees, product, edition, filename, ""+batchId, token);
+		} else {
+			phraseCounts = queryer.insertPhrases(phrases, product, edition, filename, ""+batchId, token);
+		}
 		long time_end = System.nanoTime();
-
+		PipelineMetrics.record(PipelineMetrics.INSERT, time_end - time_start);
+		PipelineMetrics.nphrases(phraseCounts);
+		CHECKPOINTS.done(checkpointKey, version, batchId);
 
 		//log nphrase data
-		int[] phraseCounts = new int[PHRASE_NAMES.length];
-		for (int i=0; i < PHRASE_NAMES.length; i++){
-			phraseCounts[i] = Integer.parseInt(rs.itemAt(i).asString());
-		}
 		int sum = 0;
 		for (int i=0; i < phraseCounts.length; i++){
 			sum += phraseCounts[i];
@@ -270,50 +538,588 @@ public class DocumentParse {
 		log("generated & inserted " + sum + " nphrases (" + phraseCounts[0] + ", " +
 				phraseCounts[1] + ", " + phraseCounts[2] + ") in batch " + batchId + " in " + (time_end - time_start) / 1000000000.0 + "s.", 5);
 
+		if (trees != null && phrases != null){
+			comparePhrases(trees, phrases, batchId);
+		}
 
 	}
 
 	/**
-	 * If sentences are over MAX_SENTENCE_LENGTH words long, then split them at the commas and 
-	 * parse the fragments. Otherwise parse the sentences.
+	 * Logs the differences between the phrase records of a batch and the phrases MarkLogic generates 
+	 * from its parse trees. A failed comparison does not fail the batch
+	 * @param trees		parse trees, in properly formatted XML
+	 * @param phrases	phrase records
+	 * @param batchId	batch number being processed
+	 */
+	private void comparePhrases(String trees, String phrases, int batchId){
+
+		try {
+			ResultSequence rs = queryer.buildPhrases(trees);
+			String[] built = new String[PhraseExtractor.TYPES.length];
+			for (int i=0; i < built.length; i++){
+				built[i] = rs.itemAt(i).asString();
+			}
+			log("phrases in batch " + batchId + ": " + PhraseExtractor.compare(phrases, built), 5);
+		} catch (RequestException e) {
+			log("could not compare phrases in batch " + batchId + ": " + e.getMessage(), 7);
+		} catch (IOException e) {
+			log("could not compare phrases in batch " + batchId + ": " + e.getMessage(), 7);
+		}
+
+	}
+
+	/**
+	 * Parse a sentence, splitting it into segments first if it is too long to parse whole (see SentenceSegmenter).
+	 * Once the sentence has used up its parse budget, its remaining segments are chunked instead of parsed
 	 * @param text			A single sentence
-	 * @param tree_writer 	Writer that parse trees are written to
+	 * @param tree_out 		buffer that parse trees are written to, or null
+	 * @param phrase_out	buffer that phrase records are written to, or null
 	 */
-	private void parseMaxLength(String text, PrintWriter tree_writer){
+	private void parseMaxLength(String text, StringBuilder tree_out, StringBuilder phrase_out){
 
-		String words[] = text.split(" ");
-		if (words.length >= MAX_SENTENCE_LENGTH){
-			for (String clause : text.split(",")){
-				stanfordParse(clause, tree_writer);
+		long time_start = System.nanoTime();
+		PipelineMetrics.sentence();
+		int tree_start = tree_out == null ? 0 : tree_out.length();
+		int phrase_start = phrase_out == null ? 0 : phrase_out.length();
+		ParseCache.Key sentenceKey = null;
+		if (fingerprints != null){
+			sentenceKey = PARSE_CACHE.key(strategy.getName(), text);
+			if (fingerprints.reuse(sentenceKey, tree_out, phrase_out)){
+				sentenceEnded(time_start, false);
+				return;
 			}
-		} else {
-			stanfordParse(text, tree_writer);
 		}
+		ParseCache.Key treeKey = null;
+		ParseCache.Key phraseKey = null;
+		if (PARSE_CACHE.isEnabled()){
+			String cachedTree = null;
+			String cachedPhrases = null;
+			if (tree_out != null){
+				treeKey = sentenceKey != null ? sentenceKey : PARSE_CACHE.key(strategy.getName(), text);
+				cachedTree = PARSE_CACHE.get(treeKey);
+			}
+			if (phrase_out != null){
+				phraseKey = PARSE_CACHE.key(strategy.getName() + PHRASE_CACHE_SUFFIX, text);
+				cachedPhrases = PARSE_CACHE.get(phraseKey);
+			}
+			if ((tree_out == null || cachedTree != null) && (phrase_out == null || cachedPhrases != null)){
+				if (tree_out != null){
+					tree_out.append(cachedTree);
+				}
+				if (phrase_out != null){
+					phrase_out.append(cachedPhrases);
+				}
+				index(sentenceKey, tree_out, tree_start, phrase_out, phrase_start);
+				sentenceEnded(time_start, false);
+				return;
+			}
+		}
+		ParseCoalescer.Flight flight = null;
+		if (COALESCER.isEnabled()){
+			if (sentenceKey == null){
+				sentenceKey = treeKey != null ? treeKey : PARSE_CACHE.key(strategy.getName(), text);
+			}
+			flight = COALESCER.join(sentenceKey);
+			if (!flight.isLeader()){
+				if (flight.await(tree_out, phrase_out)){
+					if (flight.isComplete()){
+						index(sentenceKey, tree_out, tree_start, phrase_out, phrase_start);
+					}
+					sentenceEnded(time_start, false);
+					return;
+				}
+				//the leader failed: parse the sentence here
+				flight = null;
+			}
+		}
+		boolean complete = true;
+		boolean parsed = false;
+		try {
+			StringReader sent2Reader = new StringReader(text);
+			List<CoreLabel> tokens = TOKENIZER_FACT.getTokenizer(sent2Reader).tokenize();
+			PipelineMetrics.record(PipelineMetrics.TOKENIZE, System.nanoTime() - time_start);
+			List<List<CoreLabel>> segments = SEGMENTER.segment(tokens);
+			if (segments.size() > 1){
+				SEGMENTED_SENTENCES.incrementAndGet();
+			}
+			for (List<CoreLabel> segment : segments){
+				complete &= stanfordParse(segment, time_start, tree_out, phrase_out);
+			}
+			parsed = true;
+		} finally {
+			if (flight != null && parsed){
+				flight.land(tree_out == null ? null : tree_out.substring(tree_start),
+						phrase_out == null ? null : phrase_out.substring(phrase_start), complete);
+			} else if (flight != null){
+				flight.abort();
+			}
+		}
+		//output of sentences that were chunked to save time is not cached, so the sentence is parsed properly next time
+		if (complete){
+			if (treeKey != null){
+				PARSE_CACHE.put(treeKey, tree_out.substring(tree_start));
+			}
+			if (phraseKey != null){
+				PARSE_CACHE.put(phraseKey, phrase_out.substring(phrase_start));
+			}
+			index(sentenceKey, tree_out, tree_start, phrase_out, phrase_start);
+		}
+		sentenceEnded(time_start, true);
 	}
 
-	/** Get a parse tree of this sentence using the Stanford parser 
-	 * Uses the Stanford tagger to tag the sentence before parsing
-	 * Parse trees are written to tree_writer and can be retrieved by closing tree_writer
-	 * and calling toString() on the associated output stream
-	 * @param text 			A single sentence or fragment
-	 * @param tree_writer	Writer that parse trees are written to
+	/**
+	 * Records the time taken by a sentence, and whether it was parsed or its output was shared, in its job
+	 * @param parsed	false if the output came from this document's fingerprints, the parse cache or another
+	 * 					document's parse of the same sentence
+	 */
+	private void sentenceEnded(long time_start, boolean parsed){
+		SENTENCE_LATENCY.recordNanos(System.nanoTime() - time_start);
+		if (job != null){
+			job.sentenceEnded(parsed);
+		}
+	}
+
+	/**
+	 * Records the output of a sentence, appended from tree_start and phrase_start, in this document's fingerprints
+	 * @param key	fingerprint of the sentence, or null if it was not computed
+	 */
+	private void index(ParseCache.Key key, StringBuilder tree_out, int tree_start, StringBuilder phrase_out, int phrase_start){
+		if (fingerprints != null && key != null){
+			fingerprints.put(key, tree_out == null ? null : tree_out.substring(tree_start),
+					phrase_out == null ? null : phrase_out.substring(phrase_start));
+		}
+	}
+
+	/** Get a parse tree of a segment of a sentence using this document's parse strategy
+	 * Uses the Stanford tagger to tag the segment before parsing
+	 * Parse trees are appended to tree_out as fixed xml (see DocUtils.fixXML), 
+	 * and their phrases to phrase_out as records (see PhraseExtractor)
+	 * @param tokens 		tokens of a single sentence or segment
+	 * @param time_start	time parsing of the sentence started, in System.nanoTime()
+	 * @param tree_out		buffer that parse trees are written to, or null
+	 * @param phrase_out	buffer that phrase records are written to, or null
+	 * @return false if the segment was chunked because it was over budget or could not be parsed
 	 **/
-	private void stanfordParse(String text, PrintWriter tree_writer){
-		StringReader sent2Reader = new StringReader(text);
-		List<CoreLabel> tokens = TOKENIZER_FACT.getTokenizer(sent2Reader).tokenize();
-		List<TaggedWord> tags = TAGGER.apply(tokens);
-		Tree parse = LEX_PARSE.apply(tags);
-		TREE_PRINT.printTree(parse, tree_writer);
+	private boolean stanfordParse(List<CoreLabel> tokens, long time_start, StringBuilder tree_out, StringBuilder phrase_out){
+		long tag_start = System.nanoTime();
+		List<TaggedWord> tags = NlpModels.getTagger().apply(tokens);
+		long parse_start = System.nanoTime();
+		PipelineMetrics.record(PipelineMetrics.TAG, parse_start - tag_start);
+		ParseStrategy chosen = strategy;
+		if (chosen instanceof RoutedStrategy){
+			chosen = ((RoutedStrategy) chosen).route(tags);
+		}
+		Tree parse;
+		boolean complete = true;
+		if (chosen == CHUNK){
+			parse = CHUNK.parse(tags);
+		} else if (!PARSE_BUDGET.allows(System.nanoTime() - time_start, tags.size())){
+			log("over parse budget, chunking " + tags.size() + " tokens", 4);
+			parse = CHUNK.parse(tags);
+			complete = false;
+		} else {
+			try {
+				parse = chosen.parse(tags);
+				if (chosen == PCFG){
+					PARSE_BUDGET.record(tags.size(), System.nanoTime() - parse_start);
+				}
+			} catch (RuntimeException e){
+				log("parse failed, chunking " + tags.size() + " tokens: " + e, 7);
+				parse = CHUNK.parse(tags);
+				complete = false;
+			}
+		}
+		long output_start = System.nanoTime();
+		PipelineMetrics.record(PipelineMetrics.PARSE, output_start - parse_start);
+		if (tree_out != null){
+			DocUtils.appendXML(parse, tree_out);
+			long xml_end = System.nanoTime();
+			PipelineMetrics.record(PipelineMetrics.XML, xml_end - output_start);
+			output_start = xml_end;
+		}
+		if (phrase_out != null){
+			PhraseExtractor.extract(parse, phrase_out);
+			PipelineMetrics.record(PipelineMetrics.EXTRACT, System.nanoTime() - output_start);
+		}
+		return complete;
 
 	}
 
 
+	/**
+	 * Receives a batch's sentences from MarkLogic as they arrive, and hands them to the batch PART_SENTENCES at a time
+	 */
+	private class SentenceStream implements ResultHandler {
+
+		private final BatchParse batch;
+		/**number of batches, read from the first item of batch 0, or -1 until it has been read*/
+		private int count = -1;
+		/**true until the second item of batch 0, which is the version of the document, has been read*/
+		private boolean versionPending;
+		/**set if batch 0 was resumed from the document's recorded progress: its sentences are then ignored*/
+		boolean resumed = false;
+		/**sentences not yet handed to the batch*/
+		private List<String> part = new ArrayList<String>(PART_SENTENCES);
+
+		SentenceStream(BatchParse batch){
+			this.batch = batch;
+			this.versionPending = batch.batchId == 0;
+		}
+
+		public void item(String item){
+			if (resumed){
+				return;
+			}
+			if (versionPending && count < 0){
+				count = Integer.parseInt(item);
+				return;
+			}
+			if (versionPending){ //resume or restart the document, and spawn new tasks for the other batches
+				versionPending = false;
+				version = item;
+				boolean recorded = CHECKPOINTS.start(checkpointKey, count, version);
+				if (recorded && fingerprints != null){
+					//sentences of the batches that are not parsed in this run stay in the document's index
+					fingerprints.keepPrevious();
+				}
+				spawnBatches(batch.token, count);
+				resumed = recorded && resume(batch.token, 0);
+				return;
+			}
+			part.add(item);
+			if (part.size() >= PART_SENTENCES){
+				flush();
+			}
+		}
+
+		/**
+		 * Hands the sentences not yet handed over to the batch
+		 */
+		void flush(){
+			if (!part.isEmpty()){
+				batch.add(part);
+				part = new ArrayList<String>(PART_SENTENCES);
+			}
+		}
+
+	}
+
+	/**
+	 * A batch whose sentences are parsed in parts on the parse stage as they arrive. Once all parts have
+	 * arrived and been parsed, their output is put together in order and queued on the insert stage
+	 */
+	private class BatchParse {
+
+		final String token;
+		final int batchId;
+		/**parse output of each part, in order: see parse(List)*/
+		private final List<StringBuilder[]> parts = new ArrayList<StringBuilder[]>();
+		/**parts being parsed, plus one until all parts have arrived*/
+		private final AtomicInteger pending = new AtomicInteger(1);
+		/**set if a part could not be parsed: the batch then fails once its other parts are done*/
+		private volatile boolean failed = false;
+		/**number and UTF-8 size of the sentences that have arrived*/
+		int sentences = 0;
+		long bytes = 0;
+		private final long parse_time_start = System.nanoTime();
+
+		BatchParse(String token, int batchId){
+			this.token = token;
+			this.batchId = batchId;
+		}
+
+		/**
+		 * Queues a part of the batch on the parse stage. Called on the fetch stage
+		 * @param sentences		the part's sentences
+		 */
+		void add(final List<String> sentences){
+			this.sentences += sentences.size();
+			for (String sentence : sentences){
+				bytes += utf8Length(sentence);
+			}
+			final int index;
+			synchronized (parts){
+				index = parts.size();
+				parts.add(null);
+			}
+			pending.incrementAndGet();
+			log("parsing " + sentences.size() + " sentences for batch " + batchId + " (part " + index + ")", 2);
+			pipeline.getParseStage().submit(new Runnable(){
+				public void run(){
+					boolean parsed = false;
+					try {
+						StringBuilder[] output = parse(sentences);
+						synchronized (parts){
+							parts.set(index, output);
+						}
+						parsed = true;
+					} catch (RuntimeException e){
+						log("could not parse part " + index + " of batch " + batchId + ": " + e, 10);
+						e.printStackTrace();
+					} finally {
+						//whatever the part threw, the batch ends, failed, rather than holding its document and job forever
+						if (!parsed){
+							failed = true;
+						}
+						done();
+					}
+				}
+			});
+		}
+
+		/**
+		 * Records that all of the batch's parts have arrived
+		 */
+		void fetched(){
+			done();
+		}
+
+		private void done(){
+			if (pending.decrementAndGet() == 0){
+				try {
+					finish();
+				} catch (RuntimeException e){
+					//e.g. the insert stage was shut down: the batch cannot be inserted
+					log("could not queue batch " + batchId + " for insert: " + e, 10);
+					endBatch(false);
+				}
+			}
+		}
+
+		/**
+		 * Puts the output of the parts together and queues it on the insert stage, 
+		 * or ends the batch as failed if a part could not be parsed
+		 */
+		private void finish(){
+			if (failed){
+				log("batch " + batchId + " failed: a part could not be parsed", 10);
+				endBatch(false);
+				return;
+			}
+			if (shutdown.get()){
+				log("batch " + batchId + " is shutting down", 5);
+				endBatch(true);
+				return; 
+			}
+			System.out.println("batch " + batchId + ": parsed");
+			log("parsed in :" + (System.nanoTime() - parse_time_start) / 1000000000.0 + "s.", 5);
+
+			String trees = null;
+			String phrases = null;
+			synchronized (parts){
+				//get the parse trees, in order
+				if (!PHRASE_MODE.equals(PhraseExtractor.MODE_JAVA)){
+					StringBuilder tree_out = TREE_BUFFER.get();
+					tree_out.setLength(0);
+					tree_out.append("<SENS>");
+					for (StringBuilder[] part : parts){
+						tree_out.append(part[0]);
+					}
+					tree_out.append("</SENS>");
+					trees = tree_out.toString();
+					if (tree_out.capacity() > MAX_TREE_BUFFER_CAPACITY){
+						TREE_BUFFER.remove();
+					}
+				}
+				//get the phrase records, in order
+				if (!PHRASE_MODE.equals(PhraseExtractor.MODE_XQUERY)){
+					StringBuilder phrase_out = new StringBuilder();
+					for (StringBuilder[] part : parts){
+						phrase_out.append(part[1]);
+					}
+					phrases = phrase_out.toString();
+				}
+				parts.clear();
+			}
+
+			CHECKPOINTS.parsed(checkpointKey, version, batchId, trees, phrases);
+			final String batchTrees = trees;
+			final String batchPhrases = phrases;
+			//generate and insert the nphrases
+			pipeline.getInsertStage().submit(new Runnable(){
+				public void run(){
+					insert(batchTrees, batchPhrases, token, batchId);
+				}
+			});
+		}
+
+	}
+
+	/**
+	 * @return the number of bytes the given text takes in UTF-8
+	 */
+	private static long utf8Length(String text){
+		long length = 0;
+		for (int i=0; i < text.length(); i++){
+			char c = text.charAt(i);
+			if (c < 0x80){
+				length += 1;
+			} else if (c < 0x800){
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))){
+				length += 4;
+				i++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Parses a range of a batch's sentences, splitting the range across the parser pool
+	 */
+	private class SentenceParse extends RecursiveAction {
+
+		private static final long serialVersionUID = -2926043893421155284L;
+
+		/**sentences of the batch*/
+		private final List<String> sentences;
+		/**parse trees of the batch, where each entry corresponds to the entry at the same index in sentences; 
+		 * null if parse trees are not needed*/
+		private final StringBuilder[] trees;
+		/**phrase records of the batch, like trees; null if phrase records are not needed*/
+		private final StringBuilder[] phrases;
+		/**index of the first sentence in the range*/
+		private final int start;
+		/**index after the last sentence in the range*/
+		private final int end;
+
+		SentenceParse(List<String> sentences, StringBuilder[] trees, StringBuilder[] phrases, int start, int end){
+			this.sentences = sentences;
+			this.trees = trees;
+			this.phrases = phrases;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute(){
+			if (end - start > 1){
+				int middle = (start + end) >>> 1;
+				invokeAll(new SentenceParse(sentences, trees, phrases, start, middle), 
+						new SentenceParse(sentences, trees, phrases, middle, end));
+			} else if (!shutdown.get()){
+				StringBuilder tree = trees == null ? null : new StringBuilder();
+				StringBuilder phrase = phrases == null ? null : new StringBuilder();
+				parseMaxLength(sentences.get(start), tree, phrase);
+				if (trees != null){
+					trees[start] = tree;
+				}
+				if (phrases != null){
+					phrases[start] = phrase;
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Stops the parser pool and closes the parse cache; batches still parsing stop once their 
+	 * running sentences finish
+	 */
+	static void shutdownParsing(){
+		PARSER_POOL.shutdownNow();
+		PARSE_CACHE.close();
+		CHECKPOINTS.close();
+	}
+
+	/**
+	 * Gets a parse strategy by name:
+	 * 		pcfg: parse every sentence with the PCFG parser
+	 * 		chunk: chunk every sentence into noun, verb and prepositional phrases without parsing it
+	 * 		auto: chunk short, simple sentences and parse the others with the PCFG parser
+	 * @param parseMode		name of the strategy
+	 * @return the strategy
+	 * @throws IllegalArgumentException if there is no strategy with that name
+	 */
+	public static ParseStrategy getParseStrategy(String parseMode){
+		ParseStrategy strategy = STRATEGIES.get(parseMode);
+		if (strategy == null){
+			throw new IllegalArgumentException("Unknown parse mode: " + parseMode);
+		}
+		return strategy;
+	}
+
+	/**
+	 * @return the given phrase mode, or xquery if it is not a known mode
+	 */
+	private static String getPhraseMode(String mode){
+		if (mode.equals(PhraseExtractor.MODE_XQUERY)){
+			return mode;
+		}
+		if (mode.equals(PhraseExtractor.MODE_JAVA) || mode.equals(PhraseExtractor.MODE_COMPARE)){
+			logger.warn("phrases.mode " + mode + " is experimental: PhraseExtractor has not been checked against the np library"
+					+ " (see PhraseExtractorParityTest)");
+			return mode;
+		}
+		logger.error("Unknown phrase mode: " + mode + ", using " + PhraseExtractor.MODE_XQUERY);
+		return PhraseExtractor.MODE_XQUERY;
+	}
+
+	/**
+	 * @return a summary of sentence parse times, segmentation and budget overruns
+	 */
+	public static String getParseStats(){
+		return "sentence parse times: " + SENTENCE_LATENCY + "; " + SEGMENTED_SENTENCES.get() + " sentences segmented; "
+				+ PARSE_BUDGET;
+	}
+
+	/**
+	 * @return the time taken to parse each sentence
+	 */
+	public static LatencyHistogram getSentenceLatency(){
+		return SENTENCE_LATENCY;
+	}
+
+	/**
+	 * @return the number of sentences that were split into segments to parse them
+	 */
+	public static long getSegmentedSentences(){
+		return SEGMENTED_SENTENCES.get();
+	}
+
+	/**
+	 * @return the budget of time allowed for parsing a sentence
+	 */
+	public static ParseBudget getParseBudget(){
+		return PARSE_BUDGET;
+	}
+
+	/**
+	 * @return the recorded progress of documents
+	 */
+	public static CheckpointJournal getCheckpoints(){
+		return CHECKPOINTS;
+	}
+
+	/**
+	 * @return the coalescer of concurrent parses of the same sentence
+	 */
+	public static ParseCoalescer getCoalescer(){
+		return COALESCER;
+	}
+
+	/**
+	 * @return the index of the sentences of documents processed
+	 */
+	public static FingerprintIndex getFingerprints(){
+		return FINGERPRINTS;
+	}
+
+	/**
+	 * @return the cache of sentence parse trees
+	 */
+	public static ParseCache getParseCache(){
+		return PARSE_CACHE;
+	}
+
 	/**
 	 * print message to log file
 	 * @param msg		message to log
 	 */
 	public void log(String msg, int debugLevel){
-			msg = " (" + threadpool.getActiveCount() + 
+			msg = " (" + pipeline.getActiveCount() + 
 					" active) | " + filename + " | " + msg;
 			
 			if (debugLevel > 8){
@@ -327,11 +1133,11 @@ public class DocumentParse {
 			}
 	}
   
+  /**
+   * Stops the document: batches not yet started are skipped, and those in progress end once their running step does
+   */
   public void shutdown(){
-    synchronized (id) {
-      shutdown.set(true);
-      id = id + "-shutdown";
-    }
+    shutdown.set(true);
   }
 
 }
\ No newline at end of file
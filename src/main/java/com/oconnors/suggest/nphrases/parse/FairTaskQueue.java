@@ -0,0 +1,340 @@
+package com.oconnors.suggest.nphrases.parse;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Task queue that takes tasks by priority, then fairly across documents and products.
+ * Tasks of a higher priority (a lower number) always come first, so interactive requests go ahead of bulk jobs.
+ * Within a priority, tasks are ordered by start-time fair queuing: each document is a flow whose tasks get
+ * increasing start tags, and a document that has been waiting starts from the tag of the last task taken,
+ * so a document with many queued batches cannot hold back documents queued after it. Each batch of a document
+ * costs as many tags as its product has documents queued, so products share the queue equally however many
+ * documents they have. Tasks that are not a Task are interactive, each in a flow of its own
+ */
+public class FairTaskQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+	/**priority of single document requests*/
+	public static final int INTERACTIVE = 0;
+	/**priority of documents of bulk jobs*/
+	public static final int BULK = 1;
+	private static final int PRIORITIES = 2;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final PriorityQueue<Entry> entries = new PriorityQueue<Entry>();
+	/**queued documents, by flow*/
+	private final Map<String, Flow> flows = new HashMap<String, Flow>();
+	/**number of queued documents, by product*/
+	private final Map<String, Integer> groups = new HashMap<String, Integer>();
+	/**start tag of the last task taken, for each priority*/
+	private final double[] virtualTime = new double[PRIORITIES];
+	/**order tasks were queued in: breaks ties between equal tags*/
+	private long sequence = 0;
+
+	/**time the last task was taken, in nanoseconds*/
+	private long lastTaken = 0;
+	/**decayed mean time between tasks being taken, in nanoseconds*/
+	private double takeInterval = 0;
+
+	/**
+	 * Queues a task. The queue has no bound of its own, so that the batches of admitted documents are never refused:
+	 * admission limits the documents (see ParseDriver), and each document queues a window of its batches at a time
+	 * (see DocumentParse.spawnBatches)
+	 */
+	public boolean offer(Runnable task){
+		if (task == null){
+			throw new NullPointerException();
+		}
+		lock.lock();
+		try {
+			Task scheduled = task instanceof Task ? (Task) task : null;
+			int priority = scheduled == null ? INTERACTIVE : Math.min(Math.max(scheduled.priority, 0), PRIORITIES - 1);
+			String flowKey = scheduled == null ? "#" + sequence : scheduled.flow;
+			String groupKey = scheduled == null ? flowKey : scheduled.group;
+			Flow flow = flows.get(flowKey);
+			if (flow == null){
+				flow = new Flow(groupKey);
+				flows.put(flowKey, flow);
+				Integer documents = groups.get(groupKey);
+				groups.put(groupKey, documents == null ? 1 : documents + 1);
+			}
+			double start = Math.max(virtualTime[priority], flow.finish);
+			flow.finish = start + groups.get(groupKey);
+			flow.queued++;
+			entries.add(new Entry(task, priority, start, sequence++, flowKey));
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void put(Runnable task){
+		offer(task);
+	}
+
+	public boolean offer(Runnable task, long timeout, TimeUnit unit){
+		return offer(task);
+	}
+
+	public Runnable poll(){
+		lock.lock();
+		try {
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public Runnable take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (entries.isEmpty()){
+				notEmpty.await();
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (entries.isEmpty()){
+				if (nanos <= 0){
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public Runnable peek(){
+		lock.lock();
+		try {
+			Entry entry = entries.peek();
+			return entry == null ? null : entry.task;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int size(){
+		lock.lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int remainingCapacity(){
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public boolean remove(Object task){
+		lock.lock();
+		try {
+			Iterator<Entry> it = entries.iterator();
+			while (it.hasNext()){
+				Entry entry = it.next();
+				if (entry.task == task){
+					it.remove();
+					removed(entry);
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int drainTo(Collection<? super Runnable> c){
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	public int drainTo(Collection<? super Runnable> c, int maxElements){
+		lock.lock();
+		try {
+			int n = 0;
+			while (n < maxElements && !entries.isEmpty()){
+				c.add(dequeue());
+				n++;
+			}
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return a snapshot of the queued tasks, in no particular order
+	 */
+	public Iterator<Runnable> iterator(){
+		lock.lock();
+		try {
+			List<Runnable> tasks = new ArrayList<Runnable>(entries.size());
+			for (Entry entry : entries){
+				tasks.add(entry.task);
+			}
+			return tasks.iterator();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of queued tasks of a priority
+	 */
+	public int size(int priority){
+		lock.lock();
+		try {
+			int n = 0;
+			for (Entry entry : entries){
+				if (entry.priority == priority){
+					n++;
+				}
+			}
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the estimated time until the tasks queued now have been taken, in milliseconds
+	 */
+	public long getDrainTime(){
+		lock.lock();
+		try {
+			return (long) (entries.size() * takeInterval / 1000000);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the next task; called with the lock held
+	 */
+	private Runnable dequeue(){
+		Entry entry = entries.poll();
+		if (entry == null){
+			return null;
+		}
+		virtualTime[entry.priority] = entry.start;
+		removed(entry);
+		long now = System.nanoTime();
+		if (lastTaken != 0){
+			takeInterval = takeInterval == 0 ? now - lastTaken : 0.9 * takeInterval + 0.1 * (now - lastTaken);
+		}
+		lastTaken = now;
+		return entry.task;
+	}
+
+	/**
+	 * Forgets a task's document once it has no tasks queued; called with the lock held
+	 */
+	private void removed(Entry entry){
+		Flow flow = flows.get(entry.flow);
+		if (--flow.queued == 0){
+			flows.remove(entry.flow);
+			int documents = groups.get(flow.group);
+			if (documents == 1){
+				groups.remove(flow.group);
+			} else {
+				groups.put(flow.group, documents - 1);
+			}
+		}
+	}
+
+	/**
+	 * A task with the priority, document and product it is scheduled by
+	 */
+	public static class Task implements Runnable {
+
+		private final int priority;
+		private final String flow;
+		private final String group;
+		private final Runnable task;
+
+		/**
+		 * @param priority	INTERACTIVE or BULK
+		 * @param flow		identifies the task's document
+		 * @param group		identifies the document's product
+		 * @param task		task to run
+		 */
+		public Task(int priority, String flow, String group, Runnable task){
+			this.priority = priority;
+			this.flow = flow;
+			this.group = group;
+			this.task = task;
+		}
+
+		public void run(){
+			task.run();
+		}
+
+	}
+
+	/**
+	 * A queued document: the finish tag of its last queued task, and the number of its tasks queued
+	 */
+	private static class Flow {
+
+		final String group;
+		double finish = 0;
+		int queued = 0;
+
+		Flow(String group){
+			this.group = group;
+		}
+
+	}
+
+	private static class Entry implements Comparable<Entry> {
+
+		final Runnable task;
+		final int priority;
+		final double start;
+		final long sequence;
+		final String flow;
+
+		Entry(Runnable task, int priority, double start, long sequence, String flow){
+			this.task = task;
+			this.priority = priority;
+			this.start = start;
+			this.sequence = sequence;
+			this.flow = flow;
+		}
+
+		public int compareTo(Entry other){
+			if (priority != other.priority){
+				return priority < other.priority ? -1 : 1;
+			}
+			if (start != other.start){
+				return start < other.start ? -1 : 1;
+			}
+			return sequence < other.sequence ? -1 : sequence > other.sequence ? 1 : 0;
+		}
+
+	}
+
+}
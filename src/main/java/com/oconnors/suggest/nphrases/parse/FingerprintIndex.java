@@ -0,0 +1,505 @@
+package com.oconnors.suggest.nphrases.parse;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Index of the sentences of each document processed, in a directory (the fingerprint.dir setting): for each
+ * sentence, its fingerprint (its ParseCache key) and its parse output. When a document is processed again,
+ * a sentence whose fingerprint is in the document's index is not parsed: its output is taken from the index.
+ * Only sentences that were added or changed since the document was last processed are parsed.
+ * Unlike the parse cache, a document's entries are kept for as long as the document is, whatever other
+ * documents are parsed in the meantime.
+ * Each document has a file of its own, replaced once all of its batches have been inserted, holding the
+ * sentences it has now; entries of sentences that are no longer in the document are dropped then.
+ * Entries are read from the files when needed and written as sentences are parsed, so that a document being
+ * processed keeps only its sentences' fingerprints in memory, not their output
+ */
+public class FingerprintIndex {
+
+	final static Logger logger = LogManager.getLogger(FingerprintIndex.class.getName());
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/**first bytes of an index file*/
+	private static final int FILE_MAGIC = 0x4E504631;
+	private static final String FILE_SUFFIX = ".fp";
+	/**suffix of the new file of a document being processed*/
+	private static final String TEMP_SUFFIX = ".tmp";
+	/**entry flags: the entry has a parse tree, phrase records*/
+	private static final byte HAS_TREE = 1;
+	private static final byte HAS_PHRASES = 2;
+
+	/**directory of index files, or null if disabled*/
+	private final File dir;
+	/**identifies the models and settings that produced the indexed output*/
+	private final String signature;
+
+	private final AtomicLong reused = new AtomicLong(0);
+	private final AtomicLong changed = new AtomicLong(0);
+	private final AtomicLong removed = new AtomicLong(0);
+	private final AtomicLong saved = new AtomicLong(0);
+
+	/**
+	 * @param dir			directory of index files, or null to disable the index
+	 * @param maxAge		index files not written for this long, in milliseconds, are deleted; 0 keeps them
+	 * @param signature		models and settings the output is produced with: an index file written with
+	 * 						another signature is ignored
+	 */
+	public FingerprintIndex(String dir, long maxAge, String signature){
+		this.signature = signature;
+		File directory = dir == null || dir.isEmpty() ? null : new File(dir);
+		if (directory != null && !directory.isDirectory() && !directory.mkdirs()){
+			logger.error("could not create fingerprint directory " + directory + ": sentences will not be indexed");
+			directory = null;
+		}
+		this.dir = directory;
+		if (directory != null && maxAge > 0){
+			deleteOlder(System.currentTimeMillis() - maxAge);
+		}
+		logger.info(toString());
+	}
+
+	/**
+	 * @param signature		models and settings the output is produced with
+	 * @return the index of the fingerprint.* settings
+	 */
+	public static FingerprintIndex fromConfig(String signature){
+		return new FingerprintIndex(ParseConfig.get("fingerprint.dir", null),
+				TimeUnit.DAYS.toMillis(ParseConfig.getLong("fingerprint.max.age.days", 30)), signature);
+	}
+
+	/**
+	 * @return true if sentences are indexed
+	 */
+	public boolean isEnabled(){
+		return dir != null;
+	}
+
+	/**
+	 * @param document		key of the document (see CheckpointJournal.key)
+	 * @return the document's entries, read from its file when first needed, or null if the index is disabled
+	 */
+	public Document open(String document){
+		return dir == null ? null : new Document(document);
+	}
+
+	/**
+	 * @return the number of sentences whose output was taken from their document's index
+	 */
+	public long getReused(){
+		return reused.get();
+	}
+
+	/**
+	 * @return the number of sentences that were not in their document's index, and were parsed
+	 */
+	public long getChanged(){
+		return changed.get();
+	}
+
+	/**
+	 * @return the number of sentences dropped from their document's index because they were no longer in it
+	 */
+	public long getRemoved(){
+		return removed.get();
+	}
+
+	@Override
+	public String toString(){
+		return dir == null ? "fingerprints: disabled"
+				: "fingerprints: " + reused.get() + " sentences reused, " + changed.get() + " changed, " + removed.get()
+				+ " removed | " + saved.get() + " documents saved in " + dir;
+	}
+
+	private void deleteOlder(long oldest){
+		File[] files = dir.listFiles();
+		if (files == null){
+			return;
+		}
+		int deleted = 0;
+		for (File file : files){
+			//new files left by a server that stopped while processing documents go too
+			boolean indexFile = file.getName().endsWith(FILE_SUFFIX) || file.getName().endsWith(TEMP_SUFFIX);
+			if (indexFile && file.lastModified() < oldest && file.delete()){
+				deleted++;
+			}
+		}
+		if (deleted > 0){
+			logger.info("deleted " + deleted + " fingerprint files of documents not processed since " + new Date(oldest));
+		}
+	}
+
+	/**
+	 * @return the file of a document: a hash of its key, since the key holds characters that filenames cannot
+	 */
+	private File file(String document){
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(document.getBytes(UTF8));
+			StringBuilder name = new StringBuilder(digest.length * 2 + FILE_SUFFIX.length());
+			for (byte b : digest){
+				name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return new File(dir, name.append(FILE_SUFFIX).toString());
+		} catch (NoSuchAlgorithmException e){
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Entries of one document: those of its file, and those of the sentences it has now, which are written to a new
+	 * file as they are parsed or reused. Only the fingerprints and the offsets of their entries in the files are kept
+	 * in memory. Safe to use from the parse threads of all of the document's batches
+	 */
+	public class Document {
+
+		private final String document;
+		/**guards the files, which the insert stage uses (see save) on a virtual thread: a ReentrantLock
+		 * does not pin its carrier thread while it reads or writes, as a monitor would*/
+		private final ReentrantLock lock = new ReentrantLock();
+		/**offsets of the entries of the document's file, or null until read*/
+		private Map<ParseCache.Key, Long> previous;
+		/**the document's file, or null if it has none or it was not read*/
+		private RandomAccessFile previousFile;
+		/**offsets of the entries of the sentences parsed or reused in this run, in the new file*/
+		private final Map<ParseCache.Key, Long> current = new HashMap<ParseCache.Key, Long>();
+		/**new file, which replaces the document's file once saved, or null until the first entry is written*/
+		private File temp;
+		private RandomAccessFile tempFile;
+		/**offset of the number of entries in the new file, written once it is saved, and the end of the file*/
+		private long countOffset;
+		private long tempEnd;
+		/**set once saved or discarded: entries are then no longer read or written*/
+		private boolean closed = false;
+		/**true if some batches were not parsed in this run, so entries not seen in it are kept*/
+		private volatile boolean partial = false;
+
+		Document(String document){
+			this.document = document;
+		}
+
+		/**
+		 * Appends the indexed output of a sentence, if the index holds all of the output needed
+		 * @param key			fingerprint of the sentence
+		 * @param tree_out		buffer for the parse tree, or null if it is not needed
+		 * @param phrase_out	buffer for the phrase records, or null if they are not needed
+		 * @return true if the output was appended, false if the sentence has to be parsed
+		 */
+		public boolean reuse(ParseCache.Key key, StringBuilder tree_out, StringBuilder phrase_out){
+			String[] entry = null;
+			lock.lock();
+			try {
+				if (!closed){
+					Long offset = current.get(key);
+					if (offset != null){
+						entry = readEntry(tempFile, offset);
+					} else {
+						Long previousOffset = previous().get(key);
+						entry = previousOffset == null ? null : readEntry(previousFile, previousOffset);
+					}
+					if (entry != null && (tree_out == null || entry[0] != null) && (phrase_out == null || entry[1] != null)
+							&& offset == null){
+						writeEntry(key, entry);
+					}
+				}
+			} catch (IOException e){
+				fail(e);
+				entry = null;
+			} finally {
+				lock.unlock();
+			}
+			if (entry == null || (tree_out != null && entry[0] == null) || (phrase_out != null && entry[1] == null)){
+				changed.incrementAndGet();
+				return false;
+			}
+			if (tree_out != null){
+				tree_out.append(entry[0]);
+			}
+			if (phrase_out != null){
+				phrase_out.append(entry[1]);
+			}
+			reused.incrementAndGet();
+			return true;
+		}
+
+		/**
+		 * Records the output of a sentence of this run
+		 * @param tree		parse tree xml, or null if it was not produced
+		 * @param phrases	phrase records, or null if they were not produced
+		 */
+		public void put(ParseCache.Key key, String tree, String phrases){
+			lock.lock();
+			try {
+				if (!closed){
+					writeEntry(key, new String[]{tree, phrases});
+				}
+			} catch (IOException e){
+				fail(e);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Keeps the entries of the file that were not seen in this run, for a document some of whose batches
+		 * were not parsed again (see CheckpointJournal)
+		 */
+		public void keepPrevious(){
+			partial = true;
+		}
+
+		/**
+		 * Replaces the document's file with the new file. Called once all of its batches are inserted
+		 */
+		public void save(){
+			lock.lock();
+			try {
+				if (closed){
+					return;
+				}
+				int dropped = 0;
+				for (Map.Entry<ParseCache.Key, Long> entry : previous().entrySet()){
+					if (current.containsKey(entry.getKey())){
+						continue;
+					}
+					if (partial){
+						writeEntry(entry.getKey(), readEntry(previousFile, entry.getValue()));
+					} else {
+						dropped++;
+					}
+				}
+				removed.addAndGet(dropped);
+				if (tempFile == null){
+					openTemp();
+				}
+				tempFile.seek(countOffset);
+				tempFile.writeInt(current.size());
+				int count = current.size();
+				close();
+				File file = file(document);
+				if (!temp.renameTo(file)){
+					//renameTo does not replace an existing file on every platform
+					file.delete();
+					if (!temp.renameTo(file)){
+						throw new IOException("could not rename " + temp + " to " + file);
+					}
+				}
+				saved.incrementAndGet();
+				logger.debug("saved " + count + " sentence fingerprints of " + document + ", " + dropped + " removed");
+			} catch (IOException e){
+				fail(e);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Deletes the new file, for a document that ended without all of its batches being inserted:
+		 * the document's file is kept as it is
+		 */
+		public void discard(){
+			lock.lock();
+			try {
+				if (!closed){
+					close();
+					if (temp != null){
+						temp.delete();
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Gives up indexing the document in this run: its file is kept as it is
+		 */
+		private void fail(IOException e){
+			logger.warn("could not save the sentence fingerprints of " + document + ": " + e);
+			close();
+			if (temp != null){
+				temp.delete();
+			}
+		}
+
+		private void close(){
+			closed = true;
+			closeQuietly(previousFile);
+			closeQuietly(tempFile);
+			previous = null;
+			current.clear();
+		}
+
+		/**
+		 * Appends an entry to the new file, unless the sentence already has one
+		 * @param entry		tree and phrases, either of which may be null
+		 */
+		private void writeEntry(ParseCache.Key key, String[] entry) throws IOException{
+			if (current.containsKey(key)){
+				return;
+			}
+			if (tempFile == null){
+				openTemp();
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeLong(key.getHigh());
+			out.writeLong(key.getLow());
+			out.writeByte((entry[0] == null ? 0 : HAS_TREE) | (entry[1] == null ? 0 : HAS_PHRASES));
+			writeString(out, entry[0]);
+			writeString(out, entry[1]);
+			tempFile.seek(tempEnd);
+			tempFile.write(bytes.toByteArray());
+			//entries are read from their flags
+			current.put(key, tempEnd + 16);
+			tempEnd += bytes.size();
+		}
+
+		/**
+		 * Creates the new file and writes its header, with no entries
+		 */
+		private void openTemp() throws IOException{
+			temp = File.createTempFile(file(document).getName(), TEMP_SUFFIX, dir);
+			tempFile = new RandomAccessFile(temp, "rw");
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(FILE_MAGIC);
+			out.writeUTF(signature);
+			out.writeUTF(document);
+			countOffset = bytes.size();
+			out.writeInt(0);
+			tempFile.write(bytes.toByteArray());
+			tempEnd = bytes.size();
+		}
+
+		private Map<ParseCache.Key, Long> previous(){
+			if (previous == null){
+				previous = read();
+			}
+			return previous;
+		}
+
+		/**
+		 * Opens the document's file and reads the offsets of its entries
+		 * @return the offsets, or none if it has no file or it does not match
+		 */
+		private Map<ParseCache.Key, Long> read(){
+			Map<ParseCache.Key, Long> entries = new HashMap<ParseCache.Key, Long>();
+			File file = file(document);
+			if (!file.isFile()){
+				return entries;
+			}
+			RandomAccessFile in = null;
+			try {
+				in = new RandomAccessFile(file, "r");
+				if (in.readInt() != FILE_MAGIC || !in.readUTF().equals(signature) || !in.readUTF().equals(document)){
+					logger.info(file + " was written for other models or another document: ignoring it");
+					in.close();
+					return entries;
+				}
+				int count = in.readInt();
+				long offset = in.getFilePointer();
+				//the file and its channel share their position: the entries are scanned through a buffer
+				DataInputStream entriesIn = new DataInputStream(new BufferedInputStream(Channels.newInputStream(in.getChannel())));
+				for (int i=0; i < count; i++){
+					ParseCache.Key key = new ParseCache.Key(entriesIn.readLong(), entriesIn.readLong());
+					entries.put(key, offset + 16);
+					byte flags = entriesIn.readByte();
+					offset += 17 + skipString(entriesIn, (flags & HAS_TREE) != 0) + skipString(entriesIn, (flags & HAS_PHRASES) != 0);
+				}
+				previousFile = in;
+			} catch (IOException e){
+				//a file cut short is of no use: the document is parsed in full and the file replaced
+				logger.warn("could not read " + file + ": " + e);
+				closeQuietly(in);
+				entries.clear();
+			}
+			return entries;
+		}
+
+	}
+
+	/**
+	 * @return the tree and phrases of the entry whose flags are at the given offset, either of which may be null
+	 */
+	private static String[] readEntry(RandomAccessFile in, long offset) throws IOException{
+		in.seek(offset);
+		byte flags = in.readByte();
+		String tree = readString(in, (flags & HAS_TREE) != 0);
+		String phrases = readString(in, (flags & HAS_PHRASES) != 0);
+		return new String[]{tree, phrases};
+	}
+
+	/**
+	 * Skips a string written by writeString
+	 * @return the number of bytes skipped
+	 */
+	private static long skipString(DataInputStream in, boolean present) throws IOException{
+		if (!present){
+			return 0;
+		}
+		int length = in.readInt();
+		int skipped = 0;
+		while (skipped < length){
+			int n = in.skipBytes(length - skipped);
+			if (n <= 0){
+				throw new EOFException();
+			}
+			skipped += n;
+		}
+		return 4 + length;
+	}
+
+	private static void closeQuietly(RandomAccessFile file){
+		if (file == null){
+			return;
+		}
+		try {
+			file.close();
+		} catch (IOException e){
+			logger.debug("could not close a fingerprint file: " + e);
+		}
+	}
+
+	/**
+	 * Writes a string of any length, which writeUTF does not
+	 */
+	private static void writeString(DataOutput out, String s) throws IOException{
+		if (s == null){
+			return;
+		}
+		byte[] bytes = s.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInput in, boolean present) throws IOException{
+		if (!present){
+			return null;
+		}
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+
+}
@@ -0,0 +1,130 @@
+package com.oconnors.suggest.nphrases.parse;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bulk jobs by id, without locks: a job is admitted by raising the count of running jobs with compareAndSet,
+ * so that a burst of submissions can never start more than maxRunning, and the job gives its place back
+ * when it moves to done or cancelled (see ParseJob). Finished jobs are kept for their status until there
+ * are more than maxFinished, then the oldest are forgotten
+ */
+public class JobRegistry {
+
+	private final ConcurrentHashMap<String, ParseJob> jobs = new ConcurrentHashMap<String, ParseJob>();
+	/**jobs admitted that have not finished yet*/
+	private final AtomicInteger running = new AtomicInteger(0);
+	private final int maxRunning;
+	private final int maxFinished;
+
+	/**
+	 * @param maxRunning	most jobs running at once
+	 * @param maxFinished	most finished jobs kept
+	 */
+	public JobRegistry(int maxRunning, int maxFinished){
+		this.maxRunning = maxRunning;
+		this.maxFinished = maxFinished;
+	}
+
+	/**
+	 * Admits a job, unless maxRunning jobs are running already
+	 * @return true if the job was admitted, and has to be started; false if it was refused
+	 */
+	public boolean register(ParseJob job){
+		prune();
+		while (true){
+			int current = running.get();
+			if (current >= maxRunning){
+				return false;
+			}
+			if (running.compareAndSet(current, current + 1)){
+				break;
+			}
+		}
+		job.setRegistry(this);
+		jobs.put(job.getId(), job);
+		return true;
+	}
+
+	/**
+	 * Called by a job once, when it moves to done or cancelled
+	 */
+	void finished(ParseJob job){
+		running.decrementAndGet();
+	}
+
+	/**
+	 * @return the job with the given id, or null if there is none
+	 */
+	public ParseJob get(String id){
+		return jobs.get(id);
+	}
+
+	/**
+	 * Cancels a job
+	 * @return the job, or null if there is none with the given id
+	 */
+	public ParseJob cancel(String id){
+		ParseJob job = jobs.get(id);
+		if (job != null){
+			job.cancel();
+		}
+		return job;
+	}
+
+	/**
+	 * @return all jobs that are running or were kept after finishing
+	 */
+	public Collection<ParseJob> getJobs(){
+		return jobs.values();
+	}
+
+	/**
+	 * @return the number of jobs admitted that have not finished
+	 */
+	public int getRunning(){
+		return running.get();
+	}
+
+	/**
+	 * @return the number of jobs kept, running or finished
+	 */
+	public int size(){
+		return jobs.size();
+	}
+
+	/**
+	 * Forgets the oldest finished jobs once more than maxFinished have finished. Threads pruning at the same
+	 * time pick the same oldest jobs, so at worst a job is removed twice
+	 */
+	private void prune(){
+		List<ParseJob> finished = new ArrayList<ParseJob>();
+		for (ParseJob job : jobs.values()){
+			if (job.isFinished()){
+				finished.add(job);
+			}
+		}
+		if (finished.size() <= maxFinished){
+			return;
+		}
+		Collections.sort(finished, new Comparator<ParseJob>(){
+			public int compare(ParseJob a, ParseJob b){
+				return Long.compare(a.getFinishedTime(), b.getFinishedTime());
+			}
+		});
+		for (ParseJob job : finished.subList(0, finished.size() - maxFinished)){
+			jobs.remove(job.getId(), job);
+		}
+	}
+
+	@Override
+	public String toString(){
+		return running.get() + " jobs running, " + jobs.size() + " kept";
+	}
+
+}
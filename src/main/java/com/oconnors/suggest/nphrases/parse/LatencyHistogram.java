@@ -0,0 +1,145 @@
+package com.oconnors.suggest.nphrases.parse;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies, in microseconds.
+ * Buckets are log-linear: each power of two is split into 8 buckets, so a recorded value is
+ * reported to within 12.5%, and memory stays fixed no matter how many values are recorded
+ */
+public class LatencyHistogram {
+
+	/**bits of precision below the highest bit of a value*/
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	/**largest recordable value is just under 2^MAX_BITS microseconds (about 12 days)*/
+	private static final int MAX_BITS = 40;
+
+	private final AtomicLongArray buckets = new AtomicLongArray((MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS);
+	private final AtomicLong count = new AtomicLong(0);
+	private final AtomicLong sum = new AtomicLong(0);
+	private final AtomicLong max = new AtomicLong(0);
+
+	/**
+	 * Records a latency
+	 * @param nanos		latency in nanoseconds
+	 */
+	public void recordNanos(long nanos){
+		record(nanos / 1000);
+	}
+
+	/**
+	 * Records a latency
+	 * @param micros	latency in microseconds
+	 */
+	public void record(long micros){
+		if (micros < 0){
+			micros = 0;
+		}
+		buckets.incrementAndGet(bucket(micros));
+		count.incrementAndGet();
+		sum.addAndGet(micros);
+		long m;
+		while (micros > (m = max.get()) && !max.compareAndSet(m, micros)){
+			//retry
+		}
+	}
+
+	/**
+	 * @return the number of recorded latencies
+	 */
+	public long getCount(){
+		return count.get();
+	}
+
+	/**
+	 * @return the sum of recorded latencies, in microseconds
+	 */
+	public long getSum(){
+		return sum.get();
+	}
+
+	/**
+	 * @return the largest recorded latency, in microseconds
+	 */
+	public long getMax(){
+		return max.get();
+	}
+
+	/**
+	 * @param percentile	percentile to get, from 0 to 100
+	 * @return the latency at the given percentile, in microseconds (the upper bound of its bucket)
+	 */
+	public long getPercentile(double percentile){
+		long total = count.get();
+		if (total == 0){
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		if (rank < 1){
+			rank = 1;
+		}
+		long seen = 0;
+		for (int i=0; i < buckets.length(); i++){
+			seen += buckets.get(i);
+			if (seen >= rank){
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * @return the upper bound of each bucket, in microseconds, and the number of values in each.
+	 * 		Only buckets holding values are returned: result[0] holds bounds, result[1] counts
+	 */
+	public long[][] getBuckets(){
+		int used = 0;
+		for (int i=0; i < buckets.length(); i++){
+			if (buckets.get(i) > 0){
+				used++;
+			}
+		}
+		long[][] result = new long[2][used];
+		int j = 0;
+		for (int i=0; i < buckets.length() && j < used; i++){
+			long n = buckets.get(i);
+			if (n > 0){
+				result[0][j] = upperBound(i);
+				result[1][j] = n;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public String toString(){
+		long n = count.get();
+		return n + " recorded, mean " + (n == 0 ? 0 : sum.get() / n) + "us, p50 " + getPercentile(50) + "us, p90 "
+				+ getPercentile(90) + "us, p99 " + getPercentile(99) + "us, max " + max.get() + "us";
+	}
+
+	private static int bucket(long value){
+		if (value < SUB_BUCKETS){
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent >= MAX_BITS){
+			return (MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS - 1;
+		}
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	private static long upperBound(int bucket){
+		if (bucket < SUB_BUCKETS){
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+	}
+
+}
@@ -0,0 +1,286 @@
+package com.oconnors.suggest.nphrases.parse;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.stanford.nlp.parser.lexparser.LexicalizedParser;
+import edu.stanford.nlp.tagger.maxent.MaxentTagger;
+
+/**
+ * Snapshots of the parser and tagger models in a directory (the models.snapshot.dir setting), loaded
+ * instead of the models in the Stanford jars. A snapshot is uncompressed and read through a memory-mapped
+ * file, so loading it skips inflating the jar entry and gunzipping the grammar, and its pages stay in the
+ * operating system's cache for the next deploy or another webapp on the same host:
+ * 		parser.snapshot: the loaded LexicalizedParser, java-serialized without compression
+ * 		tagger.snapshot: the tagger model as it is in the jar, which is already in the tagger's own binary format
+ * Each starts with a header naming the model and the Stanford version it was written with; a snapshot
+ * that does not match is ignored, and the models in the jars are loaded instead.
+ * The models still deserialize onto the heap of each JVM: only the file is shared.
+ * Run main to write the snapshots, or let NlpModels write them once it has loaded the models from the jars
+ */
+public class ModelSnapshot {
+
+	final static Logger logger = LogManager.getLogger(ModelSnapshot.class.getName());
+
+	public static final String PARSER_FILE = "parser.snapshot";
+	public static final String TAGGER_FILE = "tagger.snapshot";
+
+	private static final String MAGIC = "nphrases-model-snapshot";
+	private static final int FORMAT = 1;
+	private static final int COPY_BUFFER = 1 << 16;
+
+	/**
+	 * Writes snapshots of the models in the jars on the classpath
+	 * 		args[0]: directory to write them to
+	 */
+	public static void main(String[] args) throws IOException{
+		if (args.length < 1){
+			System.err.println("usage: ModelSnapshot [directory]");
+			System.exit(1);
+		}
+		File dir = new File(args[0]);
+		writeTagger(dir);
+		writeParser(LexicalizedParser.loadModel(NlpModels.PARSER_MODEL), dir);
+	}
+
+	/**
+	 * @return the parser of the snapshot in dir, or null if there is none or it does not match
+	 */
+	public static LexicalizedParser loadParser(File dir){
+		File file = new File(dir, PARSER_FILE);
+		if (!file.isFile()){
+			return null;
+		}
+		try {
+			DataInputStream in = open(file, NlpModels.PARSER_MODEL);
+			if (in == null){
+				return null;
+			}
+			try {
+				return LexicalizedParser.loadModel(new ObjectInputStream(in));
+			} finally {
+				in.close();
+			}
+		} catch (IOException e){
+			logger.warn("could not read " + file + ": " + e);
+		} catch (RuntimeException e){
+			//e.g. a class of the snapshot changed without changing the Stanford version
+			logger.warn("could not read " + file + ": " + e);
+		}
+		return null;
+	}
+
+	/**
+	 * @return the tagger of the snapshot in dir, or null if there is none or it does not match
+	 */
+	public static MaxentTagger loadTagger(File dir){
+		File file = new File(dir, TAGGER_FILE);
+		if (!file.isFile()){
+			return null;
+		}
+		try {
+			DataInputStream in = open(file, NlpModels.TAGGER_MODEL);
+			if (in == null){
+				return null;
+			}
+			try {
+				return new SnapshotTagger(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e){
+			logger.warn("could not read " + file + ": " + e);
+		} catch (RuntimeException e){
+			logger.warn("could not read " + file + ": " + e);
+		}
+		return null;
+	}
+
+	/**
+	 * Writes a snapshot of a loaded parser to dir, replacing any snapshot already there
+	 */
+	public static void writeParser(LexicalizedParser parser, File dir) throws IOException{
+		File file = new File(dir, PARSER_FILE);
+		File temp = create(file, NlpModels.PARSER_MODEL);
+		try {
+			ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp, true), COPY_BUFFER));
+			try {
+				out.writeObject(parser);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e){
+			temp.delete();
+			throw e;
+		}
+		replace(temp, file);
+	}
+
+	/**
+	 * Writes a snapshot of the tagger model in the jar to dir, replacing any snapshot already there
+	 */
+	public static void writeTagger(File dir) throws IOException{
+		InputStream in = ModelSnapshot.class.getClassLoader().getResourceAsStream(NlpModels.TAGGER_MODEL);
+		if (in == null){
+			throw new IOException("no " + NlpModels.TAGGER_MODEL + " on the classpath");
+		}
+		File file = new File(dir, TAGGER_FILE);
+		File temp = null;
+		try {
+			temp = create(file, NlpModels.TAGGER_MODEL);
+			BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(temp, true), COPY_BUFFER);
+			try {
+				byte[] buffer = new byte[COPY_BUFFER];
+				int read;
+				while ((read = in.read(buffer)) > 0){
+					out.write(buffer, 0, read);
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e){
+			if (temp != null){
+				temp.delete();
+			}
+			throw e;
+		} finally {
+			in.close();
+		}
+		replace(temp, file);
+	}
+
+	/**
+	 * Maps a snapshot and reads its header
+	 * @return a stream of the model after the header, or null if the header does not match the model
+	 */
+	private static DataInputStream open(File file, String model) throws IOException{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		ByteBuffer mapped;
+		try {
+			//the mapping stays valid after the channel is closed
+			mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		DataInputStream in = new DataInputStream(new MappedInputStream(mapped));
+		String header = in.readUTF() + " " + in.readInt() + " " + in.readUTF() + " " + in.readUTF();
+		String expected = MAGIC + " " + FORMAT + " " + model + " " + stanfordVersion();
+		if (!header.equals(expected)){
+			logger.warn(file + " is a snapshot of " + header + ", not " + expected + ": ignoring it");
+			in.close();
+			return null;
+		}
+		return in;
+	}
+
+	/**
+	 * Creates a temporary file next to file, holding the header of a snapshot of model
+	 */
+	private static File create(File file, String model) throws IOException{
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()){
+			throw new IOException("could not create " + dir);
+		}
+		File temp = File.createTempFile(file.getName(), ".tmp", dir);
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+		try {
+			out.writeUTF(MAGIC);
+			out.writeInt(FORMAT);
+			out.writeUTF(model);
+			out.writeUTF(stanfordVersion());
+		} finally {
+			out.close();
+		}
+		return temp;
+	}
+
+	/**
+	 * Moves a finished temporary file over the snapshot, so that a reader never sees half a snapshot
+	 */
+	private static void replace(File temp, File file) throws IOException{
+		if (!temp.renameTo(file)){
+			//renameTo does not replace an existing file on every platform
+			file.delete();
+			if (!temp.renameTo(file)){
+				temp.delete();
+				throw new IOException("could not write " + file);
+			}
+		}
+		logger.info("wrote " + file + ": " + file.length() + " bytes");
+	}
+
+	/**
+	 * @return the versions of the Stanford parser and tagger jars, as far as their manifests tell
+	 */
+	private static String stanfordVersion(){
+		return LexicalizedParser.class.getPackage().getImplementationVersion() + "/"
+				+ MaxentTagger.class.getPackage().getImplementationVersion();
+	}
+
+	/**
+	 * A tagger read from a stream rather than a path or the classpath
+	 */
+	private static class SnapshotTagger extends MaxentTagger {
+
+		private static final long serialVersionUID = 1L;
+
+		SnapshotTagger(DataInputStream in){
+			super();
+			Properties config = new Properties();
+			config.setProperty("model", NlpModels.TAGGER_MODEL);
+			readModelAndInit(config, in, false);
+		}
+
+	}
+
+	/**
+	 * Reads a memory-mapped file
+	 */
+	private static class MappedInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		MappedInputStream(ByteBuffer buffer){
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read(){
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len){
+			if (len == 0){
+				return 0;
+			}
+			if (!buffer.hasRemaining()){
+				return -1;
+			}
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available(){
+			return buffer.remaining();
+		}
+
+	}
+
+}
@@ -0,0 +1,301 @@
+package com.oconnors.suggest.nphrases.parse;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.ling.TaggedWord;
+import edu.stanford.nlp.parser.lexparser.LexicalizedParser;
+import edu.stanford.nlp.process.CoreLabelTokenFactory;
+import edu.stanford.nlp.process.PTBTokenizer;
+import edu.stanford.nlp.process.TokenizerFactory;
+import edu.stanford.nlp.tagger.maxent.MaxentTagger;
+
+/**
+ * The parser and tagger models, shared by all threads. Each model is loaded once, by whichever comes first:
+ * start(), called at servlet init to load both in the background, or the first thread that needs it, which
+ * waits for it to load. Models are loaded from the snapshots in models.snapshot.dir if there are any that match
+ * (see ModelSnapshot), otherwise from the Stanford jars. Once both are loaded, start() runs a warm-up corpus
+ * through the tokenizer, tagger and parser, so that the first documents run compiled code, then writes the
+ * snapshots if models.snapshot.dir is set and they were not loaded from it. The state, load time and warm-up
+ * time are reported by describe() (logged by status) and toJSON() (the ready request)
+ */
+public class NlpModels {
+
+	final static Logger logger = LogManager.getLogger(NlpModels.class.getName());
+
+	public static final String NOT_STARTED = "not-started";
+	public static final String LOADING = "loading";
+	public static final String WARMING = "warming";
+	public static final String READY = "ready";
+	public static final String FAILED = "failed";
+
+	/**serialized English PCFG grammar used by the parser*/
+	public static final String PARSER_MODEL = "englishPCFG.ser.gz";
+	/**model used by the tagger*/
+	public static final String TAGGER_MODEL = "models/tagger/english-left3words-distsim.tagger";
+	/**options of the tokenizers*/
+	public static final String TOKENIZER_OPTIONS =
+			"normalizeAmpersandEntity=false,normalizeOtherBrackets=false,asciiQuotes=true,latexQuotes=false,untokenizable=noneDelete";
+	/**sentences warmed up with when models.warmup.file is not given*/
+	private static final String WARMUP_RESOURCE = "/warmup.txt";
+
+	/**directory of model snapshots, or null to load the models from the jars only*/
+	private static final File SNAPSHOT_DIR = ParseConfig.get("models.snapshot.dir", null) == null ? null 
+			: new File(ParseConfig.get("models.snapshot.dir", null));
+
+	/**time taken to load each model, in milliseconds*/
+	private static volatile long parserMillis = 0;
+	private static volatile long taggerMillis = 0;
+	/**true if the model was loaded from its snapshot*/
+	private static volatile boolean parserSnapshot = false;
+	private static volatile boolean taggerSnapshot = false;
+
+	private static final FutureTask<LexicalizedParser> PARSER = new FutureTask<LexicalizedParser>(new Callable<LexicalizedParser>(){
+		public LexicalizedParser call(){
+			long start = System.currentTimeMillis();
+			LexicalizedParser parser = SNAPSHOT_DIR == null ? null : ModelSnapshot.loadParser(SNAPSHOT_DIR);
+			parserSnapshot = parser != null;
+			if (parser == null){
+				parser = LexicalizedParser.loadModel(PARSER_MODEL);
+			}
+			parserMillis = System.currentTimeMillis() - start;
+			logger.info("loaded " + PARSER_MODEL + (parserSnapshot ? " from its snapshot" : "") + " in " + parserMillis + " ms");
+			return parser;
+		}
+	});
+	private static final FutureTask<MaxentTagger> TAGGER = new FutureTask<MaxentTagger>(new Callable<MaxentTagger>(){
+		public MaxentTagger call(){
+			long start = System.currentTimeMillis();
+			MaxentTagger tagger = SNAPSHOT_DIR == null ? null : ModelSnapshot.loadTagger(SNAPSHOT_DIR);
+			taggerSnapshot = tagger != null;
+			if (tagger == null){
+				tagger = new MaxentTagger(TAGGER_MODEL);
+			}
+			taggerMillis = System.currentTimeMillis() - start;
+			logger.info("loaded " + TAGGER_MODEL + (taggerSnapshot ? " from its snapshot" : "") + " in " + taggerMillis + " ms");
+			return tagger;
+		}
+	});
+
+	private static volatile String state = NOT_STARTED;
+	/**time from start() until both models were loaded, in milliseconds*/
+	private static volatile long loadMillis = 0;
+	private static volatile long warmupMillis = 0;
+	private static volatile int warmupSentences = 0;
+	private static volatile String error = null;
+
+	/**
+	 * Loads both models on a background thread, then warms them up. Does nothing if already called
+	 */
+	public static synchronized void start(){
+		if (state != NOT_STARTED){
+			return;
+		}
+		state = LOADING;
+		Thread loader = new Thread(new Runnable(){
+			public void run(){
+				load();
+			}
+		}, "nphrases-models");
+		loader.setDaemon(true);
+		loader.start();
+	}
+
+	private static void load(){
+		long start = System.currentTimeMillis();
+		try {
+			//the tagger loads on a thread of its own while this one loads the parser
+			Thread tagger = new Thread(TAGGER, "nphrases-models-tagger");
+			tagger.setDaemon(true);
+			tagger.start();
+			PARSER.run();
+			getParser();
+			getTagger();
+			loadMillis = System.currentTimeMillis() - start;
+
+			state = WARMING;
+			long warmupStart = System.currentTimeMillis();
+			warmUp(loadWarmup(), ParseConfig.getInt("models.warmup.rounds", 3));
+			warmupMillis = System.currentTimeMillis() - warmupStart;
+			state = READY;
+			logger.info("models " + describe());
+			writeSnapshots();
+		} catch (Exception e){
+			error = e.getMessage();
+			state = FAILED;
+			logger.error("could not load models: " + e, e);
+		} catch (Error e){
+			//e.g. OutOfMemoryError
+			error = e.toString();
+			state = FAILED;
+			logger.error("could not load models: " + e, e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes the snapshots of models that were not loaded from one, so that the next start loads them instead
+	 */
+	private static void writeSnapshots(){
+		if (SNAPSHOT_DIR == null){
+			return;
+		}
+		try {
+			if (!taggerSnapshot){
+				ModelSnapshot.writeTagger(SNAPSHOT_DIR);
+			}
+			if (!parserSnapshot){
+				ModelSnapshot.writeParser(getParser(), SNAPSHOT_DIR);
+			}
+		} catch (IOException e){
+			logger.warn("could not write model snapshots to " + SNAPSHOT_DIR + ": " + e);
+		}
+	}
+
+	/**
+	 * Tokenizes, tags and parses each sentence, the given number of times
+	 */
+	private static void warmUp(List<String> sentences, int rounds){
+		TokenizerFactory<CoreLabel> tokenizerFactory = PTBTokenizer.factory(new CoreLabelTokenFactory(), TOKENIZER_OPTIONS);
+		MaxentTagger tagger = getTagger();
+		LexicalizedParser parser = getParser();
+		for (int round=0; round < rounds; round++){
+			for (String sentence : sentences){
+				List<CoreLabel> tokens = tokenizerFactory.getTokenizer(new StringReader(sentence)).tokenize();
+				List<TaggedWord> tags = tagger.apply(tokens);
+				parser.apply(tags);
+				warmupSentences++;
+			}
+		}
+	}
+
+	/**
+	 * @return the sentences of the models.warmup.file setting, or of the warm-up corpus in the webapp,
+	 * 		one per line, skipping blank lines and lines starting with #
+	 */
+	private static List<String> loadWarmup() throws IOException{
+		String file = ParseConfig.get("models.warmup.file", null);
+		InputStream in = file == null ? NlpModels.class.getResourceAsStream(WARMUP_RESOURCE) : new FileInputStream(file);
+		List<String> sentences = new ArrayList<String>();
+		if (in == null){
+			logger.warn("no warm-up corpus " + WARMUP_RESOURCE);
+			return sentences;
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charset.forName("UTF-8")));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null){
+				line = line.trim();
+				if (!line.isEmpty() && !line.startsWith("#")){
+					sentences.add(line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return sentences;
+	}
+
+	/**
+	 * @return the parser, loading it first if it is not loaded yet
+	 * @throws IllegalStateException if the model could not be loaded
+	 */
+	public static LexicalizedParser getParser(){
+		return get(PARSER, PARSER_MODEL);
+	}
+
+	/**
+	 * @return the tagger, loading it first if it is not loaded yet
+	 * @throws IllegalStateException if the model could not be loaded
+	 */
+	public static MaxentTagger getTagger(){
+		return get(TAGGER, TAGGER_MODEL);
+	}
+
+	private static <T> T get(FutureTask<T> model, String name){
+		//runs the task only if no other thread has started it; otherwise waits for it
+		model.run();
+		try {
+			return model.get();
+		} catch (ExecutionException e){
+			throw new IllegalStateException("could not load " + name + ": " + e.getCause(), e.getCause());
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while loading " + name);
+		}
+	}
+
+	/**
+	 * @return not-started, loading, warming, ready or failed
+	 */
+	public static String getState(){
+		return state;
+	}
+
+	/**
+	 * @return true once both models are loaded and warmed up
+	 */
+	public static boolean isReady(){
+		return state == READY;
+	}
+
+	/**
+	 * @return time from start() until both models were loaded, in milliseconds, or 0 if they are not
+	 */
+	public static long getLoadMillis(){
+		return loadMillis;
+	}
+
+	/**
+	 * @return time taken by the warm-up, in milliseconds, or 0 if it has not finished
+	 */
+	public static long getWarmupMillis(){
+		return warmupMillis;
+	}
+
+	/**
+	 * @return the state, load and warm-up times as a JSON object
+	 */
+	public static String toJSON(){
+		StringBuilder json = new StringBuilder();
+		json.append("{\"state\":\"").append(state).append("\"");
+		json.append(",\"loadSeconds\":").append(String.format(Locale.ROOT, "%.1f", loadMillis / 1000.0));
+		json.append(",\"parserSeconds\":").append(String.format(Locale.ROOT, "%.1f", parserMillis / 1000.0));
+		json.append(",\"taggerSeconds\":").append(String.format(Locale.ROOT, "%.1f", taggerMillis / 1000.0));
+		json.append(",\"parserSnapshot\":").append(parserSnapshot);
+		json.append(",\"taggerSnapshot\":").append(taggerSnapshot);
+		json.append(",\"warmupSeconds\":").append(String.format(Locale.ROOT, "%.1f", warmupMillis / 1000.0));
+		json.append(",\"warmupSentences\":").append(warmupSentences);
+		if (error != null){
+			json.append(",\"error\":\"").append(error.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append("\"");
+		}
+		json.append("}");
+		return json.toString();
+	}
+
+	/**
+	 * @return the state, load and warm-up times
+	 */
+	public static String describe(){
+		return state + ": loaded in " + loadMillis + " ms (parser " + parserMillis + " ms" + (parserSnapshot ? " from snapshot" : "")
+				+ ", tagger " + taggerMillis + " ms" + (taggerSnapshot ? " from snapshot" : "") + "), warmed up with " + warmupSentences + " sentences in " + warmupMillis + " ms"
+				+ (error == null ? "" : ": " + error);
+	}
+
+}
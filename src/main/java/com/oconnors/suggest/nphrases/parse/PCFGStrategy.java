@@ -0,0 +1,115 @@
+package com.oconnors.suggest.nphrases.parse;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.stanford.nlp.ling.TaggedWord;
+import edu.stanford.nlp.parser.lexparser.LexicalizedParser;
+import edu.stanford.nlp.parser.lexparser.LexicalizedParserQuery;
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * Parses sentences with the Stanford lexicalized PCFG parser.
+ * LexicalizedParser.apply creates a parser query, with charts sized for the sentence, for every call.
+ * Instead each thread keeps a query of its own and parses with it, so its charts are allocated once and
+ * reused for every sentence no longer than the longest it has parsed. The charts grow with the square of
+ * the sentence's length, so a thread keeps its query only for sentences of at most maxChartTokens tokens;
+ * longer ones are parsed with a query of their own that is dropped afterwards
+ */
+public class PCFGStrategy implements ParseStrategy {
+
+	final static Logger logger = LogManager.getLogger(PCFGStrategy.class.getName());
+
+	public static final String NAME = "pcfg";
+
+	/**parser queries kept by threads, and queries for sentences over maxChartTokens, created by all strategies*/
+	private static final AtomicLong QUERIES_KEPT = new AtomicLong(0);
+	private static final AtomicLong QUERIES_OVERSIZED = new AtomicLong(0);
+
+	/**parser object, or null to use the shared parser of NlpModels*/
+	private final LexicalizedParser parser;
+	/**longest sentence, in tokens, parsed with the query kept by a thread*/
+	private final int maxChartTokens;
+	/**query kept by each thread*/
+	private final ThreadLocal<LexicalizedParserQuery> queries = new ThreadLocal<LexicalizedParserQuery>();
+
+	/**
+	 * Parses with the shared parser, which is loaded when it is first needed (see NlpModels)
+	 */
+	public PCFGStrategy(){
+		this(null);
+	}
+
+	/**
+	 * @param parser	parser used to parse sentences
+	 */
+	public PCFGStrategy(LexicalizedParser parser){
+		this(parser, ParseConfig.getInt("parser.chart.tokens", ParseConfig.getInt("parser.segment.tokens", 50)));
+	}
+
+	/**
+	 * @param parser			parser used to parse sentences, or null for the shared parser
+	 * @param maxChartTokens	longest sentence, in tokens, parsed with the query kept by a thread; 0 keeps none
+	 */
+	public PCFGStrategy(LexicalizedParser parser, int maxChartTokens){
+		this.parser = parser;
+		this.maxChartTokens = maxChartTokens;
+	}
+
+	public String getName(){
+		return NAME;
+	}
+
+	/**
+	 * Parses a sentence. Unlike LexicalizedParser.apply, which gives a sentence that cannot be parsed a flat
+	 * X tree, it throws, so that the caller can fall back on another strategy without taking the X tree for a parse
+	 * @throws IllegalStateException if the sentence could not be parsed
+	 */
+	public Tree parse(List<TaggedWord> words){
+		LexicalizedParser lp = parser != null ? parser : NlpModels.getParser();
+		boolean kept = words.size() <= maxChartTokens;
+		LexicalizedParserQuery query = kept ? queries.get() : null;
+		if (query == null){
+			query = lp.lexicalizedParserQuery();
+			if (kept){
+				queries.set(query);
+				QUERIES_KEPT.incrementAndGet();
+			} else {
+				QUERIES_OVERSIZED.incrementAndGet();
+			}
+		}
+		boolean parsed;
+		try {
+			parsed = query.parse(words);
+		} catch (RuntimeException e){
+			//the query's state is unknown after a failure, so it is not used again
+			if (kept){
+				queries.remove();
+			}
+			throw new IllegalStateException("could not parse a sentence of " + words.size() + " tokens: " + e, e);
+		}
+		Tree parse = parsed ? query.getBestParse() : null;
+		if (parse == null){
+			throw new IllegalStateException("no parse of a sentence of " + words.size() + " tokens");
+		}
+		return parse;
+	}
+
+	/**
+	 * @return the number of parser queries kept by threads, across strategies
+	 */
+	public static long getQueriesKept(){
+		return QUERIES_KEPT.get();
+	}
+
+	/**
+	 * @return the number of parser queries created for a single sentence over maxChartTokens
+	 */
+	public static long getQueriesOversized(){
+		return QUERIES_OVERSIZED.get();
+	}
+
+}
@@ -0,0 +1,97 @@
+package com.oconnors.suggest.nphrases.parse;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time allowed for parsing one sentence. Before each segment of a sentence is parsed, the
+ * time it will take is predicted from the time recent parses took, assuming parse time grows with
+ * the cube of the number of tokens. A segment that would take the sentence over its budget
+ * should be chunked instead of parsed
+ */
+public class ParseBudget {
+
+	/**weight kept by older parses each time a parse is recorded*/
+	private static final double DECAY = 0.98;
+	/**parses recorded before predictions are made*/
+	private static final int MIN_SAMPLES = 10;
+
+	/**time allowed for a sentence, or 0 for no limit*/
+	private final long budgetNanos;
+	/**decayed sums of the time and the cubed tokens of recorded parses*/
+	private double parseNanos = 0;
+	private double cubedTokens = 0;
+	private int samples = 0;
+	/**number of segments that were over budget*/
+	private final AtomicLong overruns = new AtomicLong(0);
+
+	/**
+	 * @param budgetMillis		milliseconds allowed for a sentence; 0 or less for no limit
+	 */
+	public ParseBudget(long budgetMillis){
+		this.budgetNanos = Math.max(0, TimeUnit.MILLISECONDS.toNanos(budgetMillis));
+	}
+
+	/**
+	 * @return true if sentences have a time limit
+	 */
+	public boolean isEnabled(){
+		return budgetNanos > 0;
+	}
+
+	/**
+	 * Checks whether a segment can be parsed within the budget of its sentence;
+	 * counts an overrun if it cannot
+	 * @param spentNanos	time already spent on the sentence
+	 * @param tokens		tokens in the segment
+	 * @return true if the segment can be parsed
+	 */
+	public boolean allows(long spentNanos, int tokens){
+		if (budgetNanos <= 0 || spentNanos + predict(tokens) <= budgetNanos){
+			return true;
+		}
+		overruns.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * @param tokens	tokens in a segment
+	 * @return the predicted time to parse the segment, or 0 until enough parses have been recorded
+	 */
+	public synchronized long predict(int tokens){
+		if (samples < MIN_SAMPLES || cubedTokens <= 0){
+			return 0;
+		}
+		return (long) (parseNanos / cubedTokens * cube(tokens));
+	}
+
+	/**
+	 * Records the time a parse took
+	 * @param tokens	tokens in the parsed segment
+	 * @param nanos		time the parse took
+	 */
+	public synchronized void record(int tokens, long nanos){
+		parseNanos = parseNanos * DECAY + nanos;
+		cubedTokens = cubedTokens * DECAY + cube(tokens);
+		samples++;
+	}
+
+	/**
+	 * @return the number of segments that were over budget
+	 */
+	public long getOverruns(){
+		return overruns.get();
+	}
+
+	private static double cube(int tokens){
+		return (double) tokens * tokens * tokens;
+	}
+
+	@Override
+	public String toString(){
+		return "parse budget: " + (isEnabled() ? TimeUnit.NANOSECONDS.toMillis(budgetNanos) + "ms" : "none")
+				+ " per sentence, " + overruns.get() + " segments over budget, "
+				+ TimeUnit.NANOSECONDS.toMillis(predict(50)) + "ms predicted for 50 tokens";
+	}
+
+}
@@ -0,0 +1,424 @@
+package com.oconnors.suggest.nphrases.parse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Caches the fixed xml parse trees of sentences, keyed by a hash of the sentence's normalized text.
+ * Entries are kept in a size-bounded LRU map in memory and, if a cache file is configured,
+ * appended to that file so that they survive a restart
+ */
+public class ParseCache {
+
+	final static Logger logger = LogManager.getLogger(ParseCache.class.getName());
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/**first bytes of a cache file*/
+	private static final int FILE_MAGIC = 0x4E504331;
+	/**bytes in a record header: key (16), length (4), crc (4)*/
+	private static final int RECORD_HEADER = 24;
+
+	/**hashes sentences into keys*/
+	private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>(){
+		@Override
+		protected MessageDigest initialValue(){
+			try {
+				return MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e){
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	/**maximum number of characters of parse trees kept in memory*/
+	private final long maxMemoryChars;
+	/**characters of parse trees currently kept in memory*/
+	private long memoryChars;
+	/**in memory entries, least recently used first*/
+	private final LinkedHashMap<Key, String> memory = new LinkedHashMap<Key, String>(1024, 0.75f, true);
+
+	/**cache file, or null if there is no on-disk tier*/
+	private FileChannel file;
+	private final String filePath;
+	/**maximum size of the cache file in bytes*/
+	private final long maxFileBytes;
+	/**identifies the models and settings that produced the cached trees*/
+	private final String signature;
+	/**offset of each key's record in the cache file*/
+	private final ConcurrentHashMap<Key, Long> fileIndex = new ConcurrentHashMap<Key, Long>();
+	/**offset at which the next record is appended*/
+	private long fileEnd;
+
+	private final AtomicLong memoryHits = new AtomicLong(0);
+	private final AtomicLong fileHits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+
+	/**
+	 * Constructs a new ParseCache
+	 * @param maxMemoryChars	maximum number of characters of parse trees kept in memory; 0 disables the memory tier
+	 * @param filePath			path of the cache file, or null for no on-disk tier
+	 * @param maxFileBytes		maximum size of the cache file; when it is reached the file is cleared
+	 * @param signature			identifies the models and settings that produce the trees: a cache file
+	 * 							 written with a different signature is cleared
+	 */
+	public ParseCache(long maxMemoryChars, String filePath, long maxFileBytes, String signature){
+		this.maxMemoryChars = maxMemoryChars;
+		this.filePath = filePath;
+		this.maxFileBytes = maxFileBytes;
+		this.signature = signature;
+		if (filePath != null){
+			try {
+				openFile();
+			} catch (IOException e){
+				logger.error("could not open parse cache file " + filePath + ": " + e.getMessage());
+				closeFile();
+			}
+		}
+	}
+
+	/**
+	 * Constructs a ParseCache from the parser.cache.* settings in ParseConfig
+	 * @param signature		identifies the models and settings that produce the trees
+	 */
+	public static ParseCache fromConfig(String signature){
+		return new ParseCache(ParseConfig.getLong("parser.cache.size", 16 * 1024 * 1024),
+				ParseConfig.get("parser.cache.file", null),
+				ParseConfig.getLong("parser.cache.file.size", 1024L * 1024 * 1024), signature);
+	}
+
+	/**
+	 * @return true if either tier is enabled
+	 */
+	public boolean isEnabled(){
+		return maxMemoryChars > 0 || file != null;
+	}
+
+	/**
+	 * Gets the key of a sentence: a hash of the name of the strategy that parses it and 
+	 * its text with whitespace runs collapsed and trimmed
+	 * @param strategy		name of the strategy that parses the sentence
+	 * @param sentence		sentence or fragment
+	 * @return the sentence's key
+	 */
+	public Key key(String strategy, String sentence){
+		MessageDigest digest = DIGEST.get();
+		digest.update(strategy.getBytes(UTF8));
+		digest.update((byte) 0);
+		return new Key(digest.digest(normalize(sentence).getBytes(UTF8)));
+	}
+
+	/**
+	 * @param key		key of a sentence
+	 * @return the cached parse tree xml of the sentence, or null if it is not cached
+	 */
+	public String get(Key key){
+		String tree;
+		synchronized (memory){
+			tree = memory.get(key);
+		}
+		if (tree != null){
+			memoryHits.incrementAndGet();
+			return tree;
+		}
+		Long offset = fileIndex.get(key);
+		if (offset != null){
+			tree = readRecord(key, offset);
+			if (tree != null){
+				fileHits.incrementAndGet();
+				putMemory(key, tree);
+				return tree;
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Caches the parse tree xml of a sentence
+	 * @param key		key of the sentence
+	 * @param tree		parse tree xml of the sentence
+	 */
+	public void put(Key key, String tree){
+		putMemory(key, tree);
+		if (file != null && !fileIndex.containsKey(key)){
+			appendRecord(key, tree);
+		}
+	}
+
+	public long getMemoryHits(){
+		return memoryHits.get();
+	}
+
+	public long getFileHits(){
+		return fileHits.get();
+	}
+
+	public long getMisses(){
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of entries held in memory
+	 */
+	public int getMemoryEntries(){
+		synchronized (memory){
+			return memory.size();
+		}
+	}
+
+	/**
+	 * @return the number of entries in the cache file
+	 */
+	public int getFileEntries(){
+		return fileIndex.size();
+	}
+
+	/**
+	 * Closes the cache file; entries are no longer written to or read from it
+	 */
+	public synchronized void close(){
+		closeFile();
+	}
+
+	@Override
+	public String toString(){
+		return "parse cache: " + memoryHits.get() + " memory hits, " + fileHits.get() + " file hits, "
+				+ misses.get() + " misses | " + getMemoryEntries() + " in memory, " + getFileEntries() + " in file";
+	}
+
+	private void putMemory(Key key, String tree){
+		if (maxMemoryChars <= 0 || tree.length() > maxMemoryChars){
+			return;
+		}
+		synchronized (memory){
+			String old = memory.put(key, tree);
+			memoryChars += tree.length() - (old == null ? 0 : old.length());
+			Iterator<Map.Entry<Key, String>> eldest = memory.entrySet().iterator();
+			while (memoryChars > maxMemoryChars && eldest.hasNext()){
+				memoryChars -= eldest.next().getValue().length();
+				eldest.remove();
+			}
+		}
+	}
+
+	/**
+	 * Opens the cache file and indexes its records, clearing it if it was written with another
+	 * signature and dropping a partly written record at its end
+	 */
+	private void openFile() throws IOException {
+		File f = new File(filePath);
+		if (f.getParentFile() != null){
+			f.getParentFile().mkdirs();
+		}
+		file = new RandomAccessFile(f, "rw").getChannel();
+		byte[] sig = signature.getBytes(UTF8);
+		ByteBuffer header = ByteBuffer.allocate(8 + sig.length);
+		if (file.size() >= header.capacity()){
+			file.read(header, 0);
+			header.flip();
+			if (header.getInt() == FILE_MAGIC && header.getInt() == sig.length
+					&& header.slice().equals(ByteBuffer.wrap(sig))){
+				indexFile(header.capacity());
+				logger.info("parse cache file " + filePath + ": " + fileIndex.size() + " entries");
+				return;
+			}
+			logger.warn("parse cache file " + filePath + " was written by other models or settings: clearing it");
+		}
+		clearFile();
+	}
+
+	/**
+	 * Clears the cache file and writes its header
+	 */
+	private void clearFile() throws IOException {
+		byte[] sig = signature.getBytes(UTF8);
+		ByteBuffer header = ByteBuffer.allocate(8 + sig.length);
+		header.putInt(FILE_MAGIC).putInt(sig.length).put(sig);
+		header.flip();
+		file.truncate(0);
+		writeFully(header, 0);
+		fileIndex.clear();
+		fileEnd = header.capacity();
+	}
+
+	private void indexFile(long start) throws IOException {
+		long size = file.size();
+		long offset = start;
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+		while (offset + RECORD_HEADER <= size){
+			header.clear();
+			file.read(header, offset);
+			header.flip();
+			Key key = new Key(header.getLong(), header.getLong());
+			int length = header.getInt();
+			if (length < 0 || offset + RECORD_HEADER + length > size){
+				break;
+			}
+			fileIndex.put(key, offset);
+			offset += RECORD_HEADER + length;
+		}
+		if (offset != size){
+			logger.warn("parse cache file " + filePath + ": dropping partial record at " + offset);
+			file.truncate(offset);
+		}
+		fileEnd = offset;
+	}
+
+	/**
+	 * @return the tree stored in the record at offset, or null if the record is unreadable
+	 */
+	private String readRecord(Key key, long offset){
+		FileChannel channel = file;
+		if (channel == null){
+			return null;
+		}
+		try {
+			ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+			channel.read(header, offset);
+			header.flip();
+			if (header.getLong() != key.high || header.getLong() != key.low){
+				return null;
+			}
+			int length = header.getInt();
+			int crc = header.getInt();
+			byte[] data = new byte[length];
+			ByteBuffer buf = ByteBuffer.wrap(data);
+			while (buf.hasRemaining()){
+				if (channel.read(buf, offset + RECORD_HEADER + buf.position()) < 0){
+					return null;
+				}
+			}
+			CRC32 check = new CRC32();
+			check.update(data);
+			if ((int) check.getValue() != crc){
+				logger.warn("parse cache file " + filePath + ": bad record at " + offset);
+				fileIndex.remove(key);
+				return null;
+			}
+			return new String(data, UTF8);
+		} catch (IOException e){
+			logger.warn("parse cache file " + filePath + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	private synchronized void appendRecord(Key key, String tree){
+		if (file == null || fileIndex.containsKey(key)){
+			return;
+		}
+		byte[] data = tree.getBytes(UTF8);
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + data.length);
+		record.putLong(key.high).putLong(key.low).putInt(data.length).putInt((int) crc.getValue()).put(data);
+		record.flip();
+		try {
+			if (fileEnd + record.capacity() > maxFileBytes){
+				logger.info("parse cache file " + filePath + " is full: clearing it");
+				clearFile();
+			}
+			writeFully(record, fileEnd);
+			fileIndex.put(key, fileEnd);
+			fileEnd += record.capacity();
+		} catch (IOException e){
+			logger.error("parse cache file " + filePath + ": " + e.getMessage() + "; no longer writing to it");
+			closeFile();
+		}
+	}
+
+	private void writeFully(ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()){
+			position += file.write(buf, position);
+		}
+	}
+
+	private void closeFile(){
+		if (file != null){
+			try {
+				file.close();
+			} catch (IOException e){
+				logger.warn("parse cache file " + filePath + ": " + e.getMessage());
+			}
+			file = null;
+			fileIndex.clear();
+		}
+	}
+
+	/**
+	 * @return text with each run of whitespace replaced by a single space, and trimmed
+	 */
+	static String normalize(String text){
+		StringBuilder sb = new StringBuilder(text.length());
+		boolean space = false;
+		for (int i=0; i < text.length(); i++){
+			char c = text.charAt(i);
+			if (Character.isWhitespace(c)){
+				space = sb.length() > 0;
+			} else {
+				if (space){
+					sb.append(' ');
+					space = false;
+				}
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 128 bit hash of a normalized sentence
+	 */
+	public static final class Key {
+
+		private final long high;
+		private final long low;
+
+		Key(byte[] digest){
+			this(ByteBuffer.wrap(digest).getLong(), ByteBuffer.wrap(digest, 8, 8).getLong());
+		}
+
+		Key(long high, long low){
+			this.high = high;
+			this.low = low;
+		}
+
+		long getHigh(){
+			return high;
+		}
+
+		long getLow(){
+			return low;
+		}
+
+		@Override
+		public boolean equals(Object o){
+			if (!(o instanceof Key)){
+				return false;
+			}
+			Key other = (Key) o;
+			return high == other.high && low == other.low;
+		}
+
+		@Override
+		public int hashCode(){
+			return (int) (high ^ (high >>> 32));
+		}
+
+	}
+
+}
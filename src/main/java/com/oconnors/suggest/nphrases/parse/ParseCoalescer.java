@@ -0,0 +1,192 @@
+package com.oconnors.suggest.nphrases.parse;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent parses of the same sentence, across all documents in progress: the first thread to
+ * parse a sentence leads its flight, and threads that need the same sentence while it is being parsed wait
+ * for the leader's output instead of parsing it again. Boilerplate repeated across the files of a product
+ * (definitions, cross-references, disclaimers) is then parsed once however many documents are parsing it.
+ * Once a flight lands its output is no longer shared from here: the parse cache serves later requests
+ */
+public class ParseCoalescer {
+
+	/**flights in progress, by sentence key (see ParseCache.key)*/
+	private final ConcurrentHashMap<ParseCache.Key, Flight> flights = new ConcurrentHashMap<ParseCache.Key, Flight>();
+	private final boolean enabled;
+
+	private final AtomicLong led = new AtomicLong(0);
+	private final AtomicLong joined = new AtomicLong(0);
+	private final AtomicLong failed = new AtomicLong(0);
+
+	/**
+	 * @param enabled	false to parse every sentence in the thread that needs it
+	 */
+	public ParseCoalescer(boolean enabled){
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @return the coalescer of the parser.coalesce setting
+	 */
+	public static ParseCoalescer fromConfig(){
+		return new ParseCoalescer(Boolean.parseBoolean(ParseConfig.get("parser.coalesce", "true")));
+	}
+
+	public boolean isEnabled(){
+		return enabled;
+	}
+
+	/**
+	 * Joins the flight of a sentence, or starts one if none is in progress. The leader must end it with
+	 * land or abort, however its parse ends
+	 * @param key	key of the sentence
+	 * @return the flight, which this thread leads if isLeader() is true
+	 */
+	public Flight join(ParseCache.Key key){
+		Flight flight = new Flight(key);
+		Flight existing = flights.putIfAbsent(key, flight);
+		if (existing == null){
+			led.incrementAndGet();
+			return flight;
+		}
+		return existing;
+	}
+
+	/**
+	 * @return the number of sentences parsed by the thread that led their flight
+	 */
+	public long getLed(){
+		return led.get();
+	}
+
+	/**
+	 * @return the number of sentences that took the output of a flight instead of being parsed
+	 */
+	public long getJoined(){
+		return joined.get();
+	}
+
+	/**
+	 * @return the number of flights whose leader failed, so that the threads waiting for it parsed the sentence themselves
+	 */
+	public long getFailed(){
+		return failed.get();
+	}
+
+	/**
+	 * @return the number of sentences being parsed with a flight
+	 */
+	public int getInFlight(){
+		return flights.size();
+	}
+
+	@Override
+	public String toString(){
+		return !enabled ? "parse coalescing: disabled"
+				: "parse coalescing: " + led.get() + " sentences parsed, " + joined.get() + " coalesced, " + failed.get()
+				+ " failed leaders | " + flights.size() + " in flight";
+	}
+
+	/**
+	 * A parse of one sentence, and the threads waiting for its output
+	 */
+	public class Flight implements ForkJoinPool.ManagedBlocker {
+
+		private final ParseCache.Key key;
+		private final Thread leader = Thread.currentThread();
+		private final CountDownLatch landed = new CountDownLatch(1);
+		/**output of the parse, set before landed counts down; both null if the leader failed*/
+		private volatile String tree;
+		private volatile String phrases;
+		/**false if the leader chunked some of the sentence's segments because it ran out of parse budget*/
+		private volatile boolean complete;
+
+		Flight(ParseCache.Key key){
+			this.key = key;
+		}
+
+		/**
+		 * @return true if the current thread leads this flight, and so has to parse the sentence
+		 */
+		public boolean isLeader(){
+			return leader == Thread.currentThread();
+		}
+
+		/**
+		 * Hands the leader's output to the threads waiting for it
+		 * @param tree		parse tree xml, or null if it was not produced
+		 * @param phrases	phrase records, or null if they were not produced
+		 * @param complete	false if some segments were chunked instead of parsed
+		 */
+		public void land(String tree, String phrases, boolean complete){
+			this.tree = tree;
+			this.phrases = phrases;
+			this.complete = complete;
+			end();
+		}
+
+		/**
+		 * Ends a flight whose leader could not parse the sentence: the threads waiting for it parse it themselves
+		 */
+		public void abort(){
+			failed.incrementAndGet();
+			end();
+		}
+
+		private void end(){
+			flights.remove(key, this);
+			landed.countDown();
+		}
+
+		/**
+		 * Waits for the leader's output and appends it. Waiting in a thread of a ForkJoinPool lets the pool
+		 * start another thread meanwhile, so that coalescing does not reduce its parallelism
+		 * @param tree_out		buffer for the parse tree, or null if it is not needed
+		 * @param phrase_out	buffer for the phrase records, or null if they are not needed
+		 * @return true if the output was appended, false if the sentence has to be parsed by the caller
+		 */
+		public boolean await(StringBuilder tree_out, StringBuilder phrase_out){
+			try {
+				ForkJoinPool.managedBlock(this);
+			} catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			String tree = this.tree;
+			String phrases = this.phrases;
+			if ((tree_out != null && tree == null) || (phrase_out != null && phrases == null)){
+				return false;
+			}
+			if (tree_out != null){
+				tree_out.append(tree);
+			}
+			if (phrase_out != null){
+				phrase_out.append(phrases);
+			}
+			joined.incrementAndGet();
+			return true;
+		}
+
+		/**
+		 * @return false if the output the flight landed with was chunked in part, and so is not to be kept
+		 */
+		public boolean isComplete(){
+			return complete;
+		}
+
+		public boolean block() throws InterruptedException{
+			landed.await();
+			return true;
+		}
+
+		public boolean isReleasable(){
+			return landed.getCount() == 0;
+		}
+
+	}
+
+}
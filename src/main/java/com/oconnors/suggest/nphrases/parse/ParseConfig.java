@@ -0,0 +1,101 @@
+package com.oconnors.suggest.nphrases.parse;
+
+import java.util.Properties;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Tuning settings for parsing documents.
+ * Settings are given as init-params of the servlet in web.xml; a system property
+ * named nphrases.[setting] overrides the init-param of the same name
+ */
+public class ParseConfig {
+
+	final static Logger logger = LogManager.getLogger(ParseConfig.class.getName());
+
+	/**prefix of system properties that override settings*/
+	private static final String PROPERTY_PREFIX = "nphrases.";
+
+	/**settings loaded from the servlet config*/
+	private static final Properties settings = new Properties();
+
+	/**
+	 * Sets a setting. Must be called before the classes that read the setting are loaded
+	 * @param name		name of the setting
+	 * @param value		value of the setting
+	 */
+	public static void set(String name, String value){
+		settings.setProperty(name, value);
+	}
+
+	/**
+	 * @param name			name of the setting
+	 * @param defaultValue	value to use if the setting is not given
+	 * @return the value of the setting
+	 */
+	public static String get(String name, String defaultValue){
+		String value = System.getProperty(PROPERTY_PREFIX + name);
+		if (value == null){
+			value = settings.getProperty(name);
+		}
+		if (value == null || value.trim().equals("")){
+			return defaultValue;
+		}
+		return value.trim();
+	}
+
+	/**
+	 * @param name			name of the setting
+	 * @param defaultValue	value to use if the setting is not given or is not a number
+	 * @return the value of the setting
+	 */
+	public static int getInt(String name, int defaultValue){
+		return (int) getLong(name, defaultValue);
+	}
+
+	/**
+	 * @param name			name of the setting
+	 * @param defaultValue	value to use if the setting is not given or is not a number
+	 * @return the value of the setting
+	 */
+	public static long getLong(String name, long defaultValue){
+		String value = get(name, null);
+		if (value == null){
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e){
+			logger.warn("setting " + name + " is not a number: " + value + "; using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * @param name			name of the setting
+	 * @param defaultValue	value to use if the setting is not given
+	 * @return the value of the setting
+	 */
+	public static boolean getBoolean(String name, boolean defaultValue){
+		String value = get(name, null);
+		if (value == null){
+			return defaultValue;
+		}
+		return Boolean.parseBoolean(value);
+	}
+
+	/**
+	 * Gets a thread count setting, where 0 or less means one thread per processor
+	 * @param name		name of the setting
+	 * @return the number of threads
+	 */
+	public static int getThreads(String name){
+		int threads = getInt(name, 0);
+		if (threads <= 0){
+			threads = Runtime.getRuntime().availableProcessors();
+		}
+		return threads;
+	}
+
+}
@@ -1,11 +1,11 @@
 package com.oconnors.suggest.nphrases.parse;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -15,13 +15,25 @@ import com.oconnors.suggest.nphrases.comm.Queryer;
 
 public class ParseDriver {
 
-	/**thread pool handling requests from ML*/
-	private static ThreadPoolExecutor threadpool = new ThreadPoolExecutor(Runtime.getRuntime().availableProcessors(),
-			Runtime.getRuntime().availableProcessors(), 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>());
+	/**fetch, parse, and insert stages handling requests from ML*/
+	private static ParsePipeline pipeline = new ParsePipeline();
 	/**Maps xcc url to Queryer: one database connection per server url*/
-	private static HashMap<String,Queryer> queryers = new HashMap<String,Queryer>();
-  
+	private final static ConcurrentHashMap<String, Queryer> queryers = new ConcurrentHashMap<String, Queryer>();
+	/**documents in progress by id; a DocumentParse removes only itself, so a document requested again is not
+	 * removed by the one it replaced*/
   private final static ConcurrentHashMap<String, DocumentParse> docparses = new ConcurrentHashMap<String, DocumentParse>();
+	/**bulk jobs: at most jobs.max running at once, and the last jobs.kept finished ones kept for their status*/
+	private final static JobRegistry jobs = new JobRegistry(ParseConfig.getInt("jobs.max", 8), ParseConfig.getInt("jobs.kept", 100));
+	/**most documents in progress at once; single document requests beyond it are refused, and bulk jobs
+	 * wait once half of it is used, leaving the rest for single document requests*/
+	private final static int MAX_DOCUMENTS = ParseConfig.getInt("admission.documents", 256);
+	/**most batches waiting for the fetch stage; as for MAX_DOCUMENTS*/
+	private final static int MAX_QUEUED = ParseConfig.getInt("admission.queue", 4096);
+	/**bounds of the Retry-After given when a request is refused, in seconds*/
+	private final static int MIN_RETRY_AFTER = 1;
+	private final static int MAX_RETRY_AFTER = 120;
+	/**most documents of one job in progress at once*/
+	private final static int JOB_DOCUMENTS = ParseConfig.getInt("jobs.documents", 2 * ParsePipeline.getIOThreads("pipeline.fetch.threads"));
 		
 	final static Logger logger = LogManager.getLogger(ParseDriver.class.getName());
 
@@ -32,26 +44,139 @@ public class ParseDriver {
 	 * @param product	product containing document
 	 * @param xccUrl	address:port of MarkLogic 
 	 * @param token		authorization token
+	 * @param parseMode	name of the strategy used to build parse trees, or null for the parser.mode setting
 	 * @param paths		array of real paths to xquery source files and java config file
 	 * @throws IOException
+	 * @throws IllegalArgumentException if a parameter is missing or parseMode is unknown
 	 */
 	/*use local config data*/
-	public static void process(String filename, String product, String edition, String xccCredentials, String xccUrl, String token, String[] paths) throws IOException{
-    synchronized (queryers) {
-      if (!queryers.containsKey(xccUrl)){
-        logger.info("Created Queryer for: " + xccUrl);
-        queryers.put(xccUrl, new Queryer(xccCredentials, xccUrl, paths));
-      }
-    }
+	public static void process(String filename, String product, String edition, String xccCredentials, String xccUrl, String token, 
+			String parseMode, String[] paths) throws IOException{
+		createQueryer(xccCredentials, xccUrl, paths);
 		if (product.equals("") || filename.equals("")){
 			throw new IllegalArgumentException("No uri or product specified!");
 		}
-		
-		if (!threadpool.allowsCoreThreadTimeOut()){
-			threadpool.allowCoreThreadTimeOut(true);
+		if (parseMode == null){
+			parseMode = ParseConfig.get("parser.mode", PCFGStrategy.NAME);
+		}
+		DocumentParse.getParseStrategy(parseMode);
+		if (isSaturated(false)){
+			throw new SaturatedException("too many documents in progress: " + docparses.size() + " documents, "
+					+ pipeline.getFetchQueue().size() + " batches queued", getRetryAfter(), false);
 		}
 
-		spawnTask(filename, product, edition, xccUrl, token);
+		spawnTask(filename, product, edition, xccUrl, token, parseMode);
+	}
+
+	/**
+	 *  Starts a bulk job that processes a list of documents in the background
+	 * @param filenames	filenames of documents for which to generate nphrases
+	 * @param product	product containing the documents
+	 * @param xccUrl	address:port of MarkLogic 
+	 * @param token		authorization token
+	 * @param parseMode	name of the strategy used to build parse trees, or null for the parser.mode setting
+	 * @param paths		array of real paths to xquery source files and java config file
+	 * @return the job, already started
+	 * @throws IOException
+	 * @throws IllegalArgumentException if a parameter is missing or parseMode is unknown
+	 */
+	public static ParseJob submitJob(List<String> filenames, String product, String edition, String xccCredentials, String xccUrl,
+			String token, String parseMode, String[] paths) throws IOException{
+		createQueryer(xccCredentials, xccUrl, paths);
+		if (product.equals("")){
+			throw new IllegalArgumentException("No product specified!");
+		}
+		if (parseMode == null){
+			parseMode = ParseConfig.get("parser.mode", PCFGStrategy.NAME);
+		}
+		DocumentParse.getParseStrategy(parseMode);
+
+		ParseJob job = new ParseJob(product, edition, xccUrl, token, parseMode, filenames, JOB_DOCUMENTS);
+		if (!jobs.register(job)){
+			throw new SaturatedException(jobs.getRunning() + " jobs running", getRetryAfter(), true);
+		}
+		Thread feeder = new Thread(job, "nphrases-job-" + job.getId());
+		feeder.setDaemon(true);
+		feeder.start();
+		return job;
+	}
+
+	/**
+	 * @param bulk		true for a document of a bulk job, which may use only half of the limits
+	 * @return true if a new document would go over the limits on documents in progress and queued batches
+	 */
+	public static boolean isSaturated(boolean bulk){
+		int share = bulk ? 2 : 1;
+		return docparses.size() >= MAX_DOCUMENTS / share || pipeline.getFetchQueue().size() >= MAX_QUEUED / share;
+	}
+
+	/**
+	 * @return the seconds after which a refused request is worth retrying: the estimated time for the fetch
+	 * 		stage to take the batches queued now
+	 */
+	public static int getRetryAfter(){
+		long seconds = (pipeline.getFetchQueue().getDrainTime() + 999) / 1000;
+		return (int) Math.max(MIN_RETRY_AFTER, Math.min(MAX_RETRY_AFTER, seconds));
+	}
+
+	/**
+	 * @return the job with the given id, or null if there is none
+	 */
+	public static ParseJob getJob(String id){
+		return jobs.get(id);
+	}
+
+	/**
+	 * Cancels a job: it starts no more documents, and those in progress are finished
+	 * @return the job, or null if there is none with the given id
+	 */
+	public static ParseJob cancelJob(String id){
+		return jobs.cancel(id);
+	}
+
+	/**
+	 * @return all jobs that are running or were kept after finishing
+	 */
+	public static Collection<ParseJob> getJobs(){
+		return jobs.getJobs();
+	}
+
+	/**
+	 * @return the number of bulk jobs admitted that have not finished
+	 */
+	public static int getRunningJobs(){
+		return jobs.getRunning();
+	}
+
+	/**
+	 * @return the number of documents in progress
+	 */
+	public static int getActiveDocuments(){
+		return docparses.size();
+	}
+
+	/**
+	 * Uses the given Queryer for its xcc url from now on, instead of one created from request parameters,
+	 * e.g. to run the pipeline against a stand-in for MarkLogic
+	 */
+	public static void addQueryer(Queryer queryer){
+		queryers.put(queryer.getXccUrl(), queryer);
+	}
+
+	/**
+	 * Creates the Queryer for an xcc url, unless there already is one
+	 */
+	private static void createQueryer(String xccCredentials, String xccUrl, String[] paths) throws IOException{
+		if (queryers.containsKey(xccUrl)){
+			return;
+		}
+		//a Queryer opens no sessions until it is used, so one that loses the race is simply closed
+		Queryer queryer = new Queryer(xccCredentials, xccUrl, paths);
+		if (queryers.putIfAbsent(xccUrl, queryer) == null){
+			logger.info("Created Queryer for: " + xccUrl);
+		} else {
+			queryer.close();
+		}
 	}
 
 	/**
@@ -60,21 +185,33 @@ public class ParseDriver {
 	 * @param product	product containing document
 	 * @param queryer	used to query MarkLogic via XCC
 	 * @param token		authorization token
+	 * @param parseMode	name of the strategy used to build parse trees
 	 * @throws FileNotFoundException 
 	 */
-	public static void spawnTask(final String filename, final String product, final String edition, String xccUrl, final String token){
+	public static void spawnTask(final String filename, final String product, final String edition, String xccUrl, final String token,
+			String parseMode){
+		spawnTask(filename, product, edition, xccUrl, token, parseMode, null);
+	}
+
+	/**
+	 * Spawns a task for a document of a bulk job
+	 * @param job		job told when the document has ended, or null
+	 */
+	public static void spawnTask(final String filename, final String product, final String edition, String xccUrl, final String token,
+			String parseMode, ParseJob job){
 		logger.info("spawning task for document: " + filename);
 		final Queryer queryer = queryers.get(xccUrl);
+		if (queryer == null){
+			//removed after a refused connection
+			throw new IllegalStateException("no Queryer for " + xccUrl);
+		}
     final String docparseID = filename + product + edition + xccUrl;
-    synchronized (docparses){
-      if (docparses.containsKey(docparseID)) {
-        docparses.get(docparseID).shutdown();
-        docparses.remove(docparseID);
-      } 
-      docparses.put(docparseID, new DocumentParse(filename, product, edition, queryer, threadpool, docparses));
-    }
-		final DocumentParse docparse = docparses.get(docparseID);
-		threadpool.execute(new Runnable(){
+		final DocumentParse docparse = new DocumentParse(filename, product, edition, queryer, parseMode, pipeline, docparses, job);
+		DocumentParse replaced = docparses.put(docparseID, docparse);
+		if (replaced != null){
+			replaced.shutdown();
+		}
+		pipeline.getFetchStage().submit(docparse.fetchTask(new Runnable(){
 			public void run(){
 				try {
 					logger.info("parsing document: " + filename);
@@ -85,40 +222,155 @@ public class ParseDriver {
 					//reaches this point only when batch 0 fails: i.e., there have been no successful connection attempts
 					if (e.getMessage().contains("Connection refused")) {
 						logger.warn("removing Queryer: " + queryer.getXccUrl());
-						queryers.remove(queryer.getXccUrl());
+						//only this Queryer: another request may already have created a new one
+						queryers.remove(queryer.getXccUrl(), queryer);
 					}
 					e.printStackTrace();
 				}
 			}
 			
-		});
+		}));
 	}
   
   /**
-  * Returns true if the threadpool has active tasks
+  * Returns true if the pipeline has active tasks
   */
   public static boolean status(){
     logger.info("Current DocumentParses: ");
     for (String docparseID : docparses.keySet()) {
       logger.info(docparseID);
     }
-    if (threadpool.getActiveCount() > 0) {
+    for (ParseJob job : jobs.getJobs()) {
+      if (!job.isFinished()) {
+        logger.info("Job " + job.getId() + ": " + job);
+      }
+    }
+    logger.info("Models: " + NlpModels.describe());
+    logger.info("Pipeline: " + pipeline);
+    logger.info(DocumentParse.getParseCache().toString());
+    logger.info(DocumentParse.getCheckpoints().toString());
+    logger.info(DocumentParse.getFingerprints().toString());
+    logger.info(DocumentParse.getCoalescer().toString());
+    logger.info(DocumentParse.getParseStats());
+    for (Queryer queryer : queryers.values()) {
+      logger.info("XCC sessions for " + queryer.getXccUrl() + ": " + queryer.getSessionPool());
+      if (queryer.getInsertAggregator() != null) {
+        logger.info("Inserts for " + queryer.getXccUrl() + ": " + queryer.getInsertAggregator());
+      }
+    }
+    if (pipeline.getActiveCount() > 0) {
       return true;
     }
     return false;
   }
 
+	/**
+	 * @return the pipeline's metrics in the Prometheus text format: stage latencies, throughput, 
+	 * 		queue depths, documents and jobs in progress, parse cache use, and XCC sessions and errors
+	 */
+	public static String metrics(){
+		StringBuilder out = new StringBuilder();
+		PipelineMetrics.write(out);
+		PipelineMetrics.header("nphrases_models_ready", "gauge", "1 once the models are loaded and warmed up", out);
+		PipelineMetrics.sample("nphrases_models_ready", null, NlpModels.isReady() ? 1 : 0, out);
+		PipelineMetrics.header("nphrases_models_load_seconds", "gauge", "time taken to load the parser and tagger models", out);
+		PipelineMetrics.sample("nphrases_models_load_seconds", null, NlpModels.getLoadMillis() / 1000.0, out);
+		PipelineMetrics.header("nphrases_models_warmup_seconds", "gauge", "time taken to warm up the models", out);
+		PipelineMetrics.sample("nphrases_models_warmup_seconds", null, NlpModels.getWarmupMillis() / 1000.0, out);
+		PipelineMetrics.header("nphrases_sentence_seconds", "summary", "time taken to parse a sentence, including cache lookups", out);
+		PipelineMetrics.summary("nphrases_sentence_seconds", null, DocumentParse.getSentenceLatency(), out);
+		PipelineMetrics.header("nphrases_segmented_sentences_total", "counter", "sentences split into segments to parse them", out);
+		PipelineMetrics.sample("nphrases_segmented_sentences_total", null, DocumentParse.getSegmentedSentences(), out);
+		PipelineMetrics.header("nphrases_parse_budget_overruns_total", "counter", "segments chunked because they were over the parse budget", out);
+		PipelineMetrics.sample("nphrases_parse_budget_overruns_total", null, DocumentParse.getParseBudget().getOverruns(), out);
+		PipelineMetrics.header("nphrases_parser_queries_total", "counter", "PCFG parser queries created: kept by a thread and reused, "
+				+ "or for a single sentence longer than parser.chart.tokens", out);
+		PipelineMetrics.sample("nphrases_parser_queries_total", "kind=\"kept\"", PCFGStrategy.getQueriesKept(), out);
+		PipelineMetrics.sample("nphrases_parser_queries_total", "kind=\"oversized\"", PCFGStrategy.getQueriesOversized(), out);
+		PipelineMetrics.header("nphrases_checkpoint_documents", "gauge", "documents with progress recorded in the checkpoint journal", out);
+		PipelineMetrics.sample("nphrases_checkpoint_documents", null, DocumentParse.getCheckpoints().getDocuments(), out);
+		ParseCoalescer coalescer = DocumentParse.getCoalescer();
+		PipelineMetrics.header("nphrases_parse_coalesced_total", "counter", "sentences parsed by the thread that led their flight, "
+				+ "taken from a concurrent parse of the same sentence, or parsed again because the leader failed", out);
+		PipelineMetrics.sample("nphrases_parse_coalesced_total", "result=\"led\"", coalescer.getLed(), out);
+		PipelineMetrics.sample("nphrases_parse_coalesced_total", "result=\"joined\"", coalescer.getJoined(), out);
+		PipelineMetrics.sample("nphrases_parse_coalesced_total", "result=\"failed\"", coalescer.getFailed(), out);
+		FingerprintIndex fingerprints = DocumentParse.getFingerprints();
+		PipelineMetrics.header("nphrases_fingerprint_sentences_total", "counter", "sentences of documents processed again: "
+				+ "reused from the document's index, changed and parsed, or removed from the document", out);
+		PipelineMetrics.sample("nphrases_fingerprint_sentences_total", "result=\"reused\"", fingerprints.getReused(), out);
+		PipelineMetrics.sample("nphrases_fingerprint_sentences_total", "result=\"changed\"", fingerprints.getChanged(), out);
+		PipelineMetrics.sample("nphrases_fingerprint_sentences_total", "result=\"removed\"", fingerprints.getRemoved(), out);
+		ParseCache cache = DocumentParse.getParseCache();
+		PipelineMetrics.header("nphrases_parse_cache_lookups_total", "counter", "parse cache lookups, by result", out);
+		PipelineMetrics.sample("nphrases_parse_cache_lookups_total", "result=\"memory\"", cache.getMemoryHits(), out);
+		PipelineMetrics.sample("nphrases_parse_cache_lookups_total", "result=\"file\"", cache.getFileHits(), out);
+		PipelineMetrics.sample("nphrases_parse_cache_lookups_total", "result=\"miss\"", cache.getMisses(), out);
+
+		PipelineMetrics.header("nphrases_queue_depth", "gauge", "tasks waiting for each stage of the pipeline", out);
+		for (PipelineStage stage : pipeline.getStages()){
+			PipelineMetrics.sample("nphrases_queue_depth", "stage=\"" + stage.getName() + "\"", stage.getQueueDepth(), out);
+		}
+		PipelineMetrics.header("nphrases_fetch_queue_depth", "gauge", "batches waiting to be fetched, by priority", out);
+		PipelineMetrics.sample("nphrases_fetch_queue_depth", "priority=\"interactive\"", pipeline.getFetchQueue().size(FairTaskQueue.INTERACTIVE), out);
+		PipelineMetrics.sample("nphrases_fetch_queue_depth", "priority=\"bulk\"", pipeline.getFetchQueue().size(FairTaskQueue.BULK), out);
+		PipelineMetrics.header("nphrases_active_threads", "gauge", "threads running a task in each stage of the pipeline", out);
+		for (PipelineStage stage : pipeline.getStages()){
+			PipelineMetrics.sample("nphrases_active_threads", "stage=\"" + stage.getName() + "\"", stage.getActiveCount(), out);
+		}
+		PipelineMetrics.header("nphrases_documents_active", "gauge", "documents in progress", out);
+		PipelineMetrics.sample("nphrases_documents_active", null, docparses.size(), out);
+		PipelineMetrics.header("nphrases_jobs_running", "gauge", "bulk jobs running", out);
+		PipelineMetrics.sample("nphrases_jobs_running", null, getRunningJobs(), out);
+
+		List<Queryer> servers = new ArrayList<Queryer>(queryers.values());
+		PipelineMetrics.header("nphrases_xcc_sessions", "gauge", "XCC sessions of each MarkLogic server, by state", out);
+		for (Queryer queryer : servers){
+			String server = "server=\"" + PipelineMetrics.label(queryer.getXccUrl()) + "\"";
+			PipelineMetrics.sample("nphrases_xcc_sessions", server + ",state=\"active\"", queryer.getSessionPool().getActiveCount(), out);
+			PipelineMetrics.sample("nphrases_xcc_sessions", server + ",state=\"idle\"", queryer.getSessionPool().getIdleCount(), out);
+		}
+		PipelineMetrics.header("nphrases_xcc_session_wait_seconds", "summary", "time queries waited for an XCC session", out);
+		for (Queryer queryer : servers){
+			String server = "server=\"" + PipelineMetrics.label(queryer.getXccUrl()) + "\"";
+			PipelineMetrics.summary("nphrases_xcc_session_wait_seconds", server, queryer.getSessionPool().getWaits(), out);
+		}
+		PipelineMetrics.header("nphrases_xcc_errors_total", "counter", "failed XCC queries, by kind", out);
+		for (Queryer queryer : servers){
+			String server = "server=\"" + PipelineMetrics.label(queryer.getXccUrl()) + "\"";
+			PipelineMetrics.sample("nphrases_xcc_errors_total", server + ",kind=\"connection\"", queryer.getConnectionErrors(), out);
+			PipelineMetrics.sample("nphrases_xcc_errors_total", server + ",kind=\"request\"", queryer.getRequestErrors(), out);
+			PipelineMetrics.sample("nphrases_xcc_errors_total", server + ",kind=\"session_timeout\"", queryer.getSessionPool().getTimeoutCount(), out);
+		}
+		PipelineMetrics.header("nphrases_insert_requests_total", "counter", "grouped insert requests sent", out);
+		for (Queryer queryer : servers){
+			if (queryer.getInsertAggregator() != null){
+				String server = "server=\"" + PipelineMetrics.label(queryer.getXccUrl()) + "\"";
+				PipelineMetrics.sample("nphrases_insert_requests_total", server, queryer.getInsertAggregator().getRequests(), out);
+			}
+		}
+		PipelineMetrics.header("nphrases_insert_batches_total", "counter", "batches inserted in grouped insert requests", out);
+		for (Queryer queryer : servers){
+			if (queryer.getInsertAggregator() != null){
+				String server = "server=\"" + PipelineMetrics.label(queryer.getXccUrl()) + "\"";
+				PipelineMetrics.sample("nphrases_insert_batches_total", server, queryer.getInsertAggregator().getBatches(), out);
+			}
+		}
+		return out.toString();
+	}
+
 	/**
   *  Wait for all tasks to finish before shutting down; do not accept new tasks
   */
 	public static void shutdown(){
 		logger.info("Shutting down...");
 		try {
-			threadpool.shutdown();
-			while (!threadpool.awaitTermination(20, TimeUnit.SECONDS)){
-				logger.trace("not finished: " + threadpool.getActiveCount() + " still running.");
-			}
+			pipeline.shutdown();
 			logger.info("all tasks terminated");
+			DocumentParse.shutdownParsing();
+			for (Queryer queryer : queryers.values()){
+				queryer.close();
+			}
 		} catch (InterruptedException e) {
 			// wait for shutdown to finish
 		}
@@ -129,9 +381,9 @@ public class ParseDriver {
   *  Does not prevent accepting new tasks
   */
   public static void shutdown_all(){
-    for (String docparseID : docparses.keySet()){
-      docparses.get(docparseID).shutdown();
-      docparses.remove(docparseID);
+    for (Map.Entry<String, DocumentParse> entry : docparses.entrySet()){
+      entry.getValue().shutdown();
+      docparses.remove(entry.getKey(), entry.getValue());
     }
   }
   
@@ -141,8 +393,9 @@ public class ParseDriver {
   public static void shutdown(String filename, String product, String edition, String xccUrl){
 		logger.info("Shutting down "  + filename);
     String docparseID = filename + product + edition + xccUrl;
-    if (docparses.containsKey(docparseID)) {
-      docparses.get(docparseID).shutdown();
+    DocumentParse docparse = docparses.get(docparseID);
+    if (docparse != null) {
+      docparse.shutdown();
     }
 	}
 
@@ -0,0 +1,321 @@
+package com.oconnors.suggest.nphrases.parse;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A bulk job: a list of documents of one product and edition, submitted in one request and processed
+ * in the background. The job's thread feeds the documents to the pipeline in order, keeping at most
+ * maxActive of them in progress and waiting while the service is saturated, so that a large job neither
+ * floods the fetch queue nor holds every document in memory at once. Its batches are scheduled behind
+ * those of single document requests. Progress and throughput can be read at any time with toJSON()
+ * A job moves through its states with compareAndSet, so that concurrent cancels and ending documents
+ * cannot finish it twice: queued, running, then done; or, once cancelled, cancelling until its documents
+ * in progress have ended, then cancelled
+ */
+public class ParseJob implements Runnable {
+
+	final static Logger logger = LogManager.getLogger(ParseJob.class.getName());
+
+	public static final String QUEUED = "queued";
+	public static final String RUNNING = "running";
+	public static final String CANCELLING = "cancelling";
+	public static final String DONE = "done";
+	public static final String CANCELLED = "cancelled";
+
+	/**time waited before checking again whether the service has room for another document, in milliseconds*/
+	private static final long SATURATED_WAIT = 500;
+
+	private static final AtomicLong NEXT_ID = new AtomicLong(System.currentTimeMillis());
+
+	private final String id;
+	private final String product;
+	private final String edition;
+	private final String xccUrl;
+	private final String token;
+	private final String parseMode;
+	/**filenames of the job's documents, in the order they are processed*/
+	private final List<String> filenames;
+
+	/**permits to start a document: one per document that can be in progress*/
+	private final Semaphore active;
+	/**number of documents handed to the pipeline*/
+	private final AtomicInteger submitted = new AtomicInteger(0);
+	/**number of documents that have ended, whether or not they succeeded*/
+	private final AtomicInteger ended = new AtomicInteger(0);
+	/**number of documents with a failed batch, or that were shut down*/
+	private final AtomicInteger failed = new AtomicInteger(0);
+	/**number of batches finished by the job's documents*/
+	private final AtomicLong batches = new AtomicLong(0);
+	/**sentences of the job's documents, and those of them that were parsed rather than shared*/
+	private final AtomicLong sentences = new AtomicLong(0);
+	private final AtomicLong sentencesParsed = new AtomicLong(0);
+	/**time from starting each document to its end*/
+	private final LatencyHistogram documentLatency = new LatencyHistogram();
+
+	private final long created;
+	private volatile long started = 0;
+	/**time the last document ended, or the job was cancelled; set once, before the state moves to done or cancelled*/
+	private final AtomicLong finished = new AtomicLong(0);
+	/**set once the job's thread has handed over its last document*/
+	private volatile boolean fed = false;
+	private final AtomicReference<String> state = new AtomicReference<String>(QUEUED);
+	/**registry told when the job finishes, or null*/
+	private volatile JobRegistry registry;
+
+	/**
+	 * @param product		product containing the documents
+	 * @param xccUrl		address:port of MarkLogic
+	 * @param token			authorization token
+	 * @param parseMode		name of the strategy used to build parse trees
+	 * @param filenames		filenames of the documents
+	 * @param maxActive		most documents in progress at once
+	 */
+	public ParseJob(String product, String edition, String xccUrl, String token, String parseMode,
+			List<String> filenames, int maxActive){
+		this.id = Long.toString(NEXT_ID.incrementAndGet(), 36);
+		this.product = product;
+		this.edition = edition;
+		this.xccUrl = xccUrl;
+		this.token = token;
+		this.parseMode = parseMode;
+		this.filenames = filenames;
+		this.active = new Semaphore(Math.max(1, maxActive));
+		this.created = System.currentTimeMillis();
+	}
+
+	/**
+	 * Feeds the documents to the pipeline, waiting for a document to end whenever maxActive are in progress
+	 */
+	public void run(){
+		started = System.currentTimeMillis();
+		//fails if the job was cancelled before it started
+		state.compareAndSet(QUEUED, RUNNING);
+		logger.info("job " + id + ": " + filenames.size() + " documents of " + product + " " + edition);
+		try {
+			for (String filename : filenames){
+				active.acquire();
+				//leave room for single document requests
+				while (!isCancelled() && ParseDriver.isSaturated(true)){
+					Thread.sleep(SATURATED_WAIT);
+				}
+				if (isCancelled()){
+					active.release();
+					break;
+				}
+				submitted.incrementAndGet();
+				try {
+					ParseDriver.spawnTask(filename, product, edition, xccUrl, token, parseMode, this);
+				} catch (RuntimeException e){
+					//e.g. the pipeline is shutting down
+					logger.error("job " + id + ": could not start " + filename + ": " + e);
+					documentEnded(0, true, 0);
+					cancel();
+				}
+			}
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			cancel();
+		} finally {
+			fed = true;
+			if (ended.get() == submitted.get()){
+				finish();
+			}
+		}
+	}
+
+	/**
+	 * Called once for each document, when all of its batches have ended or it has been shut down
+	 * @param batchesFinished	number of the document's batches that finished
+	 * @param failed			true if a batch failed or the document was shut down
+	 * @param nanos				time from starting the document to its end, in nanoseconds
+	 */
+	void documentEnded(int batchesFinished, boolean failed, long nanos){
+		batches.addAndGet(batchesFinished);
+		documentLatency.recordNanos(nanos);
+		if (failed){
+			this.failed.incrementAndGet();
+		}
+		if (ended.incrementAndGet() == submitted.get() && fed){
+			finish();
+		}
+		active.release();
+	}
+
+	/**
+	 * Moves the job to done, or cancelled if it was cancelling, and tells its registry. Only the first call does anything
+	 */
+	private void finish(){
+		if (!finished.compareAndSet(0, System.currentTimeMillis())){
+			return;
+		}
+		while (true){
+			String current = state.get();
+			if (state.compareAndSet(current, current == CANCELLING ? CANCELLED : DONE)){
+				break;
+			}
+		}
+		if (registry != null){
+			registry.finished(this);
+		}
+		logger.info("job " + id + " " + getState() + ": " + this);
+	}
+
+	/**
+	 * @param registry	registry to tell when the job finishes
+	 */
+	void setRegistry(JobRegistry registry){
+		this.registry = registry;
+	}
+
+	/**
+	 * Called once for each sentence of the job's documents
+	 * @param parsed	false if its output was shared: from the document's fingerprints, the parse cache,
+	 * 					or a parse of the same sentence by another document
+	 */
+	void sentenceEnded(boolean parsed){
+		sentences.incrementAndGet();
+		if (parsed){
+			sentencesParsed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return the share of the job's sentences that were not parsed, between 0 and 1
+	 */
+	public double getDedupRatio(){
+		long total = sentences.get();
+		return total == 0 ? 0 : 1 - (double) sentencesParsed.get() / total;
+	}
+
+	/**
+	 * Stops handing documents to the pipeline. Documents already in progress are finished
+	 */
+	public void cancel(){
+		while (true){
+			String current = state.get();
+			if (current != QUEUED && current != RUNNING){
+				return;
+			}
+			if (state.compareAndSet(current, CANCELLING)){
+				logger.info("job " + id + " cancelled after " + submitted.get() + " of " + filenames.size() + " documents");
+				return;
+			}
+		}
+	}
+
+	public String getId(){
+		return id;
+	}
+
+	/**
+	 * @return queued, running, cancelling, done or cancelled
+	 */
+	public String getState(){
+		return state.get();
+	}
+
+	/**
+	 * @return true once the job has been cancelled, whether or not its documents in progress have ended
+	 */
+	public boolean isCancelled(){
+		String current = state.get();
+		return current == CANCELLING || current == CANCELLED;
+	}
+
+	/**
+	 * @return true once the job will do no more work
+	 */
+	public boolean isFinished(){
+		String current = state.get();
+		return current == DONE || current == CANCELLED;
+	}
+
+	/**
+	 * @return the time the job ended, in milliseconds, or 0 if it has not
+	 */
+	public long getFinishedTime(){
+		return finished.get();
+	}
+
+	/**
+	 * @return the number of documents with a failed batch, or that were shut down
+	 */
+	public int getFailed(){
+		return failed.get();
+	}
+
+	/**
+	 * @return the time from starting each document to its end
+	 */
+	public LatencyHistogram getDocumentLatency(){
+		return documentLatency;
+	}
+
+	/**
+	 * @return the job's progress and throughput as a JSON object
+	 */
+	public String toJSON(){
+		long end = finished.get();
+		if (end == 0){
+			end = System.currentTimeMillis();
+		}
+		double seconds = started == 0 ? 0 : Math.max(1, end - started) / 1000.0;
+		StringBuilder json = new StringBuilder();
+		json.append("{\"job\":\"").append(id).append("\"");
+		json.append(",\"state\":\"").append(getState()).append("\"");
+		json.append(",\"product\":");
+		quote(product, json);
+		json.append(",\"edition\":");
+		quote(edition, json);
+		json.append(",\"documents\":").append(filenames.size());
+		json.append(",\"submitted\":").append(submitted.get());
+		json.append(",\"ended\":").append(ended.get());
+		json.append(",\"failed\":").append(failed.get());
+		json.append(",\"batches\":").append(batches.get());
+		json.append(",\"sentences\":").append(sentences.get());
+		json.append(",\"sentencesParsed\":").append(sentencesParsed.get());
+		json.append(",\"dedupRatio\":").append(String.format(Locale.ROOT, "%.3f", getDedupRatio()));
+		json.append(",\"seconds\":").append(String.format(Locale.ROOT, "%.1f", seconds));
+		json.append(",\"documentsPerSecond\":").append(String.format(Locale.ROOT, "%.2f", seconds == 0 ? 0 : ended.get() / seconds));
+		json.append(",\"batchesPerSecond\":").append(String.format(Locale.ROOT, "%.2f", seconds == 0 ? 0 : batches.get() / seconds));
+		json.append(",\"documentSecondsP50\":").append(String.format(Locale.ROOT, "%.3f", documentLatency.getPercentile(50) / 1e6));
+		json.append(",\"documentSecondsP99\":").append(String.format(Locale.ROOT, "%.3f", documentLatency.getPercentile(99) / 1e6));
+		json.append(",\"queuedSeconds\":").append(String.format(Locale.ROOT, "%.1f", ((started == 0 ? end : started) - created) / 1000.0));
+		json.append("}");
+		return json.toString();
+	}
+
+	/**
+	 * Appends text to json as a JSON string
+	 */
+	private static void quote(String text, StringBuilder json){
+		json.append('"');
+		for (int i=0; i < text.length(); i++){
+			char c = text.charAt(i);
+			if (c == '"' || c == '\\'){
+				json.append('\\').append(c);
+			} else if (c < 0x20){
+				json.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+			} else {
+				json.append(c);
+			}
+		}
+		json.append('"');
+	}
+
+	@Override
+	public String toString(){
+		return ended.get() + "/" + filenames.size() + " documents ended (" + failed.get() + " failed, "
+				+ (submitted.get() - ended.get()) + " in progress), " + batches.get() + " batches, " + sentences.get()
+				+ " sentences (" + String.format("%.1f", getDedupRatio() * 100) + "% not parsed)";
+	}
+
+}
@@ -0,0 +1,128 @@
+package com.oconnors.suggest.nphrases.parse;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The stages a batch passes through:
+ * 		fetch: streams the batch's sentences from MarkLogic (blocks on XCC), handing them to the parse stage in parts
+ * 		parse: parses each part into parse trees (CPU bound)
+ * 		insert: generates and inserts nphrases from the parse trees (blocks on XCC)
+ * The parse and insert queues are bounded, so a stage that falls behind holds back the stages before it.
+ * The fetch queue holds every batch of the documents that have been admitted (see ParseDriver), and hands
+ * them out by priority and fairly across documents and products: see FairTaskQueue
+ * With pipeline.io.threads=virtual, the fetch and insert stages run each task on a new virtual thread
+ * (see PipelineStage), at most IO_THREADS at once by default, while the parse stage and the parser pool
+ * stay on platform threads
+ */
+public class ParsePipeline {
+
+	final static Logger logger = LogManager.getLogger(ParsePipeline.class.getName());
+
+	public static final String PLATFORM = "platform";
+	public static final String VIRTUAL = "virtual";
+	/**default number of tasks the fetch and insert stages run at once on virtual threads*/
+	private static final int IO_THREADS = 128;
+
+	private final PipelineStage fetch;
+	private final FairTaskQueue fetchQueue = new FairTaskQueue();
+	private final PipelineStage parse;
+	private final PipelineStage insert;
+
+	/**
+	 * Constructs a new pipeline, sized by the pipeline.* settings in ParseConfig
+	 */
+	public ParsePipeline(){
+		boolean virtual = isVirtualIO();
+		int fetchThreads = getIOThreads("pipeline.fetch.threads");
+		int parseThreads = ParseConfig.getThreads("pipeline.parse.threads");
+		int insertThreads = getIOThreads("pipeline.insert.threads");
+		fetch = new PipelineStage("fetch", fetchThreads, fetchQueue, virtual);
+		parse = new PipelineStage("parse", parseThreads, ParseConfig.getInt("pipeline.parse.queue", 2 * parseThreads));
+		insert = new PipelineStage("insert", insertThreads, ParseConfig.getInt("pipeline.insert.queue", 2 * insertThreads), virtual);
+		logger.info("pipeline: " + this);
+	}
+
+	/**
+	 * @return true if the pipeline.io.threads setting asks for the fetch and insert stages to run on virtual threads
+	 */
+	public static boolean isVirtualIO(){
+		String mode = ParseConfig.get("pipeline.io.threads", PLATFORM);
+		if (!mode.equals(PLATFORM) && !mode.equals(VIRTUAL)){
+			logger.error("Unknown pipeline.io.threads: " + mode + ", using " + PLATFORM);
+		}
+		return mode.equals(VIRTUAL);
+	}
+
+	/**
+	 * @return the threads of a fetch or insert stage (on virtual threads, the most tasks it runs at once): the
+	 * 		setting if it is given, otherwise IO_THREADS on virtual threads or one per processor on platform threads
+	 */
+	public static int getIOThreads(String name){
+		if (ParseConfig.getInt(name, 0) <= 0 && isVirtualIO() && PipelineStage.virtualThreadFactory("nphrases-probe-") != null){
+			return IO_THREADS;
+		}
+		return ParseConfig.getThreads(name);
+	}
+
+	public PipelineStage getFetchStage(){
+		return fetch;
+	}
+
+	/**
+	 * @return the queue of the fetch stage
+	 */
+	public FairTaskQueue getFetchQueue(){
+		return fetchQueue;
+	}
+
+	public PipelineStage getParseStage(){
+		return parse;
+	}
+
+	public PipelineStage getInsertStage(){
+		return insert;
+	}
+
+	/**
+	 * @return all stages, in the order a batch passes through them
+	 */
+	public PipelineStage[] getStages(){
+		return new PipelineStage[]{fetch, parse, insert};
+	}
+
+	/**
+	 * @return the approximate number of threads currently running a task, across all stages
+	 */
+	public int getActiveCount(){
+		return fetch.getActiveCount() + parse.getActiveCount() + insert.getActiveCount();
+	}
+
+	/**
+	 * @return the number of tasks waiting in the queues of all stages
+	 */
+	public int getQueueDepth(){
+		return fetch.getQueueDepth() + parse.getQueueDepth() + insert.getQueueDepth();
+	}
+
+	/**
+	 * Waits for all queued tasks to finish before shutting down; does not accept new tasks.
+	 * Stages are shut down in order, so that tasks passed on by an earlier stage still run
+	 */
+	public void shutdown() throws InterruptedException {
+		for (PipelineStage stage : getStages()){
+			stage.shutdown();
+			while (!stage.awaitTermination(20, TimeUnit.SECONDS)){
+				logger.trace("not finished: " + stage);
+			}
+		}
+	}
+
+	@Override
+	public String toString(){
+		return fetch + " | " + parse + " | " + insert;
+	}
+
+}
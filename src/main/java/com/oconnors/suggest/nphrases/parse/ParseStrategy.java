@@ -0,0 +1,26 @@
+package com.oconnors.suggest.nphrases.parse;
+
+import java.util.List;
+
+import edu.stanford.nlp.ling.TaggedWord;
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * A way of building a parse tree from a tagged sentence
+ */
+public interface ParseStrategy {
+
+	/**
+	 * @return the name of this strategy, as given in the parse-mode request parameter
+	 */
+	String getName();
+
+	/**
+	 * Builds a parse tree for a sentence
+	 * @param words		the tagged words of a single sentence or fragment
+	 * @return the sentence's parse tree
+	 * @throws RuntimeException if the sentence could not be parsed
+	 */
+	Tree parse(List<TaggedWord> words);
+
+}
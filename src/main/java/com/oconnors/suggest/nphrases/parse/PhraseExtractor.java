@@ -0,0 +1,224 @@
+package com.oconnors.suggest.nphrases.parse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * Extracts phrases from parse trees, so that only the phrases are sent to MarkLogic instead of
+ * the parse tree xml. Phrases are written as records, one per line: type, a tab, then the phrase text.
+ * 		nphrase1: a base noun phrase (an NP with no phrases in it), without leading determiners
+ * 			e.g. (NP (DT the) (JJ new) (NN rule)) gives "new rule"
+ * 		nphrase2: a base noun phrase with a prepositional phrase attached to it
+ * 			e.g. (NP (NP (NN notice)) (PP (IN of) (NP (NN appeal)))) gives "notice of appeal"
+ * 		vphrase1: a verb with the base noun phrase that is (or heads) its object
+ * 			e.g. (VP (VB file) (NP (DT a) (NN motion))) gives "file motion"
+ * The rules were inferred from the phrase types, not ported from np:build-noun-phrases and np:build-verb-phrases,
+ * and are experimental until PhraseExtractorParityTest passes against a recording of the phrases the np library builds
+ */
+public class PhraseExtractor {
+
+	public static final String NPHRASE1 = "nphrase1";
+	public static final String NPHRASE2 = "nphrase2";
+	public static final String VPHRASE1 = "vphrase1";
+	/**phrase types, in the order their counts are reported*/
+	public static final String[] TYPES = new String[]{NPHRASE1, NPHRASE2, VPHRASE1};
+
+	/**phrases are extracted in java and only the phrases are sent to MarkLogic*/
+	public static final String MODE_JAVA = "java";
+	/**parse tree xml is sent to MarkLogic, which builds the phrases*/
+	public static final String MODE_XQUERY = "xquery";
+	/**phrases are extracted in java and inserted; MarkLogic also builds them from the parse tree xml,
+	 * without inserting them, and the differences are logged*/
+	public static final String MODE_COMPARE = "compare";
+
+	/**
+	 * Appends the phrases of a parse tree to out as records
+	 * @param tree		parse tree of a sentence
+	 * @param out		buffer that records are written to
+	 */
+	public static void extract(Tree tree, StringBuilder out){
+		if (tree == null || tree.isLeaf() || tree.isPreTerminal()){
+			return;
+		}
+		String category = category(tree);
+		if (category.equals("NP")){
+			if (isBaseNP(tree)){
+				appendRecord(NPHRASE1, tree, null, null, out);
+				return;
+			}
+			Tree[] kids = tree.children();
+			if (kids.length == 2 && isBaseNP(kids[0]) && category(kids[1]).equals("PP")){
+				Tree[] pp = kids[1].children();
+				if (pp.length == 2 && pp[0].isPreTerminal() && isBaseNP(pp[1])){
+					appendRecord(NPHRASE2, kids[0], pp[0], pp[1], out);
+				}
+			}
+		} else if (category.equals("VP")){
+			Tree verb = null;
+			for (Tree kid : tree.children()){
+				if (verb == null && kid.isPreTerminal() && tag(kid).startsWith("VB")){
+					verb = kid;
+				} else if (verb != null && object(kid) != null){
+					appendRecord(VPHRASE1, verb, null, object(kid), out);
+					break;
+				} else if (!kid.isPreTerminal()){
+					break;
+				}
+			}
+		}
+		for (Tree kid : tree.children()){
+			extract(kid, out);
+		}
+	}
+
+	/**
+	 * Compares phrases extracted in java to phrases built by MarkLogic
+	 * @param records		phrase records extracted in java
+	 * @param built			phrases built by MarkLogic, one per line, for each type in TYPES
+	 * @return a summary of the differences, by type
+	 */
+	public static String compare(String records, String[] built){
+		Map<String, List<String>> extracted = new HashMap<String, List<String>>();
+		for (String type : TYPES){
+			extracted.put(type, new ArrayList<String>());
+		}
+		for (String record : records.split("\n")){
+			int tab = record.indexOf('\t');
+			if (tab > 0 && extracted.containsKey(record.substring(0, tab))){
+				extracted.get(record.substring(0, tab)).add(record.substring(tab + 1));
+			}
+		}
+		StringBuilder summary = new StringBuilder();
+		for (int i=0; i < TYPES.length; i++){
+			List<String> java = extracted.get(TYPES[i]);
+			List<String> xquery = new ArrayList<String>();
+			for (String phrase : built[i].split("\n")){
+				if (!phrase.isEmpty()){
+					xquery.add(phrase);
+				}
+			}
+			Collections.sort(java);
+			Collections.sort(xquery);
+			//walk the sorted lists together, counting phrases found in only one of them
+			int onlyJava = 0, onlyXQuery = 0, j = 0, x = 0;
+			while (j < java.size() || x < xquery.size()){
+				int cmp = j == java.size() ? 1 : x == xquery.size() ? -1 : java.get(j).compareTo(xquery.get(x));
+				if (cmp < 0){
+					onlyJava++;
+					j++;
+				} else if (cmp > 0){
+					onlyXQuery++;
+					x++;
+				} else {
+					j++;
+					x++;
+				}
+			}
+			summary.append(i == 0 ? "" : ", ").append(TYPES[i]).append(": ").append(java.size()).append(" java/")
+					.append(xquery.size()).append(" xquery (").append(onlyJava).append(" only java, ")
+					.append(onlyXQuery).append(" only xquery)");
+		}
+		return summary.toString();
+	}
+
+	/**
+	 * Appends one record: the words of each of the given trees, separated by spaces.
+	 * Nothing is written if any of the trees has no words
+	 */
+	private static void appendRecord(String type, Tree first, Tree second, Tree third, StringBuilder out){
+		int start = out.length();
+		out.append(type).append('\t');
+		int text = out.length();
+		if (appendWords(first, text, out) & appendWords(second, text, out) & appendWords(third, text, out)){
+			out.append('\n');
+		} else {
+			out.setLength(start);
+		}
+	}
+
+	/**
+	 * Appends the words of a phrase, skipping leading determiners and possessive pronouns of a noun phrase
+	 * @param text		index in out that the record's text starts at: words after it are preceded by a space
+	 * @return true if the tree is null or has words
+	 */
+	private static boolean appendWords(Tree tree, int text, StringBuilder out){
+		if (tree == null){
+			return true;
+		}
+		boolean leading = true;
+		boolean written = false;
+		for (Tree word : tree.isPreTerminal() ? new Tree[]{tree} : tree.children()){
+			String tag = tag(word);
+			if (leading && (tag.equals("DT") || tag.equals("PDT") || tag.equals("PRP$") || tag.equals("WP$"))){
+				continue;
+			}
+			leading = false;
+			String value = word.firstChild().value();
+			if (value == null || value.isEmpty()){
+				continue;
+			}
+			if (out.length() > text){
+				out.append(' ');
+			}
+			for (int i=0; i < value.length(); i++){
+				char c = value.charAt(i);
+				out.append(Character.isWhitespace(c) ? ' ' : c);
+			}
+			written = true;
+		}
+		return written;
+	}
+
+	/**
+	 * @return true if the tree is a noun phrase of words with at least one noun, and no phrases in it
+	 */
+	private static boolean isBaseNP(Tree tree){
+		if (tree.isLeaf() || tree.isPreTerminal() || !category(tree).equals("NP")){
+			return false;
+		}
+		boolean noun = false;
+		for (Tree kid : tree.children()){
+			if (!kid.isPreTerminal()){
+				return false;
+			}
+			noun |= tag(kid).startsWith("NN");
+		}
+		return noun;
+	}
+
+	/**
+	 * @return the base noun phrase that heads a noun phrase: the phrase itself or its first child, or null if there is none
+	 */
+	private static Tree object(Tree tree){
+		if (isBaseNP(tree)){
+			return tree;
+		}
+		if (!tree.isLeaf() && category(tree).equals("NP") && isBaseNP(tree.firstChild())){
+			return tree.firstChild();
+		}
+		return null;
+	}
+
+	/**
+	 * @return the label of a phrase without function tags, e.g. NP for NP-TMP
+	 */
+	private static String category(Tree tree){
+		String label = tree.value();
+		if (label == null){
+			return "";
+		}
+		int dash = label.indexOf('-', 1);
+		return dash < 0 ? label : label.substring(0, dash);
+	}
+
+	private static String tag(Tree preterminal){
+		String tag = preterminal.value();
+		return tag == null ? "" : tag;
+	}
+
+}
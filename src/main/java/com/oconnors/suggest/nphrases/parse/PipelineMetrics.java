@@ -0,0 +1,202 @@
+package com.oconnors.suggest.nphrases.parse;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the pipeline, cheap enough to update for every sentence,
+ * and their output in the Prometheus text format. Stage latencies:
+ * 		fetch: streaming a batch's sentences from MarkLogic, including waits for room on the parse stage
+ * 		tokenize, tag, parse: each sentence (parse: each segment, by whichever strategy parses it)
+ * 		xml: writing a parse tree as fixed xml (see DocUtils.fixXML)
+ * 		extract: extracting the phrases of a parse tree
+ * 		insert: generating and inserting a batch's nphrases in MarkLogic
+ */
+public class PipelineMetrics {
+
+	public static final int FETCH = 0;
+	public static final int TOKENIZE = 1;
+	public static final int TAG = 2;
+	public static final int PARSE = 3;
+	public static final int XML = 4;
+	public static final int EXTRACT = 5;
+	public static final int INSERT = 6;
+	/**names of the stages, by number*/
+	public static final String[] STAGES = new String[]{"fetch", "tokenize", "tag", "parse", "xml", "extract", "insert"};
+
+	/**quantiles reported for each histogram*/
+	private static final double[] QUANTILES = new double[]{0.5, 0.9, 0.99};
+
+	private static final LatencyHistogram[] STAGE_LATENCY = new LatencyHistogram[STAGES.length];
+	static {
+		for (int i=0; i < STAGE_LATENCY.length; i++){
+			STAGE_LATENCY[i] = new LatencyHistogram();
+		}
+	}
+	private static final Meter SENTENCES = new Meter();
+	private static final Meter NPHRASES = new Meter();
+	/**nphrases inserted, by type in the order of PhraseExtractor.TYPES*/
+	private static final AtomicLongArray NPHRASES_BY_TYPE = new AtomicLongArray(PhraseExtractor.TYPES.length);
+	private static final AtomicLong BATCHES_FINISHED = new AtomicLong(0);
+	private static final AtomicLong BATCHES_FAILED = new AtomicLong(0);
+
+	/**
+	 * Records the time a stage took
+	 * @param stage		one of the stage numbers
+	 * @param nanos		time taken, in nanoseconds
+	 */
+	public static void record(int stage, long nanos){
+		STAGE_LATENCY[stage].recordNanos(nanos);
+	}
+
+	/**
+	 * @return the times taken by a stage
+	 */
+	public static LatencyHistogram getLatency(int stage){
+		return STAGE_LATENCY[stage];
+	}
+
+	/**
+	 * Records a sentence handed to the parser, whether or not its parse was cached
+	 */
+	public static void sentence(){
+		SENTENCES.mark(1);
+	}
+
+	/**
+	 * Records the nphrases inserted for a batch
+	 * @param counts	number inserted of each type, in the order of PhraseExtractor.TYPES
+	 */
+	public static void nphrases(int[] counts){
+		long sum = 0;
+		for (int i=0; i < counts.length && i < NPHRASES_BY_TYPE.length(); i++){
+			NPHRASES_BY_TYPE.addAndGet(i, counts[i]);
+			sum += counts[i];
+		}
+		NPHRASES.mark(sum);
+	}
+
+	/**
+	 * Records the end of a batch
+	 * @param finished		false if the batch failed
+	 */
+	public static void batch(boolean finished){
+		(finished ? BATCHES_FINISHED : BATCHES_FAILED).incrementAndGet();
+	}
+
+	/**
+	 * Writes the stage latencies and the sentence, nphrase and batch counters
+	 */
+	public static void write(StringBuilder out){
+		header("nphrases_stage_seconds", "summary", "time taken by each stage of the pipeline", out);
+		for (int i=0; i < STAGES.length; i++){
+			summary("nphrases_stage_seconds", "stage=\"" + STAGES[i] + "\"", STAGE_LATENCY[i], out);
+		}
+		header("nphrases_sentences_total", "counter", "sentences handed to the parser, including cached ones", out);
+		sample("nphrases_sentences_total", null, SENTENCES.getCount(), out);
+		header("nphrases_sentences_per_second", "gauge", "sentences per second over the last minute", out);
+		sample("nphrases_sentences_per_second", null, SENTENCES.getRate(), out);
+		header("nphrases_nphrases_total", "counter", "nphrases inserted, by type", out);
+		for (int i=0; i < PhraseExtractor.TYPES.length; i++){
+			sample("nphrases_nphrases_total", "type=\"" + PhraseExtractor.TYPES[i] + "\"", NPHRASES_BY_TYPE.get(i), out);
+		}
+		header("nphrases_nphrases_per_second", "gauge", "nphrases inserted per second over the last minute", out);
+		sample("nphrases_nphrases_per_second", null, NPHRASES.getRate(), out);
+		header("nphrases_batches_total", "counter", "batches that have ended, by result", out);
+		sample("nphrases_batches_total", "result=\"finished\"", BATCHES_FINISHED.get(), out);
+		sample("nphrases_batches_total", "result=\"failed\"", BATCHES_FAILED.get(), out);
+	}
+
+	/**
+	 * Writes the HELP and TYPE lines of a metric
+	 */
+	public static void header(String name, String type, String help, StringBuilder out){
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	/**
+	 * Writes one sample of a metric
+	 * @param labels	labels, e.g. stage="fetch", or null for none
+	 */
+	public static void sample(String name, String labels, double value, StringBuilder out){
+		out.append(name);
+		if (labels != null){
+			out.append('{').append(labels).append('}');
+		}
+		out.append(' ');
+		if (value == Math.rint(value) && Math.abs(value) < 1e15){
+			out.append((long) value);
+		} else {
+			out.append(value);
+		}
+		out.append('\n');
+	}
+
+	/**
+	 * Writes a latency histogram as a summary in seconds: its quantiles, sum and count
+	 * @param labels	labels, or null for none
+	 */
+	public static void summary(String name, String labels, LatencyHistogram histogram, StringBuilder out){
+		String prefix = labels == null ? "" : labels + ",";
+		for (double quantile : QUANTILES){
+			sample(name, prefix + "quantile=\"" + quantile + "\"", histogram.getPercentile(quantile * 100) / 1e6, out);
+		}
+		sample(name + "_sum", labels, histogram.getSum() / 1e6, out);
+		sample(name + "_count", labels, histogram.getCount(), out);
+	}
+
+	/**
+	 * @return text escaped for use as a label value
+	 */
+	public static String label(String text){
+		return text.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/**
+	 * Counts events, and their rate over the last minute. The minute is kept as 12 slots of 5 seconds,
+	 * each holding the count of the interval it was last used for
+	 */
+	private static class Meter {
+
+		private static final int SLOTS = 12;
+		private static final long SLOT_MILLIS = 5000;
+
+		private final AtomicLong count = new AtomicLong(0);
+		private final AtomicLongArray slotCounts = new AtomicLongArray(SLOTS);
+		/**interval each slot holds the count of*/
+		private final AtomicLongArray slotIntervals = new AtomicLongArray(SLOTS);
+
+		void mark(long n){
+			count.addAndGet(n);
+			long interval = System.currentTimeMillis() / SLOT_MILLIS;
+			int slot = (int) (interval % SLOTS);
+			long used = slotIntervals.get(slot);
+			if (used != interval && slotIntervals.compareAndSet(slot, used, interval)){
+				slotCounts.set(slot, 0);
+			}
+			slotCounts.addAndGet(slot, n);
+		}
+
+		long getCount(){
+			return count.get();
+		}
+
+		/**
+		 * @return events per second over the last minute, not counting the current slot, which is still filling
+		 */
+		double getRate(){
+			long current = System.currentTimeMillis() / SLOT_MILLIS;
+			long sum = 0;
+			for (int i=0; i < SLOTS; i++){
+				long interval = slotIntervals.get(i);
+				if (interval < current && interval >= current - (SLOTS - 1)){
+					sum += slotCounts.get(i);
+				}
+			}
+			return sum / ((SLOTS - 1) * SLOT_MILLIS / 1000.0);
+		}
+
+	}
+
+}
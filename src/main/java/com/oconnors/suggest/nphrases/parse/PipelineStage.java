@@ -0,0 +1,329 @@
+package com.oconnors.suggest.nphrases.parse;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * One stage of the parse pipeline: a fixed number of threads taking tasks from a queue.
+ * When the queue is bounded, submitting to a full stage blocks until the stage catches up,
+ * which holds back the stage that is submitting.
+ * A stage can run its tasks on virtual threads instead, on a JDK that has them (21 and later): a stage whose
+ * tasks mostly wait on MarkLogic can then run hundreds of tasks at once without an OS thread for each.
+ * Virtual threads are not pooled: a dispatcher takes each task from the queue once one of the stage's permits
+ * is free, and starts a new virtual thread for it, so the threads bound how many tasks run at once rather than
+ * how many threads exist. Virtual threads are created through reflection, since the service is built for
+ * Java 7; on an older JDK the stage falls back to platform threads
+ */
+public class PipelineStage {
+
+	final static Logger logger = LogManager.getLogger(PipelineStage.class.getName());
+
+	/**time the dispatcher of a stage on virtual threads waits for a task before checking for shutdown*/
+	private static final long DISPATCH_POLL_MILLIS = 100;
+
+	/**name of the stage, used to name its threads*/
+	private final String name;
+	/**threads running the stage's tasks, or null if they run on virtual threads*/
+	private final ThreadPoolExecutor executor;
+	/**queue of a stage on virtual threads*/
+	private final BlockingQueue<Runnable> queue;
+	/**tasks a stage on virtual threads may run at once, and permits to run them*/
+	private final int threads;
+	private final Semaphore permits;
+	/**tasks running on virtual threads*/
+	private final AtomicInteger running = new AtomicInteger(0);
+	/**takes the tasks of a stage on virtual threads from its queue and starts a virtual thread for each*/
+	private final Thread dispatcher;
+	/**set once a stage on virtual threads is shut down*/
+	private volatile boolean shutdown = false;
+	/**capacity of the stage's queue, or 0 if it is unbounded*/
+	private final int capacity;
+	/**true if the stage's threads are virtual threads*/
+	private final boolean virtual;
+
+	/**
+	 * Constructs a new stage
+	 * @param name		name of the stage
+	 * @param threads	number of threads running the stage's tasks
+	 * @param capacity	number of tasks that can wait in the stage's queue; 0 for no limit
+	 */
+	public PipelineStage(final String name, int threads, int capacity){
+		this(name, threads, capacity, false);
+	}
+
+	/**
+	 * Constructs a new stage
+	 * @param name		name of the stage
+	 * @param threads	number of threads running the stage's tasks
+	 * @param capacity	number of tasks that can wait in the stage's queue; 0 for no limit
+	 * @param virtual	true to run the tasks on virtual threads, if the JDK has them
+	 */
+	public PipelineStage(final String name, int threads, int capacity, boolean virtual){
+		this(name, threads, capacity, capacity > 0 ? new ArrayBlockingQueue<Runnable>(capacity) : new LinkedBlockingQueue<Runnable>(),
+				virtual);
+	}
+
+	/**
+	 * Constructs a new stage that takes its tasks from the given queue, e.g. to order them
+	 * @param name		name of the stage
+	 * @param threads	number of threads running the stage's tasks
+	 * @param queue		queue the stage's tasks wait in
+	 */
+	public PipelineStage(final String name, int threads, BlockingQueue<Runnable> queue){
+		this(name, threads, queue, false);
+	}
+
+	/**
+	 * Constructs a new stage that takes its tasks from the given queue, e.g. to order them
+	 * @param name		name of the stage
+	 * @param threads	number of threads running the stage's tasks
+	 * @param queue		queue the stage's tasks wait in
+	 * @param virtual	true to run the tasks on virtual threads, if the JDK has them
+	 */
+	public PipelineStage(final String name, int threads, BlockingQueue<Runnable> queue, boolean virtual){
+		this(name, threads, 0, queue, virtual);
+	}
+
+	private PipelineStage(final String name, int threads, int capacity, BlockingQueue<Runnable> queue, boolean virtual){
+		this.name = name;
+		this.capacity = capacity;
+		ThreadFactory factory = virtual ? virtualThreadFactory("nphrases-" + name + "-") : null;
+		if (virtual && factory == null){
+			logger.warn("no virtual threads in Java " + System.getProperty("java.version") + ": the " + name 
+					+ " stage runs on platform threads");
+		}
+		this.virtual = factory != null;
+		this.threads = threads;
+		if (this.virtual){
+			this.queue = queue;
+			this.permits = new Semaphore(threads);
+			this.executor = null;
+			this.dispatcher = new Thread(new Dispatcher(factory), "nphrases-" + name + "-dispatcher");
+			dispatcher.setDaemon(true);
+			dispatcher.start();
+			return;
+		}
+		this.queue = null;
+		this.permits = null;
+		this.dispatcher = null;
+		if (factory == null){
+			factory = new ThreadFactory(){
+				private final AtomicInteger count = new AtomicInteger(0);
+				public Thread newThread(Runnable r){
+					return new Thread(r, "nphrases-" + name + "-" + count.incrementAndGet());
+				}
+			};
+		}
+		executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES, queue, factory, new RejectedExecutionHandler(){
+			//queue is full: wait for room instead of rejecting
+			public void rejectedExecution(Runnable r, ThreadPoolExecutor executor){
+				if (executor.isShutdown()){
+					throw new RejectedExecutionException(name + " stage is shut down");
+				}
+				try {
+					executor.getQueue().put(r);
+				} catch (InterruptedException e){
+					Thread.currentThread().interrupt();
+					throw new RejectedExecutionException("interrupted while waiting for the " + name + " stage", e);
+				}
+				//shut down while waiting for room: take the task back, unless a thread has taken it already,
+				//or it would never run
+				if (executor.isShutdown() && executor.remove(r)){
+					throw new RejectedExecutionException(name + " stage is shut down");
+				}
+				if (executor.getPoolSize() == 0){
+					executor.prestartCoreThread();
+				}
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * @param prefix	prefix of the threads' names, which are numbered from 1
+	 * @return a factory of virtual threads (Thread.ofVirtual().name(prefix, 1).factory()), or null if the JDK has none
+	 */
+	public static ThreadFactory virtualThreadFactory(String prefix){
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 1L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (NoSuchMethodException e){
+			return null;
+		} catch (ClassNotFoundException e){
+			return null;
+		} catch (Exception e){
+			//e.g. virtual threads are a preview feature of this JDK and not enabled
+			logger.warn("could not create virtual threads: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Queues a task on this stage, waiting for room in the queue if it is full
+	 * @param task		task to run
+	 */
+	public void submit(Runnable task){
+		if (executor != null){
+			executor.execute(task);
+			return;
+		}
+		if (shutdown){
+			throw new RejectedExecutionException(name + " stage is shut down");
+		}
+		try {
+			queue.put(task);
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException("interrupted while waiting for the " + name + " stage", e);
+		}
+		//shut down while queueing: take the task back, unless the dispatcher has taken it already,
+		//or it would never run
+		if (shutdown && queue.remove(task)){
+			throw new RejectedExecutionException(name + " stage is shut down");
+		}
+	}
+
+	/**
+	 * Starts a virtual thread for each task of the queue, once a permit is free.
+	 * Once the stage is shut down, it starts the tasks left in the queue and ends
+	 */
+	private class Dispatcher implements Runnable {
+
+		private final ThreadFactory factory;
+
+		Dispatcher(ThreadFactory factory){
+			this.factory = factory;
+		}
+
+		public void run(){
+			try {
+				while (true){
+					permits.acquire();
+					final Runnable task = queue.poll(DISPATCH_POLL_MILLIS, TimeUnit.MILLISECONDS);
+					if (task == null){
+						permits.release();
+						if (shutdown && queue.isEmpty()){
+							return;
+						}
+						continue;
+					}
+					running.incrementAndGet();
+					try {
+						factory.newThread(new Runnable(){
+							public void run(){
+								try {
+									task.run();
+								} finally {
+									running.decrementAndGet();
+									permits.release();
+								}
+							}
+						}).start();
+					} catch (RuntimeException e){
+						//the task is lost, as it would be if a pooled thread died running it
+						logger.error("could not start a thread of the " + name + " stage: " + e);
+						running.decrementAndGet();
+						permits.release();
+					}
+				}
+			} catch (InterruptedException e){
+				logger.warn("the " + name + " stage's dispatcher was interrupted: " + queue.size() + " tasks are left in its queue");
+			}
+		}
+
+	}
+
+	/**
+	 * @return the name of this stage
+	 */
+	public String getName(){
+		return name;
+	}
+
+	/**
+	 * @return the number of threads running this stage's tasks
+	 */
+	public int getThreads(){
+		return executor != null ? executor.getMaximumPoolSize() : threads;
+	}
+
+	/**
+	 * @return true if this stage's threads are virtual threads
+	 */
+	public boolean isVirtual(){
+		return virtual;
+	}
+
+	/**
+	 * @return the number of tasks that can wait in this stage's queue, or 0 if it is unbounded
+	 */
+	public int getCapacity(){
+		return capacity;
+	}
+
+	/**
+	 * @return the number of tasks waiting in this stage's queue
+	 */
+	public int getQueueDepth(){
+		return executor != null ? executor.getQueue().size() : queue.size();
+	}
+
+	/**
+	 * @return the approximate number of threads currently running a task
+	 */
+	public int getActiveCount(){
+		return executor != null ? executor.getActiveCount() : running.get();
+	}
+
+	/**
+	 * Stops accepting tasks; queued tasks still run
+	 */
+	public void shutdown(){
+		if (executor != null){
+			executor.shutdown();
+		}
+		shutdown = true;
+	}
+
+	/**
+	 * Waits for queued and running tasks to finish after shutdown()
+	 * @return true if all tasks finished before the timeout
+	 * @throws InterruptedException
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		if (executor != null){
+			return executor.awaitTermination(timeout, unit);
+		}
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		dispatcher.join(Math.max(1, unit.toMillis(timeout)));
+		if (dispatcher.isAlive()){
+			return false;
+		}
+		//every permit is free once the last task has ended
+		if (!permits.tryAcquire(threads, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)){
+			return false;
+		}
+		permits.release(threads);
+		return true;
+	}
+
+	@Override
+	public String toString(){
+		return name + ": " + getActiveCount() + "/" + getThreads() + (virtual ? " virtual" : "") + " active, " 
+				+ getQueueDepth() + " queued" + (capacity > 0 ? " (max " + capacity + ")" : "");
+	}
+
+}
@@ -0,0 +1,78 @@
+package com.oconnors.suggest.nphrases.parse;
+
+import java.util.List;
+
+import edu.stanford.nlp.ling.TaggedWord;
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * Sends short, simple sentences to a cheap strategy and all others to a full parser.
+ * A sentence is simple if it has at most maxWords words, at most maxVerbs verbs,
+ * and no wh-words or subordinating conjunctions that would start a clause
+ */
+public class RoutedStrategy implements ParseStrategy {
+
+	public static final String NAME = "auto";
+
+	/**strategy for simple sentences*/
+	private final ParseStrategy fast;
+	/**strategy for all other sentences*/
+	private final ParseStrategy full;
+	/**maximum words in a simple sentence*/
+	private final int maxWords;
+	/**maximum verbs in a simple sentence*/
+	private final int maxVerbs;
+
+	/**
+	 * @param fast		strategy for simple sentences
+	 * @param full		strategy for all other sentences
+	 * @param maxWords	maximum words in a simple sentence
+	 * @param maxVerbs	maximum verbs in a simple sentence
+	 */
+	public RoutedStrategy(ParseStrategy fast, ParseStrategy full, int maxWords, int maxVerbs){
+		this.fast = fast;
+		this.full = full;
+		this.maxWords = maxWords;
+		this.maxVerbs = maxVerbs;
+	}
+
+	public String getName(){
+		return NAME;
+	}
+
+	public Tree parse(List<TaggedWord> words){
+		return route(words).parse(words);
+	}
+
+	/**
+	 * @return the strategy that parses the given sentence
+	 */
+	public ParseStrategy route(List<TaggedWord> words){
+		if (words.size() > maxWords){
+			return full;
+		}
+		int verbs = 0;
+		for (TaggedWord word : words){
+			String tag = word.tag();
+			if (tag == null){
+				continue;
+			}
+			if (tag.startsWith("VB") || tag.equals("MD")){
+				verbs++;
+			} else if (tag.startsWith("W") || (tag.equals("IN") && isSubordinator(word.word()))){
+				return full;
+			}
+		}
+		return verbs > maxVerbs ? full : fast;
+	}
+
+	/**
+	 * @return true if an IN-tagged word usually starts a clause
+	 */
+	private static boolean isSubordinator(String word){
+		String w = word.toLowerCase();
+		return w.equals("that") || w.equals("if") || w.equals("because") || w.equals("although") 
+				|| w.equals("unless") || w.equals("whether") || w.equals("while") || w.equals("since");
+	}
+
+}
@@ -0,0 +1,36 @@
+package com.oconnors.suggest.nphrases.parse;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Thrown when a request is refused because the service already has as much work as it admits
+ */
+public class SaturatedException extends RejectedExecutionException {
+
+	private static final long serialVersionUID = 3046170358117032385L;
+
+	/**seconds after which the request is worth retrying*/
+	private final int retryAfter;
+	/**true if the request was refused because too many bulk jobs are running*/
+	private final boolean jobLimit;
+
+	/**
+	 * @param message		reason the request was refused
+	 * @param retryAfter	seconds after which the request is worth retrying
+	 * @param jobLimit		true if too many bulk jobs are running, false if too much work is queued
+	 */
+	public SaturatedException(String message, int retryAfter, boolean jobLimit){
+		super(message);
+		this.retryAfter = retryAfter;
+		this.jobLimit = jobLimit;
+	}
+
+	public int getRetryAfter(){
+		return retryAfter;
+	}
+
+	public boolean isJobLimit(){
+		return jobLimit;
+	}
+
+}
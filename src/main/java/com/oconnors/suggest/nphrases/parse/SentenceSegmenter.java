@@ -0,0 +1,125 @@
+package com.oconnors.suggest.nphrases.parse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import edu.stanford.nlp.ling.HasWord;
+
+/**
+ * Splits the tokens of long sentences into segments of at most maxTokens tokens, so that no
+ * single parse grows too large: parse time grows with the cube of a sentence's length.
+ * A long sentence is split in two at its strongest boundary, and each half is split again until
+ * every segment is short enough. Boundaries, strongest first:
+ * 		after a semicolon, after a colon, after a comma,
+ * 		before a coordinating conjunction (and, or, but, nor),
+ * 		before a clause marker (which, where, unless, provided, ...)
+ * Among boundaries of the same strength, the one closest to the middle is used.
+ * A sentence with no boundaries is cut in the middle
+ */
+public class SentenceSegmenter {
+
+	/**fewest tokens left on either side of a boundary*/
+	private static final int MIN_SEGMENT_TOKENS = 4;
+	/**words that a segment can start with*/
+	private static final Set<String> CONJUNCTIONS = new HashSet<String>(Arrays.asList("and", "or", "but", "nor"));
+	private static final Set<String> CLAUSE_MARKERS = new HashSet<String>(Arrays.asList(
+			"which", "who", "whom", "whose", "where", "whereas", "whereby", "wherein", "when", "whenever", "while",
+			"although", "though", "because", "unless", "provided", "except", "if", "that", "notwithstanding"));
+	/**number of boundary strengths*/
+	private static final int STRENGTHS = 5;
+
+	/**most tokens in a segment*/
+	private final int maxTokens;
+
+	/**
+	 * @param maxTokens		most tokens in a segment
+	 */
+	public SentenceSegmenter(int maxTokens){
+		this.maxTokens = Math.max(1, maxTokens);
+	}
+
+	/**
+	 * @return the most tokens in a segment
+	 */
+	public int getMaxTokens(){
+		return maxTokens;
+	}
+
+	/**
+	 * Splits a sentence into segments
+	 * @param tokens	tokens of the sentence
+	 * @return the segments, in order, as views of tokens; a sentence that is short enough is returned whole
+	 */
+	public <T extends HasWord> List<List<T>> segment(List<T> tokens){
+		List<List<T>> segments = new ArrayList<List<T>>(tokens.size() / maxTokens + 1);
+		segment(tokens, 0, tokens.size(), segments);
+		return segments;
+	}
+
+	private <T extends HasWord> void segment(List<T> tokens, int start, int end, List<List<T>> segments){
+		if (end - start <= maxTokens){
+			segments.add(tokens.subList(start, end));
+			return;
+		}
+		int split = split(tokens, start, end);
+		segment(tokens, start, split, segments);
+		segment(tokens, split, end, segments);
+	}
+
+	/**
+	 * @return the index of the first token after the best boundary between start and end
+	 */
+	private int split(List<? extends HasWord> tokens, int start, int end){
+		int middle = (start + end) >>> 1;
+		int[] best = new int[STRENGTHS];
+		Arrays.fill(best, -1);
+		for (int i = start; i < end; i++){
+			String word = tokens.get(i).word();
+			int strength = strength(word);
+			if (strength < 0){
+				continue;
+			}
+			//punctuation ends a segment, words start one
+			int boundary = strength < 3 ? i + 1 : i;
+			if (boundary < start + MIN_SEGMENT_TOKENS || boundary > end - MIN_SEGMENT_TOKENS){
+				continue;
+			}
+			if (best[strength] < 0 || Math.abs(boundary - middle) < Math.abs(best[strength] - middle)){
+				best[strength] = boundary;
+			}
+		}
+		for (int boundary : best){
+			if (boundary >= 0){
+				return boundary;
+			}
+		}
+		return middle;
+	}
+
+	/**
+	 * @return the strength of the boundary at a token, 0 being strongest, or -1 if it is not a boundary
+	 */
+	private static int strength(String word){
+		if (word == null || word.isEmpty()){
+			return -1;
+		}
+		if (word.equals(";")){
+			return 0;
+		} else if (word.equals(":")){
+			return 1;
+		} else if (word.equals(",")){
+			return 2;
+		}
+		String lower = word.toLowerCase();
+		if (CONJUNCTIONS.contains(lower)){
+			return 3;
+		} else if (CLAUSE_MARKERS.contains(lower)){
+			return 4;
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,151 @@
+package com.oconnors.suggest.nphrases.bench;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.exceptions.RequestException;
+import com.oconnors.suggest.nphrases.comm.Queryer;
+import com.oconnors.suggest.nphrases.comm.ResultHandler;
+import com.oconnors.suggest.nphrases.parse.PhraseExtractor;
+
+/**
+ * An in-process stand-in for MarkLogic, so that the whole pipeline can be run without a server.
+ * Every document has the same number of batches of the same number of sentences, taken in turn from
+ * a corpus starting at a place that depends on the filename. Fetches and inserts each take a fixed time
+ * before they answer. Inserted phrase records are counted by type and otherwise dropped; parse trees
+ * sent for nphrase generation (phrases.mode xquery) are accepted and counted as no phrases.
+ * Inserts are answered here rather than by an InsertAggregator, and phrases.mode compare logs that it
+ * could not compare, since there is nothing to build phrases
+ */
+public class FakeQueryer extends Queryer {
+
+	/**version of every document*/
+	private static final String VERSION = "fake 1";
+
+	private final List<String> corpus;
+	private final int batches;
+	private final int sentences;
+	private final long fetchMillis;
+	private final long insertMillis;
+
+	private final AtomicLong fetches = new AtomicLong(0);
+	private final AtomicLong inserts = new AtomicLong(0);
+	private final AtomicLong insertedChars = new AtomicLong(0);
+
+	/**
+	 * @param xccUrl		url the fake answers for: addr:port. Nothing connects to it
+	 * @param corpus		sentences documents are made of
+	 * @param batches		number of batches in each document
+	 * @param sentences		number of sentences in each batch
+	 * @param fetchMillis	time each fetch of a batch takes, in milliseconds
+	 * @param insertMillis	time each insert takes, in milliseconds
+	 */
+	public FakeQueryer(String xccUrl, List<String> corpus, int batches, int sentences, long fetchMillis, long insertMillis){
+		super("fake:fake", xccUrl, new String[5]);
+		this.corpus = corpus;
+		this.batches = Math.max(1, batches);
+		this.sentences = sentences;
+		this.fetchMillis = fetchMillis;
+		this.insertMillis = insertMillis;
+	}
+
+	/**
+	 * Streams a batch of the document: for batch 0, the number of batches and the version of the document first
+	 * (documents never change), then the sentences
+	 */
+	@Override
+	public ResultSequence documentGet(String product, String edition, String filename, String token, int batchId,
+			ResultHandler handler) throws RequestException, IOException{
+		if (handler == null){
+			throw new UnsupportedOperationException("FakeQueryer only streams batches");
+		}
+		fetches.incrementAndGet();
+		pause(fetchMillis);
+		if (batchId == 0){
+			handler.item(Integer.toString(batches));
+			handler.item(VERSION);
+		}
+		int start = (filename.hashCode() & Integer.MAX_VALUE) + batchId * sentences;
+		for (int i=0; i < sentences; i++){
+			handler.item(corpus.get((start + i) % corpus.size()));
+		}
+		return null;
+	}
+
+	/**
+	 * Counts the records of each type
+	 */
+	@Override
+	public int[] insertPhrases(String phrases, String product, String edition, String filename, String batchId, String token)
+			throws IOException, RequestException{
+		inserts.incrementAndGet();
+		insertedChars.addAndGet(phrases.length());
+		pause(insertMillis);
+		int[] counts = new int[PhraseExtractor.TYPES.length];
+		int start = 0;
+		while (start < phrases.length()){
+			int end = phrases.indexOf('\n', start);
+			if (end < 0){
+				end = phrases.length();
+			}
+			int tab = phrases.indexOf('\t', start);
+			if (tab > start && tab < end){
+				String type = phrases.substring(start, tab);
+				for (int i=0; i < counts.length; i++){
+					if (PhraseExtractor.TYPES[i].equals(type)){
+						counts[i]++;
+					}
+				}
+			}
+			start = end + 1;
+		}
+		return counts;
+	}
+
+	/**
+	 * Accepts the trees without building phrases from them
+	 */
+	@Override
+	public int[] generateNPhrases(String xmltree, String product, String edition, String filename, String batchId, String token)
+			throws IOException, RequestException{
+		inserts.incrementAndGet();
+		insertedChars.addAndGet(xmltree.length());
+		pause(insertMillis);
+		return new int[PhraseExtractor.TYPES.length];
+	}
+
+	@Override
+	public ResultSequence buildPhrases(String xmltree) throws IOException, RequestException{
+		throw new IOException("FakeQueryer does not build phrases");
+	}
+
+	public long getFetches(){
+		return fetches.get();
+	}
+
+	public long getInserts(){
+		return inserts.get();
+	}
+
+	/**
+	 * @return characters of phrase records or parse trees received
+	 */
+	public long getInsertedChars(){
+		return insertedChars.get();
+	}
+
+	private static void pause(long millis) throws IOException{
+		if (millis <= 0){
+			return;
+		}
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted");
+		}
+	}
+
+}
@@ -0,0 +1,125 @@
+package com.oconnors.suggest.nphrases.parse;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Progress recorded by CheckpointJournal across reopening its file: resumed only for the same version of a
+ * document, and kept through compaction
+ */
+public class CheckpointJournalTest {
+
+	private static final String DOCUMENT = CheckpointJournal.key("file.xml", "product", "edition", "localhost:8000");
+	private static final long MAX_AGE = TimeUnit.HOURS.toMillis(1);
+
+	private File file;
+
+	@Before
+	public void createFile() throws IOException{
+		file = File.createTempFile("checkpoints", ".journal");
+		file.delete();
+		file.deleteOnExit();
+		new File(file.getPath() + ".tmp").deleteOnExit();
+	}
+
+	@Test
+	public void resumesTheSameVersion(){
+		CheckpointJournal journal = open(1024 * 1024);
+		assertFalse(journal.start(DOCUMENT, 3, "v1"));
+		journal.done(DOCUMENT, "v1", 0);
+		journal.parsed(DOCUMENT, "v1", 1, "<trees/>", "nphrase1\trule\n");
+		journal.close();
+
+		journal = open(1024 * 1024);
+		assertTrue(journal.start(DOCUMENT, 3, "v1"));
+		assertTrue(journal.isDone(DOCUMENT, 0));
+		assertArrayEquals(new String[]{"<trees/>", "nphrase1\trule\n"}, journal.getParsed(DOCUMENT, 1));
+		assertFalse(journal.isDone(DOCUMENT, 2));
+		journal.close();
+	}
+
+	@Test
+	public void dropsProgressOfAnotherVersion(){
+		CheckpointJournal journal = open(1024 * 1024);
+		journal.start(DOCUMENT, 3, "v1");
+		journal.done(DOCUMENT, "v1", 0);
+		journal.close();
+
+		journal = open(1024 * 1024);
+		assertFalse(journal.start(DOCUMENT, 3, "v2"));
+		assertFalse(journal.isDone(DOCUMENT, 0));
+		//a batch of the old version ending late is not recorded for the new one
+		journal.done(DOCUMENT, "v1", 1);
+		assertFalse(journal.isDone(DOCUMENT, 1));
+		journal.close();
+
+		journal = open(1024 * 1024);
+		assertFalse(journal.start(DOCUMENT, 3, "v1"));
+		assertTrue(journal.start(DOCUMENT, 3, "v1"));
+		journal.close();
+	}
+
+	@Test
+	public void neverResumesDocumentWithoutVersion(){
+		CheckpointJournal journal = open(1024 * 1024);
+		assertFalse(journal.start(DOCUMENT, 3, ""));
+		journal.done(DOCUMENT, "", 0);
+		assertFalse(journal.isDone(DOCUMENT, 0));
+		assertFalse(journal.start(DOCUMENT, 3, ""));
+		assertEquals(0, journal.getDocuments());
+		journal.close();
+	}
+
+	@Test
+	public void dropsProgressOfReplacedDocument(){
+		CheckpointJournal journal = open(1024 * 1024);
+		journal.start(DOCUMENT, 2, "v1");
+		journal.done(DOCUMENT, "v1", 0);
+		journal.drop(DOCUMENT);
+		assertEquals(-1, journal.getBatches(DOCUMENT));
+		journal.close();
+
+		journal = open(1024 * 1024);
+		assertEquals(0, journal.getDocuments());
+		journal.close();
+	}
+
+	@Test
+	public void keepsProgressThroughCompaction(){
+		//compacted whenever a document ends
+		CheckpointJournal journal = open(1);
+		journal.start(DOCUMENT, 3, "v1");
+		journal.parsed(DOCUMENT, "v1", 1, "<trees/>", null);
+		for (int i=0; i < 10; i++){
+			String other = CheckpointJournal.key("other-" + i + ".xml", "product", "edition", "localhost:8000");
+			journal.start(other, 1, "v1");
+			journal.done(other, "v1", 0);
+			journal.ended(other);
+		}
+		assertTrue(journal.isEnabled());
+		assertEquals(1, journal.getDocuments());
+		assertArrayEquals(new String[]{"<trees/>", null}, journal.getParsed(DOCUMENT, 1));
+		journal.close();
+
+		journal = open(1024 * 1024);
+		assertTrue(journal.start(DOCUMENT, 3, "v1"));
+		assertArrayEquals(new String[]{"<trees/>", null}, journal.getParsed(DOCUMENT, 1));
+		assertNull(journal.getParsed(DOCUMENT, 2));
+		journal.close();
+	}
+
+	private CheckpointJournal open(long maxFileBytes){
+		return new CheckpointJournal(file.getPath(), maxFileBytes, MAX_AGE, true, false);
+	}
+
+}
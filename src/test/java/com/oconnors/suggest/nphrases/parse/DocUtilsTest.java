@@ -0,0 +1,89 @@
+package com.oconnors.suggest.nphrases.parse;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.trees.TreePrint;
+
+/**
+ * Golden file tests of DocUtils.fixXML and DocUtils.appendXML, under src/test/resources/fixxml:
+ * 		trees.txt: parse trees covering each tagging rule, one per line
+ * 		trees.xml: the trees as printed by TreePrint("xmlTree"), the input of fixXML
+ * 		irregular.xml: lines that are not in the one-tag-per-line shape TreePrint prints, with every line terminator
+ * 		*.expected.xml: the output of the original chain of replaceAll calls over each .xml file
+ */
+public class DocUtilsTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+	@Test
+	public void fixXMLMatchesRegexChainOnTrees() throws IOException{
+		assertEquals(read("trees.expected.xml"), DocUtils.fixXML(read("trees.xml")));
+	}
+
+	@Test
+	public void fixXMLMatchesRegexChainOnIrregularLines() throws IOException{
+		assertEquals(read("irregular.expected.xml"), DocUtils.fixXML(read("irregular.xml")));
+	}
+
+	@Test
+	public void treePrintMatchesFixture() throws IOException{
+		assertEquals(read("trees.xml").replace("\n", LINE_SEPARATOR), printTrees());
+	}
+
+	@Test
+	public void appendXMLMatchesRegexChain() throws IOException{
+		StringBuilder out = new StringBuilder();
+		for (String line : read("trees.txt").split("\n")){
+			if (!line.trim().isEmpty() && !line.startsWith("#")){
+				DocUtils.appendXML(Tree.valueOf(line), out);
+			}
+		}
+		assertEquals(read("trees.expected.xml").replace("\n", LINE_SEPARATOR), out.toString());
+	}
+
+	/**
+	 * @return the trees of trees.txt as printed by TreePrint("xmlTree")
+	 */
+	private static String printTrees() throws IOException{
+		StringWriter xml = new StringWriter();
+		PrintWriter writer = new PrintWriter(xml);
+		TreePrint xmlPrint = new TreePrint("xmlTree");
+		for (String line : read("trees.txt").split("\n")){
+			if (!line.trim().isEmpty() && !line.startsWith("#")){
+				xmlPrint.printTree(Tree.valueOf(line), writer);
+			}
+		}
+		writer.flush();
+		return xml.toString();
+	}
+
+	private static String read(String name) throws IOException{
+		InputStream in = DocUtilsTest.class.getResourceAsStream("/fixxml/" + name);
+		if (in == null){
+			throw new IOException("no fixture: " + name);
+		}
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) > 0){
+				bytes.write(buffer, 0, read);
+			}
+			return new String(bytes.toByteArray(), UTF8);
+		} finally {
+			in.close();
+		}
+	}
+
+}
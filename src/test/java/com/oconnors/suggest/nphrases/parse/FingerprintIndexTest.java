@@ -0,0 +1,120 @@
+package com.oconnors.suggest.nphrases.parse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Output of the sentences of a document kept by FingerprintIndex across runs: reused when the document is
+ * processed again, dropped once a sentence is no longer in it, and kept as it was when a run does not end
+ */
+public class FingerprintIndexTest {
+
+	private static final String DOCUMENT = CheckpointJournal.key("file.xml", "product", "edition", "localhost:8000");
+	private static final ParseCache.Key FIRST = new ParseCache.Key(1, 1);
+	private static final ParseCache.Key SECOND = new ParseCache.Key(2, 2);
+
+	private File dir;
+
+	@Before
+	public void createDir() throws IOException{
+		dir = File.createTempFile("fingerprints", "");
+		dir.delete();
+	}
+
+	@After
+	public void deleteDir(){
+		File[] files = dir.listFiles();
+		if (files != null){
+			for (File file : files){
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void reusesOutputOfTheLastRun(){
+		FingerprintIndex.Document document = open().open(DOCUMENT);
+		document.put(FIRST, "<tree/>", "nphrase1\trule\n");
+		document.put(SECOND, "<other/>", null);
+		document.save();
+
+		FingerprintIndex index = open();
+		document = index.open(DOCUMENT);
+		StringBuilder trees = new StringBuilder();
+		StringBuilder phrases = new StringBuilder();
+		assertTrue(document.reuse(FIRST, trees, phrases));
+		assertEquals("<tree/>", trees.toString());
+		assertEquals("nphrase1\trule\n", phrases.toString());
+		//phrases were not recorded for the second sentence
+		assertFalse(document.reuse(SECOND, new StringBuilder(), new StringBuilder()));
+		assertEquals(1, index.getReused());
+		assertEquals(1, index.getChanged());
+	}
+
+	@Test
+	public void dropsSentencesNoLongerInTheDocument(){
+		FingerprintIndex.Document document = open().open(DOCUMENT);
+		document.put(FIRST, "<tree/>", null);
+		document.put(SECOND, "<other/>", null);
+		document.save();
+
+		FingerprintIndex index = open();
+		document = index.open(DOCUMENT);
+		assertTrue(document.reuse(FIRST, new StringBuilder(), null));
+		document.save();
+		assertEquals(1, index.getRemoved());
+
+		document = open().open(DOCUMENT);
+		assertTrue(document.reuse(FIRST, new StringBuilder(), null));
+		assertFalse(document.reuse(SECOND, new StringBuilder(), null));
+	}
+
+	@Test
+	public void keepsSentencesOfBatchesNotParsedAgain(){
+		FingerprintIndex.Document document = open().open(DOCUMENT);
+		document.put(FIRST, "<tree/>", null);
+		document.put(SECOND, "<other/>", null);
+		document.save();
+
+		document = open().open(DOCUMENT);
+		document.keepPrevious();
+		document.put(FIRST, "<changed/>", null);
+		document.save();
+
+		document = open().open(DOCUMENT);
+		StringBuilder trees = new StringBuilder();
+		assertTrue(document.reuse(FIRST, trees, null));
+		assertTrue(document.reuse(SECOND, trees, null));
+		assertEquals("<changed/><other/>", trees.toString());
+	}
+
+	@Test
+	public void keepsTheFileOfADiscardedRun(){
+		FingerprintIndex.Document document = open().open(DOCUMENT);
+		document.put(FIRST, "<tree/>", null);
+		document.save();
+
+		document = open().open(DOCUMENT);
+		document.put(SECOND, "<other/>", null);
+		document.discard();
+		assertEquals(1, dir.listFiles().length);
+
+		document = open().open(DOCUMENT);
+		assertTrue(document.reuse(FIRST, new StringBuilder(), null));
+		assertFalse(document.reuse(SECOND, new StringBuilder(), null));
+	}
+
+	private FingerprintIndex open(){
+		return new FingerprintIndex(dir.getPath(), 0, "signature");
+	}
+
+}
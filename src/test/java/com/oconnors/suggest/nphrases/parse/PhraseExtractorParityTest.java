@@ -0,0 +1,93 @@
+package com.oconnors.suggest.nphrases.parse;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * Parity of PhraseExtractor (phrases.mode java) with the phrases MarkLogic builds (phrases.mode xquery), under
+ * src/test/resources/phrases:
+ * 		trees.txt: parse trees, one per line
+ * 		xquery.txt: the phrases nphrases-build.xqy built from each tree, recorded against a server by PhraseParity
+ * The java phrase mode must not be made the default until this passes against a recording of the np library
+ * in production
+ */
+public class PhraseExtractorParityTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	@Test
+	public void extractsTheExamplesOfItsDocumentation(){
+		assertEquals("nphrase1\tnew rule\n", extract("(NP (DT the) (JJ new) (NN rule))"));
+		assertEquals("nphrase2\tnotice of appeal\nnphrase1\tnotice\nnphrase1\tappeal\n",
+				extract("(NP (NP (NN notice)) (PP (IN of) (NP (NN appeal))))"));
+		assertEquals("vphrase1\tfile motion\nnphrase1\tmotion\n", extract("(VP (VB file) (NP (DT a) (NN motion)))"));
+	}
+
+	@Test
+	public void matchesPhrasesBuiltByMarkLogic() throws IOException{
+		List<String> recorded = lines("xquery.txt");
+		Assume.assumeTrue("no phrases recorded from MarkLogic: run PhraseParity (see README)", recorded != null);
+		List<String> trees = lines("trees.txt");
+		for (int i=0; i < trees.size(); i++){
+			List<String> expected = new ArrayList<String>();
+			String prefix = i + "\t";
+			for (String line : recorded){
+				if (line.startsWith(prefix)){
+					expected.add(line.substring(prefix.length()));
+				}
+			}
+			List<String> actual = new ArrayList<String>();
+			for (String record : extract(trees.get(i)).split("\n")){
+				if (!record.isEmpty()){
+					actual.add(record);
+				}
+			}
+			Collections.sort(expected);
+			Collections.sort(actual);
+			assertEquals("phrases of " + trees.get(i), expected, actual);
+		}
+	}
+
+	private static String extract(String tree){
+		StringBuilder out = new StringBuilder();
+		PhraseExtractor.extract(Tree.valueOf(tree), out);
+		return out.toString();
+	}
+
+	/**
+	 * @return the lines of a fixture, skipping blank lines and lines starting with #, or null if there is no such fixture
+	 */
+	private static List<String> lines(String name) throws IOException{
+		InputStream in = PhraseExtractorParityTest.class.getResourceAsStream("/phrases/" + name);
+		if (in == null){
+			return null;
+		}
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null){
+				if (!line.trim().isEmpty() && !line.startsWith("#")){
+					lines.add(line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return lines;
+	}
+
+}
@@ -0,0 +1,127 @@
+package com.oconnors.suggest.nphrases.parse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.oconnors.suggest.nphrases.bench.FakeQueryer;
+
+/**
+ * Stress test of the registries of ParseDriver: threads submit, cancel and read bulk jobs and request single
+ * documents at random, all at once, against a FakeQueryer with empty batches so that no sentence is parsed.
+ * Jobs and requests share a small set of filenames, so documents are often replaced while in progress.
+ * Checks that no more than jobs.max jobs ever run at once, that every admitted job ends done or cancelled,
+ * and that every document in progress is removed once it ends
+ */
+public class RegistryStressTest {
+
+	private static final String XCC_URL = "stress:8000";
+	/**threads making calls at once, and calls made by each: raised for a longer run with -Dstress.threads, -Dstress.calls*/
+	private static final int THREADS = Integer.getInteger("stress.threads", 8);
+	private static final int CALLS = Integer.getInteger("stress.calls", 250);
+	/**most documents in a job, and distinct filenames used*/
+	private static final int MAX_DOCUMENTS = 4;
+	private static final int FILENAMES = 20;
+	/**time allowed for jobs and documents to end after the last call*/
+	private static final long TIMEOUT_MILLIS = 60000;
+	private static final long POLL_MILLIS = 100;
+
+	@Test
+	public void jobsAndDocumentsEndUnderConcurrentCalls() throws Exception {
+		ParseDriver.addQueryer(new FakeQueryer(XCC_URL, Collections.singletonList("Unused."), 1, 0, 0, 0));
+
+		final ConcurrentLinkedQueue<ParseJob> admitted = new ConcurrentLinkedQueue<ParseJob>();
+		final ConcurrentLinkedQueue<Exception> errors = new ConcurrentLinkedQueue<Exception>();
+		final AtomicInteger maxRunning = new AtomicInteger(0);
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(THREADS);
+		for (int t=0; t < THREADS; t++){
+			final Random random = new Random(t);
+			Thread thread = new Thread(new Runnable(){
+				public void run(){
+					try {
+						start.await();
+						for (int call=0; call < CALLS; call++){
+							try {
+								call(random);
+							} catch (SaturatedException e){
+								//refused: admission is part of what is stressed
+							} catch (Exception e){
+								errors.add(e);
+							}
+							int running = ParseDriver.getRunningJobs();
+							int max;
+							while (running > (max = maxRunning.get()) && !maxRunning.compareAndSet(max, running)){
+							}
+						}
+					} catch (InterruptedException e){
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+
+				private void call(Random random) throws Exception {
+					int kind = random.nextInt(4);
+					if (kind == 0){
+						List<String> names = new ArrayList<String>();
+						for (int i=random.nextInt(MAX_DOCUMENTS + 1); i > 0; i--){
+							names.add(random.nextInt(FILENAMES) + ".xml");
+						}
+						admitted.add(ParseDriver.submitJob(names, "stress", "1", "fake:fake", XCC_URL, "token", null, new String[5]));
+					} else if (kind == 1){
+						List<ParseJob> jobs = new ArrayList<ParseJob>(admitted);
+						if (!jobs.isEmpty()){
+							ParseDriver.cancelJob(jobs.get(random.nextInt(jobs.size())).getId());
+						}
+					} else if (kind == 2){
+						ParseDriver.process(random.nextInt(FILENAMES) + ".xml", "stress", "1", "fake:fake", XCC_URL, "token", null, new String[5]);
+					} else {
+						for (ParseJob job : ParseDriver.getJobs()){
+							job.toJSON();
+						}
+					}
+				}
+			}, "stress-" + t);
+			thread.start();
+		}
+		start.countDown();
+		done.await();
+
+		//every job and document has to end on its own
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (System.currentTimeMillis() < deadline && (ParseDriver.getRunningJobs() > 0 || ParseDriver.getActiveDocuments() > 0
+				|| !allFinished(admitted))){
+			Thread.sleep(POLL_MILLIS);
+		}
+
+		assertTrue("calls threw: " + errors, errors.isEmpty());
+		int maxJobs = ParseConfig.getInt("jobs.max", 8);
+		assertTrue(maxRunning.get() + " jobs ran at once, over jobs.max " + maxJobs, maxRunning.get() <= maxJobs);
+		assertEquals("jobs still counted as running", 0, ParseDriver.getRunningJobs());
+		assertEquals("documents still in progress", 0, ParseDriver.getActiveDocuments());
+		for (ParseJob job : admitted){
+			assertTrue("job " + job.getId() + " did not finish: " + job.getState() + ", " + job,
+					job.isFinished() && job.getFinishedTime() != 0);
+		}
+	}
+
+	private static boolean allFinished(Iterable<ParseJob> jobs){
+		for (ParseJob job : jobs){
+			if (!job.isFinished()){
+				return false;
+			}
+		}
+		return true;
+	}
+
+}